@@ -0,0 +1,460 @@
+package org.neuroml2.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.lemsml.model.extended.Component;
+import org.lemsml.model.extended.Symbol;
+import org.neuroml2.model.utils.FunctionNodeHelper;
+
+/**
+ * Extracts the kinetics (rates, time course, steady state, as MathJS
+ * expressions of v) of the gates of the ion channels of NeuroML2 documents:
+ *
+ * <pre>
+ * ChannelKinetics kinetics = new ChannelKinetics().withPool(pool);
+ * for (ChannelKinetics.GateKinetics g : kinetics.extract(file))
+ * {
+ *     g.getForwardRate();
+ * }
+ * kinetics.export(files, writer); // JSON Lines, one gate per line
+ * </pre>
+ *
+ * All the ion channels of a document are covered (ionChannelHH, ionChannel,
+ * ionChannelKS...), in document order. The expressions of a document are
+ * gathered from the LEMS model on the calling thread and rendered in
+ * parallel; an export reads and renders the files in parallel, and writes
+ * them in the given order. All documents are read with the same reader.
+ */
+public class ChannelKinetics
+{
+
+    /**
+     * The kinetics of one gate, null where the gate doesn't define them
+     */
+    public static class GateKinetics
+    {
+        private final String source;
+
+        private final String channel;
+
+        private final String gate;
+
+        private final String type;
+
+        private final Object instances;
+
+        private final Map<String, String> expressions = new LinkedHashMap<String, String>();
+
+        GateKinetics(String source, String channel, String gate, String type, Object instances)
+        {
+            this.source = source;
+            this.channel = channel;
+            this.gate = gate;
+            this.type = type;
+            this.instances = instances;
+        }
+
+        /**
+         * @return the file the gate was read from, if any
+         */
+        public String getSource()
+        {
+            return source;
+        }
+
+        public String getChannel()
+        {
+            return channel;
+        }
+
+        public String getGate()
+        {
+            return gate;
+        }
+
+        /**
+         * @return the gate component type, e.g. gateHHrates
+         */
+        public String getType()
+        {
+            return type;
+        }
+
+        public Object getInstances()
+        {
+            return instances;
+        }
+
+        public String getForwardRate()
+        {
+            return expressions.get(FORWARD_RATE);
+        }
+
+        public String getReverseRate()
+        {
+            return expressions.get(REVERSE_RATE);
+        }
+
+        public String getTimeCourse()
+        {
+            return expressions.get(TIME_COURSE);
+        }
+
+        public String getSteadyState()
+        {
+            return expressions.get(STEADY_STATE);
+        }
+
+        /**
+         * @return the expressions by child (forwardRate, reverseRate,
+         * timeCourse, steadyState)
+         */
+        public Map<String, String> getExpressions()
+        {
+            return Collections.unmodifiableMap(expressions);
+        }
+
+        /**
+         * @return this gate as a single line JSON object
+         */
+        public String toJson()
+        {
+            StringBuilder json = new StringBuilder("{");
+            if (source != null)
+            {
+                json.append("\"source\":");
+                quote(source, json).append(',');
+            }
+            json.append("\"channel\":");
+            quote(channel, json).append(",\"gate\":");
+            quote(gate, json).append(",\"type\":");
+            quote(type, json).append(",\"instances\":");
+            if (instances instanceof Number)
+            {
+                json.append(instances);
+            }
+            else
+            {
+                quote(instances == null ? null : instances.toString(), json);
+            }
+            for (Map.Entry<String, String> e : expressions.entrySet())
+            {
+                json.append(",\"").append(e.getKey()).append("\":");
+                quote(e.getValue(), json);
+            }
+            return json.append('}').toString();
+        }
+
+        /**
+         * @return as {@link NeuroML2ModelReader#extractInfo(File)}, one line
+         * per property
+         */
+        @Override
+        public String toString()
+        {
+            StringBuilder info = new StringBuilder();
+            String preg = channel + ":gate " + gate;
+            info.append(preg).append(":instances = ").append(instances).append('\n');
+            for (Map.Entry<String, String> e : expressions.entrySet())
+            {
+                info.append(preg).append(':').append(LABELS.get(e.getKey())).append(" = ")
+                    .append(e.getValue()).append('\n');
+            }
+            return info.toString();
+        }
+    }
+
+    static final String FORWARD_RATE = "forwardRate";
+
+    static final String REVERSE_RATE = "reverseRate";
+
+    static final String TIME_COURSE = "timeCourse";
+
+    static final String STEADY_STATE = "steadyState";
+
+    // child -> symbol defining it
+    private static final Map<String, String> SYMBOLS = new LinkedHashMap<String, String>();
+
+    private static final Map<String, String> LABELS = new LinkedHashMap<String, String>();
+
+    static
+    {
+        SYMBOLS.put(FORWARD_RATE, "r");
+        SYMBOLS.put(REVERSE_RATE, "r");
+        SYMBOLS.put(TIME_COURSE, "t");
+        SYMBOLS.put(STEADY_STATE, "x");
+        LABELS.put(FORWARD_RATE, "forward rate");
+        LABELS.put(REVERSE_RATE, "reverse rate");
+        LABELS.put(TIME_COURSE, "time course");
+        LABELS.put(STEADY_STATE, "steady state");
+    }
+
+    static final List<Class<? extends BaseIonChannel>> ALL_CHANNELS = Collections
+        .<Class<? extends BaseIonChannel>> singletonList(BaseIonChannel.class);
+
+    private static volatile ExecutorService sharedPool = null;
+
+    private final NeuroML2ModelReader reader;
+
+    private ExecutorService pool = null;
+
+    public ChannelKinetics() throws Throwable
+    {
+        this(new NeuroML2ModelReader());
+    }
+
+    /**
+     * @param reader used for all the documents
+     */
+    public ChannelKinetics(NeuroML2ModelReader reader)
+    {
+        this.reader = reader;
+    }
+
+    /**
+     * @param pool used to render the expressions, and to read the files of
+     * an export (by default a pool shared by all extractors, with one thread
+     * per processor)
+     */
+    public ChannelKinetics withPool(ExecutorService pool)
+    {
+        this.pool = pool;
+        return this;
+    }
+
+    private ExecutorService getPool()
+    {
+        if (pool != null)
+        {
+            return pool;
+        }
+        ExecutorService p = sharedPool;
+        if (p == null)
+        {
+            synchronized (ChannelKinetics.class)
+            {
+                p = sharedPool;
+                if (p == null)
+                {
+                    // daemon threads, nothing to shut down
+                    p = new ForkJoinPool();
+                    sharedPool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    public List<GateKinetics> extract(File nmlFile) throws Throwable
+    {
+        return extract(nmlFile, ALL_CHANNELS);
+    }
+
+    /**
+     * @param channelTypes the channels to cover, type after type
+     */
+    List<GateKinetics> extract(File nmlFile, List<Class<? extends BaseIonChannel>> channelTypes)
+        throws Throwable
+    {
+        return extract(reader.read_(nmlFile), nmlFile.getPath(), channelTypes, getPool());
+    }
+
+    public List<GateKinetics> extract(Neuroml2 model) throws Throwable
+    {
+        return extract(model, null, ALL_CHANNELS, getPool());
+    }
+
+    /**
+     * @param executor renders the expressions, null to render them on this
+     * thread
+     */
+    private static List<GateKinetics> extract(final Neuroml2 model, String source,
+        List<Class<? extends BaseIonChannel>> channelTypes, ExecutorService executor) throws Throwable
+    {
+        // resolving walks the LEMS model, so keep that on this thread
+        List<Callable<GateKinetics>> gates = new ArrayList<Callable<GateKinetics>>();
+        List<BaseIonChannel> channels = new ArrayList<BaseIonChannel>();
+        for (Class<? extends BaseIonChannel> type : channelTypes)
+        {
+            channels.addAll(ComponentIndex.of(model).getAllOfType(type));
+        }
+        for (BaseIonChannel ic : channels)
+        {
+            for (BaseGate g : ic.getAllOfType(BaseGate.class))
+            {
+                final GateKinetics kinetics = new GateKinetics(source, ic.getId(), g.getId(),
+                    g.getType(), g.getInstances());
+                final Map<String, Symbol> symbols = new LinkedHashMap<String, Symbol>();
+                final Map<String, Map<String, String>> definitions = new LinkedHashMap<String, Map<String, String>>();
+                for (Component c : g.getChildren())
+                {
+                    if (SYMBOLS.containsKey(c.getId()))
+                    {
+                        Symbol resolved = c.getScope().resolve(SYMBOLS.get(c.getId()));
+                        symbols.put(c.getId(), resolved);
+                        definitions.put(c.getId(), FunctionNodeHelper.collectDefinitions(resolved));
+                    }
+                }
+                gates.add(new Callable<GateKinetics>()
+                {
+                    @Override
+                    public GateKinetics call()
+                    {
+                        for (String child : SYMBOLS.keySet())
+                        {
+                            if (symbols.containsKey(child))
+                            {
+                                kinetics.expressions.put(child, FunctionNodeHelper.processExpression(
+                                    symbols.get(child), definitions.get(child), model));
+                            }
+                        }
+                        return kinetics;
+                    }
+                });
+            }
+        }
+        List<GateKinetics> extracted = new ArrayList<GateKinetics>();
+        if (executor == null)
+        {
+            for (Callable<GateKinetics> g : gates)
+            {
+                extracted.add(g.call());
+            }
+            return extracted;
+        }
+
+        // built lazily: build it before the threads need it
+        model.getSymbolToUnit();
+        try
+        {
+            for (Future<GateKinetics> f : executor.invokeAll(gates))
+            {
+                extracted.add(f.get());
+            }
+            return extracted;
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes the kinetics of all the gates of all the files as JSON Lines,
+     * file after file. The files are read in parallel, a few ahead of the
+     * one being written; each file is rendered by the thread which read it.
+     */
+    public void export(Iterable<File> nmlFiles, Writer out) throws Throwable
+    {
+        ExecutorService executor = getPool();
+        int ahead = 2 * Runtime.getRuntime().availableProcessors();
+        Deque<Future<List<GateKinetics>>> pending = new ArrayDeque<Future<List<GateKinetics>>>();
+        try
+        {
+            for (final File f : nmlFiles)
+            {
+                if (pending.size() == ahead)
+                {
+                    export(pending.poll().get(), out);
+                }
+                pending.add(executor.submit(new Callable<List<GateKinetics>>()
+                {
+                    @Override
+                    public List<GateKinetics> call() throws IOException
+                    {
+                        try
+                        {
+                            // not on the pool again: its threads may all be
+                            // busy reading files
+                            return extract(reader.read_(f), f.getPath(), ALL_CHANNELS, null);
+                        }
+                        catch (Throwable t)
+                        {
+                            throw new IOException("Error reading " + f, t);
+                        }
+                    }
+                }));
+            }
+            while (!pending.isEmpty())
+            {
+                export(pending.poll().get(), out);
+            }
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause();
+        }
+        finally
+        {
+            for (Future<List<GateKinetics>> f : pending)
+            {
+                f.cancel(true);
+            }
+        }
+    }
+
+    public static void export(List<GateKinetics> gates, Writer out) throws IOException
+    {
+        for (GateKinetics g : gates)
+        {
+            out.write(g.toJson());
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    private static StringBuilder quote(String s, StringBuilder json)
+    {
+        if (s == null)
+        {
+            return json.append("null");
+        }
+        json.append('"');
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            switch (c)
+            {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                    {
+                        json.append(String.format("\\u%04x", (int) c));
+                    }
+                    else
+                    {
+                        json.append(c);
+                    }
+            }
+        }
+        return json.append('"');
+    }
+}
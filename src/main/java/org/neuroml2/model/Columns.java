@@ -0,0 +1,150 @@
+package org.neuroml2.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Base of the column-wise stores of the bulk parts of a network
+ * ({@link ProjectionColumns}, {@link PopulationColumns},
+ * {@link InputColumns}): primitive buffers, on the heap or direct (off
+ * heap), grown as elements are added, or wrapping existing buffers (e.g.
+ * mapped from a snapshot).
+ *
+ * Not thread safe while it is being filled; read only access from several
+ * threads is fine.
+ */
+abstract class Columns
+{
+
+    // ../pop/3/cell, ../pop[3] or 3
+    private static final Pattern[] CELL_ID = new Pattern[]
+    {
+        Pattern.compile("(.*/)(\\d+)(/[^/]*)"),
+        Pattern.compile("(.*\\[)(\\d+)(\\])"),
+        Pattern.compile("()(\\d+)()")
+    };
+
+    static final int INITIAL_CAPACITY = 64;
+
+    private final boolean offHeap;
+
+    int size;
+
+    Columns(boolean offHeap, int size)
+    {
+        this.offHeap = offHeap;
+        this.size = size;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isOffHeap()
+    {
+        return offHeap;
+    }
+
+    private ByteBuffer bytes(int capacity)
+    {
+        return offHeap ? ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder())
+            : ByteBuffer.allocate(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    IntBuffer grow(IntBuffer old, int capacity)
+    {
+        IntBuffer b = bytes(capacity * 4).asIntBuffer();
+        if (old != null)
+        {
+            old.clear();
+            b.put(old);
+            b.clear();
+        }
+        return b;
+    }
+
+    FloatBuffer grow(FloatBuffer old, int capacity)
+    {
+        FloatBuffer b = bytes(capacity * 4).asFloatBuffer();
+        if (old != null)
+        {
+            old.clear();
+            b.put(old);
+            b.clear();
+        }
+        return b;
+    }
+
+    DoubleBuffer grow(DoubleBuffer old, int capacity)
+    {
+        DoubleBuffer b = bytes(capacity * 8).asDoubleBuffer();
+        if (old != null)
+        {
+            old.clear();
+            b.put(old);
+            b.clear();
+        }
+        return b;
+    }
+
+    /**
+     * @return the match of a cell path: prefix, cell index, suffix
+     */
+    static Matcher matchCellId(String cellId)
+    {
+        for (Pattern p : CELL_ID)
+        {
+            Matcher m = p.matcher(cellId);
+            if (m.matches())
+            {
+                return m;
+            }
+        }
+        throw new IllegalArgumentException("Can't find the cell index in " + cellId);
+    }
+
+    int check(int i)
+    {
+        if (i < 0 || i >= size)
+        {
+            throw new IndexOutOfBoundsException(i + " (size " + size + ")");
+        }
+        return i;
+    }
+
+    IntBuffer view(IntBuffer column)
+    {
+        IntBuffer b = column.asReadOnlyBuffer();
+        b.clear();
+        b.limit(size);
+        return b;
+    }
+
+    FloatBuffer view(FloatBuffer column)
+    {
+        FloatBuffer b = column.asReadOnlyBuffer();
+        b.clear();
+        b.limit(size);
+        return b;
+    }
+
+    DoubleBuffer view(DoubleBuffer column)
+    {
+        DoubleBuffer b = column.asReadOnlyBuffer();
+        b.clear();
+        b.limit(size);
+        return b;
+    }
+
+    abstract IntBuffer[] getIntColumns();
+
+    abstract FloatBuffer[] getFloatColumns();
+
+    abstract DoubleBuffer[] getDoubleColumns();
+}
@@ -0,0 +1,398 @@
+package org.neuroml2.model;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.lemsml.model.extended.Component;
+import org.lemsml.model.extended.Lems;
+
+/**
+ * Hash indexes of the components of a model, by id and by class, so that
+ * lookups don't walk the component tree:
+ *
+ * <pre>
+ * ComponentIndex index = ComponentIndex.of(model);
+ * Component cell = index.getComponentById("pyr_4_sym");
+ * for (BaseIonChannel ic : index.getAllOfType(BaseIonChannel.class))
+ * </pre>
+ *
+ * Indexes are built when {@link NeuroML2ModelReader} reads a model (or on
+ * first use for other models) and live as long as their model. Querying a
+ * class returns the instances of all its subclasses too, the class
+ * hierarchy of each component class being computed once.
+ *
+ * Changes made through {@link #add(Component, Component)} and
+ * {@link #remove(Component)} keep the indexes up to date; direct changes to
+ * the model require a {@link #rebuild()}. Like the model, an index can be
+ * queried from several threads, but not while it's being changed. The
+ * indexes of models shared by several callers (e.g. cached by
+ * {@link NeuroML2ModelReader#withCache}) are read only.
+ */
+public final class ComponentIndex
+{
+
+    /**
+     * Weak key, compared by identity: models may define equals on their
+     * content
+     */
+    private static final class ModelKey extends WeakReference<Lems>
+    {
+        private final int hash;
+
+        ModelKey(Lems model, ReferenceQueue<Lems> queue)
+        {
+            super(model, queue);
+            this.hash = System.identityHashCode(model);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            }
+            if (!(o instanceof ModelKey))
+            {
+                return false;
+            }
+            Lems model = get();
+            return model != null && model == ((ModelKey) o).get();
+        }
+    }
+
+    private static final Map<ModelKey, ComponentIndex> indexes = new HashMap<ModelKey, ComponentIndex>();
+
+    private static final ReferenceQueue<Lems> collected = new ReferenceQueue<Lems>();
+
+    // class -> itself and its superclasses up to Component
+    private static final Map<Class<?>, List<Class<?>>> hierarchies = new ConcurrentHashMap<Class<?>, List<Class<?>>>();
+
+    private final WeakReference<Lems> model;
+
+    private final Map<String, Component> byId = new HashMap<String, Component>();
+
+    private final Map<Class<?>, Set<Component>> byClass = new HashMap<Class<?>, Set<Component>>();
+
+    // parent of each component, TOP for top level ones: the model itself
+    // mustn't be referenced, or its weak key would never be cleared
+    private final Map<Component, Object> parents = new IdentityHashMap<Component, Object>();
+
+    private static final Object TOP = new Object();
+
+    private volatile boolean readOnly = false;
+
+    // definitions (ComponentTypes, Units...) linked from the core library
+    private final Set<Object> coreDefinitions = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    private ComponentIndex(Lems model)
+    {
+        this.model = new WeakReference<Lems>(model);
+        rebuild();
+    }
+
+    /**
+     * @return the index of the model, built if it has none yet
+     */
+    public static ComponentIndex of(Lems model)
+    {
+        ModelKey key = new ModelKey(model, null);
+        synchronized (indexes)
+        {
+            expunge();
+            ComponentIndex index = indexes.get(key);
+            if (index != null)
+            {
+                return index;
+            }
+        }
+        // built without the lock, which guards the indexes of all models;
+        // if another thread got there first, its index is kept
+        ComponentIndex built = new ComponentIndex(model);
+        synchronized (indexes)
+        {
+            ComponentIndex index = indexes.get(key);
+            if (index == null)
+            {
+                index = built;
+                indexes.put(new ModelKey(model, collected), index);
+            }
+            return index;
+        }
+    }
+
+    private static void expunge()
+    {
+        for (Object key = collected.poll(); key != null; key = collected.poll())
+        {
+            indexes.remove(key);
+        }
+    }
+
+    /**
+     * @return the number of models indexed and not collected yet
+     */
+    static int indexCount()
+    {
+        synchronized (indexes)
+        {
+            expunge();
+            return indexes.size();
+        }
+    }
+
+    /**
+     * @return the first component of the model with this id, or null
+     */
+    public Component getComponentById(String id)
+    {
+        return byId.get(id);
+    }
+
+    /**
+     * @return the components of the model of this class or of a subclass, in
+     * document order
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Component> Set<T> getAllOfType(Class<T> type)
+    {
+        Set<Component> all = byClass.get(type);
+        if (all == null)
+        {
+            return Collections.emptySet();
+        }
+        return (Set<T>) Collections.unmodifiableSet(all);
+    }
+
+    /**
+     * @return whether the definition (ComponentType, Unit...) was linked into
+     * the model from the core library, rather than defined by the document
+     */
+    public boolean isCoreDefinition(Object definition)
+    {
+        return coreDefinitions.contains(definition);
+    }
+
+    void addCoreDefinitions(Collection<?> definitions)
+    {
+        coreDefinitions.addAll(definitions);
+    }
+
+    /**
+     * @return whether {@link #add(Component, Component)} and
+     * {@link #remove(Component)} are refused, the model being shared
+     */
+    public boolean isReadOnly()
+    {
+        return readOnly;
+    }
+
+    void setReadOnly()
+    {
+        readOnly = true;
+    }
+
+    private void checkWritable()
+    {
+        if (readOnly)
+        {
+            throw new UnsupportedOperationException("The model is shared (e.g. cached by a reader): read only");
+        }
+    }
+
+    /**
+     * Adds a component and its descendants to the model and to the indexes
+     *
+     * @param parent a component of the model, or null for a top level
+     * component
+     */
+    public void add(Component parent, Component component)
+    {
+        checkWritable();
+        if (parent == null)
+        {
+            model().getComponents().add(component);
+            index(component, TOP);
+        }
+        else
+        {
+            if (!parents.containsKey(parent))
+            {
+                throw new IllegalArgumentException(parent.getId() + " isn't a component of the model");
+            }
+            parent.getComponents().add(component);
+            index(component, parent);
+        }
+    }
+
+    /**
+     * Removes a component and its descendants from the model and from the
+     * indexes
+     */
+    public void remove(Component component)
+    {
+        checkWritable();
+        Object parent = parents.get(component);
+        if (parent == null)
+        {
+            throw new IllegalArgumentException(component.getId() + " isn't a component of the model");
+        }
+        List<Component> siblings = parent == TOP ? model().getComponents()
+            : ((Component) parent).getComponents();
+        for (int i = 0; i < siblings.size(); i++)
+        {
+            if (siblings.get(i) == component)
+            {
+                siblings.remove(i);
+                break;
+            }
+        }
+        unindex(component);
+    }
+
+    /**
+     * Indexes the model again, after changes made without the index
+     */
+    public void rebuild()
+    {
+        byId.clear();
+        byClass.clear();
+        parents.clear();
+        for (Component c : model().getComponents())
+        {
+            index(c, TOP);
+        }
+    }
+
+    private Lems model()
+    {
+        Lems m = model.get();
+        if (m == null)
+        {
+            throw new IllegalStateException("The model has been collected");
+        }
+        return m;
+    }
+
+    private void index(Component component, Object parent)
+    {
+        // iteratively: networks can be deep and wide
+        List<Component> pending = new ArrayList<Component>();
+        List<Object> pendingParents = new ArrayList<Object>();
+        pending.add(component);
+        pendingParents.add(parent);
+        while (!pending.isEmpty())
+        {
+            int last = pending.size() - 1;
+            Component c = pending.remove(last);
+            parents.put(c, pendingParents.remove(last));
+            if (c.getId() != null && !byId.containsKey(c.getId()))
+            {
+                byId.put(c.getId(), c);
+            }
+            for (Class<?> type : hierarchy(c.getClass()))
+            {
+                Set<Component> all = byClass.get(type);
+                if (all == null)
+                {
+                    all = new LinkedHashSet<Component>();
+                    byClass.put(type, all);
+                }
+                all.add(c);
+            }
+            List<Component> children = c.getComponents();
+            if (children != null)
+            {
+                // reversed, so that they're indexed in document order
+                for (int i = children.size() - 1; i >= 0; i--)
+                {
+                    pending.add(children.get(i));
+                    pendingParents.add(c);
+                }
+            }
+        }
+    }
+
+    private void unindex(Component component)
+    {
+        List<Component> pending = new ArrayList<Component>();
+        pending.add(component);
+        Set<String> shadowed = new LinkedHashSet<String>();
+        while (!pending.isEmpty())
+        {
+            Component c = pending.remove(pending.size() - 1);
+            parents.remove(c);
+            if (c.getId() != null && byId.get(c.getId()) == c)
+            {
+                byId.remove(c.getId());
+                shadowed.add(c.getId());
+            }
+            for (Class<?> type : hierarchy(c.getClass()))
+            {
+                Set<Component> all = byClass.get(type);
+                if (all != null)
+                {
+                    all.remove(c);
+                }
+            }
+            if (c.getComponents() != null)
+            {
+                pending.addAll(c.getComponents());
+            }
+        }
+        if (!shadowed.isEmpty())
+        {
+            // another component may have the same id (rare, so just search
+            // the model, in document order)
+            pending.addAll(model().getComponents());
+            Collections.reverse(pending);
+            while (!pending.isEmpty() && !shadowed.isEmpty())
+            {
+                Component c = pending.remove(pending.size() - 1);
+                if (shadowed.remove(c.getId()))
+                {
+                    byId.put(c.getId(), c);
+                }
+                List<Component> children = c.getComponents();
+                if (children != null)
+                {
+                    for (int i = children.size() - 1; i >= 0; i--)
+                    {
+                        pending.add(children.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<Class<?>> hierarchy(Class<?> type)
+    {
+        List<Class<?>> hierarchy = hierarchies.get(type);
+        if (hierarchy == null)
+        {
+            hierarchy = new ArrayList<Class<?>>();
+            for (Class<?> c = type; c != null && Component.class.isAssignableFrom(c); c = c.getSuperclass())
+            {
+                hierarchy.add(c);
+            }
+            hierarchies.put(type, hierarchy);
+        }
+        return hierarchy;
+    }
+}
@@ -0,0 +1,176 @@
+package org.neuroml2.model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neuroml2.model.utils.SIConverter;
+
+/**
+ * Columnar storage of the connections of a network, filled while streaming
+ * a document:
+ *
+ * <pre>
+ * ConnectivityStore connectivity = new ConnectivityStore(true);
+ * Neuroml2 model = reader.read(networkFile, connectivity);
+ * ProjectionColumns proj = connectivity.getProjection("SmallNet_bask_pyr");
+ * </pre>
+ *
+ * Connections are kept per projection in {@link ProjectionColumns}, instead
+ * of as Components in the model. Instances and inputs are passed on to an
+ * optional visitor.
+ */
+public class ConnectivityStore implements NetworkVisitor
+{
+
+    private final boolean offHeap;
+
+    private final NetworkVisitor others;
+
+    private final Map<String, ProjectionColumns> projections = new LinkedHashMap<String, ProjectionColumns>();
+
+    private SIConverter siConverter = null;
+
+    public ConnectivityStore()
+    {
+        this(false, null);
+    }
+
+    /**
+     * @param offHeap whether to keep the columns in direct buffers
+     */
+    public ConnectivityStore(boolean offHeap)
+    {
+        this(offHeap, null);
+    }
+
+    /**
+     * @param offHeap whether to keep the columns in direct buffers
+     * @param others receives the instances and inputs (can be null)
+     */
+    public ConnectivityStore(boolean offHeap, NetworkVisitor others)
+    {
+        this.offHeap = offHeap;
+        this.others = others;
+    }
+
+    @Override
+    public void visitInstance(NetworkElement instance) throws Exception
+    {
+        if (others != null)
+        {
+            others.visitInstance(instance);
+        }
+    }
+
+    @Override
+    public void visitInput(NetworkElement input) throws Exception
+    {
+        if (others != null)
+        {
+            others.visitInput(input);
+        }
+    }
+
+    @Override
+    public void visitConnection(NetworkElement connection) throws Exception
+    {
+        String projectionId = connection.getContainerId();
+        ProjectionColumns columns = projections.get(projectionId);
+        if (columns == null)
+        {
+            columns = new ProjectionColumns(projectionId, connection.getContainerElementName(),
+                connection.getContainerAttribute("presynapticPopulation"),
+                connection.getContainerAttribute("postsynapticPopulation"),
+                connection.getContainerAttribute("synapse"), offHeap);
+            projections.put(projectionId, columns);
+        }
+
+        // connection(WD) use preCellId/preSegmentId, the electrical and
+        // continuous variants preCell/preSegment
+        columns.add(Integer.parseInt(connection.getId()),
+            attribute(connection, "preCellId", "preCell", null),
+            attribute(connection, "postCellId", "postCell", null),
+            Integer.parseInt(attribute(connection, "preSegmentId", "preSegment", "0")),
+            Integer.parseInt(attribute(connection, "postSegmentId", "postSegment", "0")),
+            Float.parseFloat(attribute(connection, "preFractionAlong", null, "0.5")),
+            Float.parseFloat(attribute(connection, "postFractionAlong", null, "0.5")),
+            Double.parseDouble(attribute(connection, "weight", null, "1")),
+            toSI(connection.getAttribute("delay")),
+            connection.getAttribute("synapse"),
+            connection.getAttribute("preComponent"),
+            connection.getAttribute("postComponent"));
+    }
+
+    private static String attribute(NetworkElement e, String name, String altName, String defaultValue)
+    {
+        String value = e.getAttribute(name);
+        if (value == null && altName != null)
+        {
+            value = e.getAttribute(altName);
+        }
+        if (value == null)
+        {
+            if (defaultValue == null)
+            {
+                throw new IllegalArgumentException("Missing " + name + " in " + e);
+            }
+            return defaultValue;
+        }
+        return value;
+    }
+
+    private double toSI(String quantity)
+    {
+        if (quantity == null)
+        {
+            return 0;
+        }
+        if (siConverter == null)
+        {
+            try
+            {
+                siConverter = new SIConverter(NeuroML2ModelReader.getDomainDefs());
+            }
+            catch (Throwable e)
+            {
+                throw new IllegalStateException("Unable to load the NeuroML2 unit definitions", e);
+            }
+        }
+        return siConverter.toSI(quantity);
+    }
+
+    public List<ProjectionColumns> getProjections()
+    {
+        return new ArrayList<ProjectionColumns>(projections.values());
+    }
+
+    public ProjectionColumns getProjection(String id)
+    {
+        return projections.get(id);
+    }
+
+    public long getConnectionCount()
+    {
+        long count = 0;
+        for (ProjectionColumns p : projections.values())
+        {
+            count += p.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return bytes allocated for the columns of all projections
+     */
+    public long getFootprint()
+    {
+        long bytes = 0;
+        for (ProjectionColumns p : projections.values())
+        {
+            bytes += p.getFootprint();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,205 @@
+package org.neuroml2.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Which core component types refer to which others (through
+ * <code>extends</code> and the <code>type</code> of their Child, Children,
+ * ComponentReference, Attachments... declarations), read straight from the
+ * bundled LEMS sources.
+ *
+ * Used to link into a document only the core types it can actually need,
+ * instead of the whole core library. Immutable once built; persisted with
+ * the core types (see {@link CoreTypesSnapshot}), so a cold start doesn't
+ * scan the sources again.
+ */
+final class CoreTypeIndex
+{
+
+    private final Map<String, Set<String>> references;
+
+    private final Map<String, String> supertypes;
+
+    private CoreTypeIndex(Map<String, Set<String>> references, Map<String, String> supertypes)
+    {
+        this.references = references;
+        this.supertypes = supertypes;
+    }
+
+    static CoreTypeIndex build(String[] lemsDefs) throws Exception
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+        Map<String, String> supertypes = new HashMap<String, String>();
+        for (String f : lemsDefs)
+        {
+            try (InputStream input = CoreTypeIndex.class.getClassLoader().getResourceAsStream("lems/" + f))
+            {
+                if (input == null)
+                {
+                    throw new FileNotFoundException("Unable to locate LEMS definitions: lems/" + f);
+                }
+                XMLStreamReader reader = factory.createXMLStreamReader(input);
+                try
+                {
+                    scan(reader, references, supertypes);
+                }
+                finally
+                {
+                    reader.close();
+                }
+            }
+        }
+        return new CoreTypeIndex(references, supertypes);
+    }
+
+    /**
+     * Reads an index written by {@link #writeTo(DataOutputStream)}
+     */
+    static CoreTypeIndex readFrom(DataInputStream in) throws IOException
+    {
+        Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+        Map<String, String> supertypes = new HashMap<String, String>();
+        for (int i = in.readInt(); i > 0; i--)
+        {
+            String name = in.readUTF();
+            if (in.readBoolean())
+            {
+                supertypes.put(name, in.readUTF());
+            }
+            Set<String> refs = new HashSet<String>();
+            for (int r = in.readInt(); r > 0; r--)
+            {
+                refs.add(in.readUTF());
+            }
+            references.put(name, refs);
+        }
+        return new CoreTypeIndex(references, supertypes);
+    }
+
+    /**
+     * Writes the index sorted by name, so the same index always gives the
+     * same bytes
+     */
+    void writeTo(DataOutputStream out) throws IOException
+    {
+        out.writeInt(references.size());
+        for (Map.Entry<String, Set<String>> e : new TreeMap<String, Set<String>>(references).entrySet())
+        {
+            out.writeUTF(e.getKey());
+            String supertype = supertypes.get(e.getKey());
+            out.writeBoolean(supertype != null);
+            if (supertype != null)
+            {
+                out.writeUTF(supertype);
+            }
+            out.writeInt(e.getValue().size());
+            for (String ref : new TreeSet<String>(e.getValue()))
+            {
+                out.writeUTF(ref);
+            }
+        }
+    }
+
+    private static void scan(XMLStreamReader reader, Map<String, Set<String>> references,
+        Map<String, String> supertypes) throws XMLStreamException
+    {
+        Set<String> current = null;
+        int depth = 0;
+        int typeDepth = -1;
+        while (reader.hasNext())
+        {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+            {
+                depth++;
+                if (current == null && reader.getLocalName().equals("ComponentType"))
+                {
+                    String name = reader.getAttributeValue(null, "name");
+                    current = new HashSet<String>();
+                    references.put(name, current);
+                    typeDepth = depth;
+
+                    String parent = reader.getAttributeValue(null, "extends");
+                    if (parent != null)
+                    {
+                        current.add(parent);
+                        supertypes.put(name, parent);
+                    }
+                }
+                else if (current != null)
+                {
+                    String type = reader.getAttributeValue(null, "type");
+                    if (type != null)
+                    {
+                        current.add(type);
+                    }
+                }
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT)
+            {
+                if (depth == typeDepth)
+                {
+                    current = null;
+                    typeDepth = -1;
+                }
+                depth--;
+            }
+        }
+    }
+
+    boolean contains(String typeName)
+    {
+        return references.containsKey(typeName);
+    }
+
+    /**
+     * @return the type this one extends, or null
+     */
+    String getSupertype(String typeName)
+    {
+        return supertypes.get(typeName);
+    }
+
+    /**
+     * @return the names of all core types in the transitive closure of the
+     * given names (names which aren't core types are ignored)
+     */
+    Set<String> closure(Collection<String> typeNames)
+    {
+        Set<String> closure = new LinkedHashSet<String>();
+        Deque<String> pending = new ArrayDeque<String>(typeNames);
+        while (!pending.isEmpty())
+        {
+            String name = pending.pop();
+            Set<String> refs = references.get(name);
+            if (refs != null && closure.add(name))
+            {
+                pending.addAll(refs);
+            }
+        }
+        return Collections.unmodifiableSet(closure);
+    }
+}
@@ -0,0 +1,467 @@
+package org.neuroml2.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.lemsml.model.compiler.semantic.LEMSSemanticAnalyser;
+import org.lemsml.model.extended.Lems;
+
+/**
+ * Persists the NeuroML2 core types (the <code>domainDefs</code> of
+ * {@link NeuroML2ModelReader}) as a single LEMS document, so that a fresh JVM
+ * doesn't run the LEMS compiler frontend over the bundled definitions again
+ * (extracting them from the jar, resolving the includes, creating its own
+ * JAXB context). Along with the document, a snapshot holds what the reader
+ * derives from the core types: their {@link CoreTypeIndex} and the name of
+ * each top level definition. A snapshot is unmarshalled with the JAXB
+ * context of the reader, then analysed; the document bytes are kept as they
+ * are, to be copied into each model read.
+ *
+ * A snapshot is looked up first on the classpath (<code>lems/NeuroML2CoreTypes.snapshot</code>,
+ * generated by the build with {@link #main(String[])}), then in the cache
+ * directory (system property <code>neuroml2model.cacheDir</code>, defaults to
+ * <code>${user.home}/.neuroml2model</code>). The cache directory is only
+ * used if it belongs to the current user and nobody else can write to it.
+ * Snapshots are plain XML, read without external entities, and keyed by a
+ * SHA-256 checksum over the bundled LEMS sources, so editing any of them
+ * invalidates the snapshot. Setting <code>neuroml2model.snapshot=false</code>
+ * disables the mechanism altogether.
+ */
+public final class CoreTypesSnapshot
+{
+
+    static final String CLASSPATH_SNAPSHOT = "lems/NeuroML2CoreTypes.snapshot";
+
+    private static final String MAGIC = "NML2CoreTypes";
+
+    private static final int FORMAT_VERSION = 3;
+
+    private static final Logger logger = Logger.getLogger(CoreTypesSnapshot.class.getName());
+
+    private final Lems defs;
+
+    private final CoreTypeIndex typeIndex;
+
+    private final byte[] definitionsXml;
+
+    private final String[] definitionNames;
+
+    private CoreTypesSnapshot(Lems defs, CoreTypeIndex typeIndex, byte[] definitionsXml, String[] definitionNames)
+    {
+        this.defs = defs;
+        this.typeIndex = typeIndex;
+        this.definitionsXml = definitionsXml;
+        this.definitionNames = definitionNames;
+    }
+
+    /**
+     * Snapshot of freshly compiled core types: indexes the bundled sources,
+     * marshals the definitions and lists their names
+     */
+    static CoreTypesSnapshot of(Lems defs) throws Throwable
+    {
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        marshal(defs, xml);
+        byte[] definitionsXml = xml.toByteArray();
+        return new CoreTypesSnapshot(defs, CoreTypeIndex.build(NeuroML2ModelReader.nmlLemsDefs), definitionsXml,
+            componentTypeNames(definitionsXml));
+    }
+
+    /**
+     * @return the analysed core types
+     */
+    Lems getDefs()
+    {
+        return defs;
+    }
+
+    CoreTypeIndex getTypeIndex()
+    {
+        return typeIndex;
+    }
+
+    /**
+     * @return the core types as a NeuroML2 document (not to be modified)
+     */
+    byte[] getDefinitionsXml()
+    {
+        return definitionsXml;
+    }
+
+    /**
+     * @return the name of each top level element of
+     * {@link #getDefinitionsXml()}, null for those which aren't
+     * ComponentTypes (not to be modified)
+     */
+    String[] getDefinitionNames()
+    {
+        return definitionNames;
+    }
+
+    static boolean isEnabled()
+    {
+        return !"false".equalsIgnoreCase(System.getProperty("neuroml2model.snapshot"));
+    }
+
+    static File getCacheDir()
+    {
+        String dir = System.getProperty("neuroml2model.cacheDir");
+        if (dir == null)
+        {
+            return new File(System.getProperty("user.home"), ".neuroml2model");
+        }
+        return new File(dir);
+    }
+
+    /**
+     * Checksum over the LEMS definition resources, plus the version of the
+     * LEMS model library (the snapshot depends on its classes).
+     */
+    static String checksum(String[] lemsDefs) throws IOException
+    {
+        MessageDigest md;
+        try
+        {
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException(e);
+        }
+
+        byte[] bytes = new byte[8192];
+        for (String f : lemsDefs)
+        {
+            InputStream input = CoreTypesSnapshot.class.getClassLoader().getResourceAsStream("lems/" + f);
+            if (input == null)
+            {
+                throw new IOException("Unable to locate LEMS definitions: lems/" + f);
+            }
+            try
+            {
+                int read;
+                while ((read = input.read(bytes)) != -1)
+                {
+                    md.update(bytes, 0, read);
+                }
+            }
+            finally
+            {
+                input.close();
+            }
+        }
+        String libVersion = Lems.class.getPackage() == null ? null : Lems.class.getPackage().getImplementationVersion();
+        md.update(String.valueOf(libVersion).getBytes("UTF-8"));
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md.digest())
+        {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return the snapshotted core types, or null if there is no valid
+     * snapshot for this checksum
+     */
+    static CoreTypesSnapshot read(String checksum)
+    {
+        if (!isEnabled())
+        {
+            return null;
+        }
+
+        InputStream bundled = CoreTypesSnapshot.class.getClassLoader().getResourceAsStream(CLASSPATH_SNAPSHOT);
+        if (bundled != null)
+        {
+            try
+            {
+                CoreTypesSnapshot snapshot = readFrom(bundled, checksum);
+                if (snapshot != null)
+                {
+                    return snapshot;
+                }
+            }
+            catch (Throwable e)
+            {
+                logger.log(Level.WARNING, "Unable to read the bundled NeuroML2 core types snapshot", e);
+            }
+        }
+
+        File cached = getCacheFile(checksum);
+        try
+        {
+            if (cached.exists() && isPrivate(cached.getParentFile().toPath()))
+            {
+                CoreTypesSnapshot snapshot = readFrom(new FileInputStream(cached), checksum);
+                if (snapshot != null)
+                {
+                    return snapshot;
+                }
+            }
+        }
+        catch (Throwable e)
+        {
+            // stale or corrupt, replaced once the definitions are compiled
+            logger.log(Level.FINE, "Unable to read the NeuroML2 core types snapshot " + cached, e);
+        }
+        return null;
+    }
+
+    /**
+     * Best effort: if the snapshot can't be written (e.g. the cache
+     * directory isn't private) the reader just keeps compiling the
+     * definitions on first use.
+     */
+    static void write(CoreTypesSnapshot snapshot, String checksum)
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+        File target = getCacheFile(checksum);
+        try
+        {
+            Path dir = privateDir(getCacheDir().toPath());
+            // write to a temp file first, so concurrent workers never see a
+            // partially written snapshot
+            Path tmp = Files.createTempFile(dir, "NeuroML2CoreTypes", ".tmp");
+            try
+            {
+                writeTo(new FileOutputStream(tmp.toFile()), snapshot, checksum);
+                Files.move(tmp, target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally
+            {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        catch (Throwable e)
+        {
+            logger.log(Level.WARNING, "Unable to store the NeuroML2 core types snapshot in " + target, e);
+        }
+    }
+
+    static File getCacheFile(String checksum)
+    {
+        return new File(getCacheDir(), "NeuroML2CoreTypes-" + checksum + ".snapshot");
+    }
+
+    /**
+     * @return the directory, created readable by its owner only if missing
+     * @throws IOException if others could write to it
+     */
+    private static Path privateDir(Path dir) throws IOException
+    {
+        dir = dir.toAbsolutePath();
+        if (!Files.isDirectory(dir))
+        {
+            try
+            {
+                if (Files.getFileAttributeView(dir.getParent(), PosixFileAttributeView.class) != null)
+                {
+                    Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(
+                        PosixFilePermissions.fromString("rwx------")));
+                }
+                else
+                {
+                    Files.createDirectories(dir);
+                }
+            }
+            catch (FileAlreadyExistsException e)
+            {
+                // created concurrently, checked below
+            }
+        }
+        if (!isPrivate(dir))
+        {
+            throw new IOException(dir + " isn't private to " + System.getProperty("user.name"));
+        }
+        return dir;
+    }
+
+    /**
+     * @return whether the directory belongs to the current user, and only
+     * they can write to it (where file permissions are POSIX ones)
+     */
+    private static boolean isPrivate(Path dir) throws IOException
+    {
+        PosixFileAttributeView posix = Files.getFileAttributeView(dir, PosixFileAttributeView.class);
+        if (posix == null)
+        {
+            return Files.isDirectory(dir);
+        }
+        if (!Files.isDirectory(dir) || Files.isSymbolicLink(dir)
+            || !posix.getOwner().getName().equals(System.getProperty("user.name")))
+        {
+            return false;
+        }
+        Set<PosixFilePermission> permissions = posix.readAttributes().permissions();
+        return !permissions.contains(PosixFilePermission.GROUP_WRITE)
+            && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+    }
+
+    /**
+     * @return the analysed core types, or null if the snapshot was made from
+     * other definitions
+     */
+    static CoreTypesSnapshot readFrom(InputStream input, String checksum) throws Throwable
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+        try
+        {
+            if (!MAGIC.equals(in.readUTF()) || in.readInt() != FORMAT_VERSION
+                || !checksum.equals(in.readUTF()))
+            {
+                return null;
+            }
+            CoreTypeIndex typeIndex = CoreTypeIndex.readFrom(in);
+            String[] definitionNames = new String[in.readInt()];
+            for (int i = 0; i < definitionNames.length; i++)
+            {
+                definitionNames[i] = in.readBoolean() ? in.readUTF() : null;
+            }
+            byte[] definitionsXml = new byte[in.readInt()];
+            in.readFully(definitionsXml);
+
+            Neuroml2 defs = (Neuroml2) NeuroML2ModelReader.createUnmarshaller().unmarshal(
+                NeuroML2ModelReader.xmlInputFactory.createXMLStreamReader(new ByteArrayInputStream(definitionsXml)));
+            new LEMSSemanticAnalyser(defs).analyse();
+            return new CoreTypesSnapshot(defs, typeIndex, definitionsXml, definitionNames);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    static void writeTo(OutputStream output, CoreTypesSnapshot snapshot, String checksum) throws Throwable
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+        try
+        {
+            out.writeUTF(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(checksum);
+            snapshot.typeIndex.writeTo(out);
+            out.writeInt(snapshot.definitionNames.length);
+            for (String name : snapshot.definitionNames)
+            {
+                out.writeBoolean(name != null);
+                if (name != null)
+                {
+                    out.writeUTF(name);
+                }
+            }
+            out.writeInt(snapshot.definitionsXml.length);
+            out.write(snapshot.definitionsXml);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes just the definitions, as a document the reader's context knows
+     */
+    static void marshal(Lems defs, OutputStream out) throws JAXBException
+    {
+        Neuroml2 document = new Neuroml2();
+        document.getComponentTypes().addAll(defs.getComponentTypes());
+        document.getUnits().addAll(defs.getUnits());
+        document.getDimensions().addAll(defs.getDimensions());
+        document.getConstants().addAll(defs.getConstants());
+
+        Marshaller marshaller = NeuroML2ModelReader.getJAXBContext().createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+        marshaller.marshal(document, out);
+    }
+
+    /**
+     * @return the name of each top level element of the document, null for
+     * those which aren't ComponentTypes
+     */
+    private static String[] componentTypeNames(byte[] xml) throws XMLStreamException
+    {
+        List<String> names = new ArrayList<String>();
+        XMLStreamReader reader = NeuroML2ModelReader.xmlInputFactory.createXMLStreamReader(
+            new ByteArrayInputStream(xml));
+        try
+        {
+            int depth = 0;
+            while (reader.hasNext())
+            {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT)
+                {
+                    depth++;
+                    if (depth == 2)
+                    {
+                        names.add("ComponentType".equals(reader.getLocalName())
+                            ? reader.getAttributeValue(null, "name") : null);
+                    }
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT)
+                {
+                    depth--;
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Generates the snapshot bundled on the classpath, as part of the build:
+     * <code>CoreTypesSnapshot target/classes</code> writes
+     * <code>target/classes/lems/NeuroML2CoreTypes.snapshot</code>.
+     */
+    public static void main(String[] args) throws Throwable
+    {
+        File outDir = new File(args.length == 1 ? args[0] : ".");
+        File target = new File(new File(outDir, "lems"), "NeuroML2CoreTypes.snapshot");
+        if (!target.getParentFile().isDirectory() && !target.getParentFile().mkdirs())
+        {
+            throw new IOException("Unable to create " + target.getParentFile());
+        }
+
+        String checksum = checksum(NeuroML2ModelReader.nmlLemsDefs);
+        writeTo(new FileOutputStream(target), of(NeuroML2ModelReader.compileDomainDefs()), checksum);
+    }
+}
@@ -0,0 +1,555 @@
+package org.neuroml2.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Where the top level elements of a NeuroML2 document are and what they
+ * refer to, from a quick scan of its bytes: ids, types, and for each element
+ * the ids of the other top level elements it mentions in its attributes (at
+ * any depth, e.g. the ionChannel of a channelDensity).
+ *
+ * Nothing but tag and attribute names and values which could be ids is
+ * decoded, and the document is read through a fixed buffer, whatever its
+ * size. Immutable once built.
+ */
+final class DocumentScan
+{
+
+    /**
+     * A top level element of the document, as located by the scan
+     */
+    static final class Element
+    {
+        final String name;
+
+        final String id;
+
+        // the type of a <Component type="...">, what a ComponentType extends
+        final String type;
+
+        // byte offsets in the document
+        final long start;
+
+        long end;
+
+        Set<String> references = new HashSet<String>();
+
+        Element(String name, String id, String type, long start)
+        {
+            this.name = name;
+            this.id = id;
+            this.type = type;
+            this.start = start;
+        }
+    }
+
+    // always needed: they can't be asked for and may define types
+    private static final Set<String> DEFINITIONS = new HashSet<String>(Arrays.asList("ComponentType", "Unit",
+        "Dimension", "Constant", "include"));
+
+    private final String source;
+
+    // from the start of the document to the end of the root start tag
+    private long prologEnd = -1;
+
+    private String rootName = null;
+
+    private final List<Element> elements = new ArrayList<Element>();
+
+    private final Map<String, Element> byId = new HashMap<String, Element>();
+
+    // ComponentTypes defined in the document -> what they extend
+    private final Map<String, String> supertypes = new HashMap<String, String>();
+
+    /**
+     * @param content the document, read to its end (but not closed)
+     * @param source the name of the document, for errors
+     * @throws IllegalArgumentException if the document can't be scanned
+     * (malformed, or not in an ASCII compatible encoding)
+     */
+    DocumentScan(InputStream content, String source) throws IOException
+    {
+        this.source = source;
+        new Scanner(content).scan();
+        for (Element e : elements)
+        {
+            if (e.name.equals("ComponentType"))
+            {
+                supertypes.put(e.id, e.type);
+            }
+            else if (e.id != null && !isDefinition(e) && !byId.containsKey(e.id))
+            {
+                byId.put(e.id, e);
+            }
+        }
+        for (Element e : elements)
+        {
+            // only keep what is the id of another element
+            Set<String> references = new HashSet<String>();
+            for (String r : e.references)
+            {
+                Element referenced = byId.get(r);
+                if (referenced != null && referenced != e)
+                {
+                    references.add(referenced.id);
+                }
+            }
+            e.references = references;
+        }
+    }
+
+    long getPrologEnd()
+    {
+        return prologEnd;
+    }
+
+    String getRootName()
+    {
+        return rootName;
+    }
+
+    /**
+     * @return all the top level elements, in document order
+     */
+    List<Element> getElements()
+    {
+        return elements;
+    }
+
+    /**
+     * @return the element which can be asked for by this id, or null
+     */
+    Element getElement(String id)
+    {
+        return byId.get(id);
+    }
+
+    /**
+     * @return the elements which can be asked for by id (the first of
+     * duplicates), in document order
+     */
+    List<Element> getIdentified()
+    {
+        List<Element> identified = new ArrayList<Element>();
+        for (Element e : elements)
+        {
+            if (byId.get(e.id) == e)
+            {
+                identified.add(e);
+            }
+        }
+        return identified;
+    }
+
+    /**
+     * @return the elements with an id whose type is one of these or extends
+     * one of them, in document order
+     */
+    List<Element> ofType(Collection<String> typeNames)
+    {
+        List<Element> matching = new ArrayList<Element>();
+        for (Element e : elements)
+        {
+            if (byId.get(e.id) != e)
+            {
+                continue;
+            }
+            String type = e.name.equals("Component") ? e.type : e.name;
+            for (int depth = 0; type != null && depth < 100; depth++)
+            {
+                if (typeNames.contains(type))
+                {
+                    matching.add(e);
+                    break;
+                }
+                type = supertypes.containsKey(type) ? supertypes.get(type)
+                    : NeuroML2ModelReader.coreTypeIndex.getSupertype(type);
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * @return the elements and those they refer to, transitively
+     */
+    Set<Element> closure(Collection<Element> roots)
+    {
+        Set<Element> closure = new LinkedHashSet<Element>();
+        Deque<Element> pending = new ArrayDeque<Element>(roots);
+        while (!pending.isEmpty())
+        {
+            Element e = pending.pop();
+            if (closure.add(e))
+            {
+                for (String r : e.references)
+                {
+                    pending.push(byId.get(r));
+                }
+            }
+        }
+        return closure;
+    }
+
+    static boolean isDefinition(Element e)
+    {
+        return DEFINITIONS.contains(e.name) || (e.id == null && !e.name.equals("notes"));
+    }
+
+    static boolean isIdLike(String value)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+            if (!letter && (i == 0 || c < '0' || c > '9'))
+            {
+                return false;
+            }
+        }
+        return !value.isEmpty();
+    }
+
+    /**
+     * Finds the top level elements, reading the document once through a
+     * fixed buffer (so its size doesn't matter) and decoding nothing but tag
+     * and attribute names and the attribute values which could be ids (ids
+     * are ASCII, so UTF-8 and the other ASCII compatible encodings can be
+     * scanned bytewise)
+     */
+    private final class Scanner
+    {
+        private final InputStream in;
+
+        private final byte[] buffer = new byte[1 << 16];
+
+        // next byte to scan, end of the bytes read, in buffer
+        private int offset = 0;
+
+        private int limit = 0;
+
+        // position in the document of buffer[0]
+        private long base = 0;
+
+        private int depth = 0;
+
+        private Element current = null;
+
+        private final ByteArrayOutputStream text = new ByteArrayOutputStream();
+
+        Scanner(InputStream in)
+        {
+            this.in = in;
+        }
+
+        void scan() throws IOException
+        {
+            checkEncoding();
+            while (skipTo('<'))
+            {
+                long tag = position();
+                if (startsWith("<?"))
+                {
+                    skipPast("?>");
+                }
+                else if (startsWith("<!--"))
+                {
+                    skipPast("-->");
+                }
+                else if (startsWith("<![CDATA["))
+                {
+                    skipPast("]]>");
+                }
+                else if (startsWith("<!"))
+                {
+                    skipPast(">");
+                }
+                else if (startsWith("</"))
+                {
+                    skipPast(">");
+                    depth--;
+                    if (depth == 1)
+                    {
+                        current.end = position();
+                        current = null;
+                    }
+                }
+                else
+                {
+                    startTag(tag);
+                }
+            }
+            if (rootName == null)
+            {
+                throw new IllegalArgumentException(source + " has no root element");
+            }
+        }
+
+        private void checkEncoding() throws IOException
+        {
+            if (!fill(2))
+            {
+                return;
+            }
+            int b0 = buffer[0] & 0xff;
+            int b1 = buffer[1] & 0xff;
+            // a UTF-16 (or UTF-32) byte order mark, or '<' in 2 or 4 bytes
+            if ((b0 == 0xfe && b1 == 0xff) || (b0 == 0xff && b1 == 0xfe) || b0 == 0 || b1 == 0)
+            {
+                throw new IllegalArgumentException(source
+                    + " isn't in an ASCII compatible encoding (e.g. UTF-16), which can't be scanned");
+            }
+        }
+
+        private void startTag(long tag) throws IOException
+        {
+            offset++;
+            String name = name();
+            Map<String, String> attributes = new LinkedHashMap<String, String>();
+            while (true)
+            {
+                skipSpaces();
+                if (!fill(1))
+                {
+                    throw new IllegalArgumentException("Unterminated tag at byte " + tag + " of " + source);
+                }
+                byte c = buffer[offset];
+                if (c == '>' || c == '/')
+                {
+                    break;
+                }
+                String attribute = name();
+                skipSpaces();
+                expect('=', tag);
+                skipSpaces();
+                if (!fill(1) || (buffer[offset] != '"' && buffer[offset] != '\''))
+                {
+                    throw new IllegalArgumentException("Malformed attribute at byte " + tag + " of " + source);
+                }
+                String value = value(buffer[offset++], depth == 1, tag);
+                if (value != null)
+                {
+                    attributes.put(attribute, value);
+                }
+            }
+            boolean empty = buffer[offset] == '/';
+            skipPast(">");
+
+            if (depth == 0)
+            {
+                rootName = name;
+                prologEnd = position();
+            }
+            else if (depth == 1)
+            {
+                String id = attributes.get("id");
+                String type = attributes.get("type");
+                if (name.equals("ComponentType"))
+                {
+                    id = attributes.get("name");
+                    type = attributes.get("extends");
+                }
+                current = new Element(name, id, type, tag);
+                elements.add(current);
+                for (Map.Entry<String, String> a : attributes.entrySet())
+                {
+                    if (!a.getKey().equals("id") && DocumentScan.isIdLike(a.getValue()))
+                    {
+                        current.references.add(a.getValue());
+                    }
+                }
+                if (empty)
+                {
+                    current.end = position();
+                    current = null;
+                }
+            }
+            else
+            {
+                current.references.addAll(attributes.values());
+            }
+            if (!empty)
+            {
+                depth++;
+            }
+        }
+
+        private String name() throws IOException
+        {
+            text.reset();
+            while (fill(1))
+            {
+                byte c = buffer[offset];
+                if (c == '=' || c == '>' || c == '/' || c == ' ' || c == '\t' || c == '\n' || c == '\r')
+                {
+                    break;
+                }
+                text.write(c);
+                offset++;
+            }
+            return decode();
+        }
+
+        /**
+         * @param all whether to decode any value, or only those which could
+         * be ids ([a-zA-Z_][a-zA-Z0-9_]*, as NmlId)
+         * @return the value up to the closing quote, null if not decoded
+         */
+        private String value(byte quote, boolean all, long tag) throws IOException
+        {
+            text.reset();
+            boolean idLike = true;
+            int length = 0;
+            while (true)
+            {
+                if (!fill(1))
+                {
+                    throw new IllegalArgumentException("Unterminated attribute at byte " + tag + " of " + source);
+                }
+                byte c = buffer[offset++];
+                if (c == quote)
+                {
+                    break;
+                }
+                if (idLike)
+                {
+                    boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+                    idLike = letter || (length > 0 && c >= '0' && c <= '9');
+                }
+                if (all || idLike)
+                {
+                    text.write(c);
+                }
+                length++;
+            }
+            return all || (idLike && length > 0) ? decode() : null;
+        }
+
+        private String decode()
+        {
+            return new String(text.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        private void skipSpaces() throws IOException
+        {
+            while (fill(1))
+            {
+                byte c = buffer[offset];
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+                {
+                    break;
+                }
+                offset++;
+            }
+        }
+
+        private void expect(char c, long tag) throws IOException
+        {
+            if (!fill(1) || buffer[offset] != c)
+            {
+                throw new IllegalArgumentException("Missing " + c + " in the tag at byte " + tag + " of " + source);
+            }
+            offset++;
+        }
+
+        private long position()
+        {
+            return base + offset;
+        }
+
+        /**
+         * @return whether n bytes from the offset are in the buffer (false at
+         * the end of the document)
+         */
+        private boolean fill(int n) throws IOException
+        {
+            if (offset + n <= limit)
+            {
+                return true;
+            }
+            // keep what is left, at the start of the buffer
+            System.arraycopy(buffer, offset, buffer, 0, limit - offset);
+            base += offset;
+            limit -= offset;
+            offset = 0;
+            while (limit < n)
+            {
+                int read = in.read(buffer, limit, buffer.length - limit);
+                if (read < 0)
+                {
+                    return false;
+                }
+                limit += read;
+            }
+            return true;
+        }
+
+        private boolean startsWith(String prefix) throws IOException
+        {
+            if (!fill(prefix.length()))
+            {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++)
+            {
+                if (buffer[offset + i] != prefix.charAt(i))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Moves to the next occurrence of c
+         *
+         * @return false if there is none
+         */
+        private boolean skipTo(int c) throws IOException
+        {
+            while (fill(1))
+            {
+                for (; offset < limit; offset++)
+                {
+                    if (buffer[offset] == c)
+                    {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Moves past the next occurrence of the delimiter
+         */
+        private void skipPast(String delimiter) throws IOException
+        {
+            long from = position();
+            while (skipTo(delimiter.charAt(0)))
+            {
+                if (startsWith(delimiter))
+                {
+                    offset += delimiter.length();
+                    return;
+                }
+                offset++;
+            }
+            throw new IllegalArgumentException("Missing " + delimiter + " after byte " + from + " of " + source);
+        }
+    }
+}
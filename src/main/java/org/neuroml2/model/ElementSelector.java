@@ -0,0 +1,58 @@
+package org.neuroml2.model;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Drops the top level elements of a document which weren't selected,
+ * including their content, before anything is built from them. Elements
+ * are designated by their rank among the children of the root, as in
+ * {@link DocumentScan#getElements()}.
+ */
+class ElementSelector extends TransformingEventReader
+{
+
+    private final boolean[] selected;
+
+    private int depth = 0;
+
+    private int rank = -1;
+
+    private boolean dropping = false;
+
+    /**
+     * @param selected whether to keep each top level element
+     */
+    ElementSelector(XMLEventReader parent, boolean[] selected)
+    {
+        super(parent);
+        this.selected = selected;
+    }
+
+    @Override
+    protected XMLEvent transform(XMLEvent event) throws XMLStreamException
+    {
+        if (event.isStartElement())
+        {
+            depth++;
+            if (depth == 2)
+            {
+                rank++;
+                dropping = rank >= selected.length || !selected[rank];
+            }
+            return dropping ? null : event;
+        }
+        if (event.isEndElement())
+        {
+            boolean dropped = dropping;
+            if (depth == 2)
+            {
+                dropping = false;
+            }
+            depth--;
+            return dropped ? null : event;
+        }
+        return dropping ? null : event;
+    }
+}
@@ -0,0 +1,445 @@
+package org.neuroml2.model;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Passes a document on to another writer, except:
+ * <ul>
+ * <li>the elements announced by {@link #skipNextElement()}, with all their
+ * content</li>
+ * <li><code>type</code> attributes which repeat the name of their element,
+ * as the marshaller writes them for every component</li>
+ * </ul>
+ * and optionally indents it.
+ */
+class FilteringStreamWriter implements XMLStreamWriter
+{
+
+    private static final String TYPE = "type";
+
+    private final XMLStreamWriter out;
+
+    private final String indentation;
+
+    // local names of the elements written and still open
+    private final Deque<String> open = new ArrayDeque<String>();
+
+    // for each open element, whether it has child elements
+    private final Deque<Boolean> parents = new ArrayDeque<Boolean>();
+
+    private int depth = 0;
+
+    // depth of the element being skipped, if any
+    private int skipped = -1;
+
+    private boolean skipNext = false;
+
+    // an empty element was started, its attributes may still follow
+    private boolean pendingEmpty = false;
+
+    /**
+     * @param indentation spaces per level, 0 to write everything on one line
+     */
+    FilteringStreamWriter(XMLStreamWriter out, int indentation)
+    {
+        this.out = out;
+        char[] spaces = new char[indentation];
+        Arrays.fill(spaces, ' ');
+        this.indentation = new String(spaces);
+    }
+
+    /**
+     * Drops the next element started, and its content
+     */
+    void skipNextElement()
+    {
+        skipNext = true;
+    }
+
+    private boolean skipping()
+    {
+        return skipped >= 0;
+    }
+
+    /**
+     * @return whether to write the element starting
+     */
+    private boolean enter(String localName) throws XMLStreamException
+    {
+        depth++;
+        if (skipping())
+        {
+            return false;
+        }
+        if (skipNext)
+        {
+            skipNext = false;
+            skipped = depth;
+            return false;
+        }
+        if (!parents.isEmpty())
+        {
+            parents.pop();
+            parents.push(true);
+        }
+        if (depth > 1)
+        {
+            indent(depth - 1);
+        }
+        open.push(localName);
+        parents.push(false);
+        return true;
+    }
+
+    /**
+     * @return whether to write the element ending
+     */
+    private boolean exit() throws XMLStreamException
+    {
+        depth--;
+        if (skipping())
+        {
+            if (skipped == depth + 1)
+            {
+                skipped = -1;
+            }
+            return false;
+        }
+        open.pop();
+        if (parents.pop())
+        {
+            indent(depth);
+        }
+        return true;
+    }
+
+    private void indent(int level) throws XMLStreamException
+    {
+        if (indentation.isEmpty())
+        {
+            return;
+        }
+        StringBuilder s = new StringBuilder("\n");
+        for (int i = 0; i < level; i++)
+        {
+            s.append(indentation);
+        }
+        out.writeCharacters(s.toString());
+    }
+
+    @Override
+    public void writeStartElement(String localName) throws XMLStreamException
+    {
+        settle();
+        if (enter(localName))
+        {
+            out.writeStartElement(localName);
+        }
+    }
+
+    @Override
+    public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException
+    {
+        settle();
+        if (enter(localName))
+        {
+            out.writeStartElement(namespaceURI, localName);
+        }
+    }
+
+    @Override
+    public void writeStartElement(String prefix, String localName, String namespaceURI) throws XMLStreamException
+    {
+        settle();
+        if (enter(localName))
+        {
+            out.writeStartElement(prefix, localName, namespaceURI);
+        }
+    }
+
+    @Override
+    public void writeEmptyElement(String namespaceURI, String localName) throws XMLStreamException
+    {
+        settle();
+        if (enter(localName))
+        {
+            out.writeEmptyElement(namespaceURI, localName);
+        }
+        pendingEmpty = true;
+    }
+
+    @Override
+    public void writeEmptyElement(String prefix, String localName, String namespaceURI) throws XMLStreamException
+    {
+        settle();
+        if (enter(localName))
+        {
+            out.writeEmptyElement(prefix, localName, namespaceURI);
+        }
+        pendingEmpty = true;
+    }
+
+    @Override
+    public void writeEmptyElement(String localName) throws XMLStreamException
+    {
+        settle();
+        if (enter(localName))
+        {
+            out.writeEmptyElement(localName);
+        }
+        pendingEmpty = true;
+    }
+
+    /**
+     * Closes the last empty element once all its attributes were written
+     * (empty elements have no end event)
+     */
+    private void settle()
+    {
+        if (!pendingEmpty)
+        {
+            return;
+        }
+        pendingEmpty = false;
+        depth--;
+        if (skipping())
+        {
+            if (skipped == depth + 1)
+            {
+                skipped = -1;
+            }
+            return;
+        }
+        open.pop();
+        parents.pop();
+    }
+
+    @Override
+    public void writeEndElement() throws XMLStreamException
+    {
+        settle();
+        if (exit())
+        {
+            out.writeEndElement();
+        }
+    }
+
+    @Override
+    public void writeEndDocument() throws XMLStreamException
+    {
+        settle();
+        out.writeEndDocument();
+    }
+
+    @Override
+    public void close() throws XMLStreamException
+    {
+        settle();
+        out.close();
+    }
+
+    @Override
+    public void flush() throws XMLStreamException
+    {
+        settle();
+        out.flush();
+    }
+
+    private boolean isRepeatedType(String localName, String value)
+    {
+        return TYPE.equals(localName) && !open.isEmpty() && open.peek().equals(value);
+    }
+
+    @Override
+    public void writeAttribute(String localName, String value) throws XMLStreamException
+    {
+        if (!skipping() && !isRepeatedType(localName, value))
+        {
+            out.writeAttribute(localName, value);
+        }
+    }
+
+    @Override
+    public void writeAttribute(String prefix, String namespaceURI, String localName, String value)
+        throws XMLStreamException
+    {
+        boolean unqualified = namespaceURI == null || namespaceURI.isEmpty();
+        if (!skipping() && !(unqualified && isRepeatedType(localName, value)))
+        {
+            out.writeAttribute(prefix, namespaceURI, localName, value);
+        }
+    }
+
+    @Override
+    public void writeAttribute(String namespaceURI, String localName, String value) throws XMLStreamException
+    {
+        boolean unqualified = namespaceURI == null || namespaceURI.isEmpty();
+        if (!skipping() && !(unqualified && isRepeatedType(localName, value)))
+        {
+            out.writeAttribute(namespaceURI, localName, value);
+        }
+    }
+
+    @Override
+    public void writeNamespace(String prefix, String namespaceURI) throws XMLStreamException
+    {
+        if (!skipping())
+        {
+            out.writeNamespace(prefix, namespaceURI);
+        }
+    }
+
+    @Override
+    public void writeDefaultNamespace(String namespaceURI) throws XMLStreamException
+    {
+        if (!skipping())
+        {
+            out.writeDefaultNamespace(namespaceURI);
+        }
+    }
+
+    @Override
+    public void writeComment(String data) throws XMLStreamException
+    {
+        settle();
+        if (!skipping())
+        {
+            out.writeComment(data);
+        }
+    }
+
+    @Override
+    public void writeProcessingInstruction(String target) throws XMLStreamException
+    {
+        settle();
+        if (!skipping())
+        {
+            out.writeProcessingInstruction(target);
+        }
+    }
+
+    @Override
+    public void writeProcessingInstruction(String target, String data) throws XMLStreamException
+    {
+        settle();
+        if (!skipping())
+        {
+            out.writeProcessingInstruction(target, data);
+        }
+    }
+
+    @Override
+    public void writeCData(String data) throws XMLStreamException
+    {
+        settle();
+        if (!skipping())
+        {
+            out.writeCData(data);
+        }
+    }
+
+    @Override
+    public void writeDTD(String dtd) throws XMLStreamException
+    {
+        settle();
+        out.writeDTD(dtd);
+    }
+
+    @Override
+    public void writeEntityRef(String name) throws XMLStreamException
+    {
+        settle();
+        if (!skipping())
+        {
+            out.writeEntityRef(name);
+        }
+    }
+
+    @Override
+    public void writeStartDocument() throws XMLStreamException
+    {
+        out.writeStartDocument();
+    }
+
+    @Override
+    public void writeStartDocument(String version) throws XMLStreamException
+    {
+        out.writeStartDocument(version);
+    }
+
+    @Override
+    public void writeStartDocument(String encoding, String version) throws XMLStreamException
+    {
+        out.writeStartDocument(encoding, version);
+    }
+
+    @Override
+    public void writeCharacters(String text) throws XMLStreamException
+    {
+        settle();
+        if (!skipping())
+        {
+            out.writeCharacters(text);
+        }
+    }
+
+    @Override
+    public void writeCharacters(char[] text, int start, int len) throws XMLStreamException
+    {
+        settle();
+        if (!skipping())
+        {
+            out.writeCharacters(text, start, len);
+        }
+    }
+
+    @Override
+    public String getPrefix(String uri) throws XMLStreamException
+    {
+        return out.getPrefix(uri);
+    }
+
+    @Override
+    public void setPrefix(String prefix, String uri) throws XMLStreamException
+    {
+        settle();
+        if (!skipping())
+        {
+            out.setPrefix(prefix, uri);
+        }
+    }
+
+    @Override
+    public void setDefaultNamespace(String uri) throws XMLStreamException
+    {
+        settle();
+        if (!skipping())
+        {
+            out.setDefaultNamespace(uri);
+        }
+    }
+
+    @Override
+    public void setNamespaceContext(NamespaceContext context) throws XMLStreamException
+    {
+        out.setNamespaceContext(context);
+    }
+
+    @Override
+    public NamespaceContext getNamespaceContext()
+    {
+        return out.getNamespaceContext();
+    }
+
+    @Override
+    public Object getProperty(String name)
+    {
+        return out.getProperty(name);
+    }
+}
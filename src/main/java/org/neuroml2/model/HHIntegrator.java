@@ -0,0 +1,693 @@
+package org.neuroml2.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.lemsml.model.extended.Component;
+import org.lemsml.model.extended.Lems;
+import org.neuroml2.model.utils.CompiledExpression;
+import org.neuroml2.model.utils.ExpressionCompiler;
+import org.neuroml2.model.utils.SIConverter;
+
+/**
+ * Simulates single compartment cells with Hodgkin-Huxley channels, e.g. to
+ * check the behaviour of the channels of a model:
+ *
+ * <pre>
+ * HHIntegrator hh = HHIntegrator.forCell(cell, model)
+ *     .withPulse(0.1, 0.1, 0.08e-9)
+ *     .withTrace(0);
+ * HHIntegrator.Result r = hh.run(0.3, 1000); // 1000 cells, 300 ms
+ * </pre>
+ *
+ * Gates are updated with exponential Euler steps, the membrane potential
+ * with forward Euler. Steady states and decay factors of the gates are
+ * tabulated over v once per run, so a step is a few table lookups per gate
+ * and nothing is allocated while integrating. Cells are independent: they
+ * are integrated in parallel, in chunks. Everything is in SI units.
+ */
+public class HHIntegrator
+{
+
+    /**
+     * States and records of a run
+     */
+    public static class Result
+    {
+        private final double[] v;
+
+        private final int[] spikes;
+
+        private final Map<Integer, double[]> traces;
+
+        private final int steps;
+
+        private final long nanos;
+
+        Result(double[] v, int[] spikes, Map<Integer, double[]> traces, int steps, long nanos)
+        {
+            this.v = v;
+            this.spikes = spikes;
+            this.traces = traces;
+            this.steps = steps;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return the membrane potential of each cell at the end of the run
+         */
+        public double[] getV()
+        {
+            return v;
+        }
+
+        /**
+         * @return the number of upward threshold crossings of each cell
+         */
+        public int[] getSpikeCounts()
+        {
+            return spikes;
+        }
+
+        /**
+         * @return the membrane potential of a traced cell at each step,
+         * starting with its initial value
+         */
+        public double[] getTrace(int cell)
+        {
+            double[] trace = traces.get(cell);
+            if (trace == null)
+            {
+                throw new IllegalArgumentException("Cell " + cell + " wasn't traced");
+            }
+            return trace;
+        }
+
+        public int getSteps()
+        {
+            return steps;
+        }
+
+        /**
+         * @return cell time steps computed per second of wall time
+         */
+        public double getThroughput()
+        {
+            return (double) v.length * steps / (nanos / 1e9);
+        }
+    }
+
+    private static class Channel
+    {
+        final String id;
+
+        final double conductance;
+
+        final double erev;
+
+        final List<Gate> gates = new ArrayList<Gate>();
+
+        Channel(String id, double conductance, double erev)
+        {
+            this.id = id;
+            this.conductance = conductance;
+            this.erev = erev;
+        }
+    }
+
+    private static class Gate
+    {
+        final String id;
+
+        final int instances;
+
+        final Map<String, CompiledExpression> kinetics;
+
+        final double rateScale;
+
+        Gate(String id, int instances, Map<String, CompiledExpression> kinetics, double rateScale)
+        {
+            this.id = id;
+            this.instances = instances;
+            this.kinetics = kinetics;
+            this.rateScale = rateScale;
+        }
+    }
+
+    private final double capacitance;
+
+    private final double v0;
+
+    private final Map<String, Channel> channels = new LinkedHashMap<String, Channel>();
+
+    // start, end, amplitude
+    private final List<double[]> pulses = new ArrayList<double[]>();
+
+    private double dt = 1e-5;
+
+    private double vMin = -0.15;
+
+    private double vMax = 0.1;
+
+    private double deltaV = 1e-5;
+
+    private double threshold = 0;
+
+    private int[] traced = new int[0];
+
+    private ExecutorService pool = null;
+
+    /**
+     * @param capacitance of the membrane, in F
+     * @param v0 initial membrane potential, in V (gates start at their
+     * steady state)
+     */
+    public HHIntegrator(double capacitance, double v0)
+    {
+        this.capacitance = capacitance;
+        this.v0 = v0;
+    }
+
+    /**
+     * Lumps the cell into one compartment: its surface is the sum of the
+     * surfaces of its segments and every channel density applies to it
+     *
+     * @param temperature in K, for gates with q10Settings (NaN if none)
+     */
+    public static HHIntegrator forCell(Cell cell, Lems model, double temperature) throws Throwable
+    {
+        SIConverter units = new SIConverter(model);
+        double area = area(cell);
+        MembraneProperties membrane = cell.getBiophysicalProperties().getMembraneProperties();
+        double specificCapacitance = units.toSI(membrane.getSubComponentsWithName("specificCapacitance").get(0)
+            .getParameterValue("value"));
+        HHIntegrator hh = new HHIntegrator(specificCapacitance * area,
+            units.toSI(membrane.getInitMembPotential().getParameterValue("value")));
+        List<Component> thresholds = membrane.getSubComponentsWithName("spikeThresh");
+        if (!thresholds.isEmpty())
+        {
+            hh.withThreshold(units.toSI(thresholds.get(0).getParameterValue("value")));
+        }
+
+        for (ChannelDensity density : membrane.getChannelDensities())
+        {
+            BaseIonChannel ic = density.getIonChannel();
+            hh.withChannel(density.getId(), units.toSI(density.getCondDensity()) * area,
+                units.toSI(density.getErev()));
+            for (BaseGate g : ic.getAllOfType(BaseGate.class))
+            {
+                hh.withGate(density.getId(), g.getId(), instances(g),
+                    ExpressionCompiler.compileGate(g, model), rateScale(g, model, temperature));
+            }
+        }
+        return hh;
+    }
+
+    /**
+     * @return the number of instances of the gate, a plain number (parsed
+     * only if the model keeps it as text)
+     */
+    private static int instances(BaseGate g)
+    {
+        Object instances = g.getInstances();
+        if (instances instanceof Number)
+        {
+            return ((Number) instances).intValue();
+        }
+        return Integer.parseInt(String.valueOf(instances).trim());
+    }
+
+    public static HHIntegrator forCell(Cell cell, Lems model) throws Throwable
+    {
+        return forCell(cell, model, Double.NaN);
+    }
+
+    private static double rateScale(BaseGate gate, Lems model, double temperature) throws Throwable
+    {
+        for (Component c : gate.getChildren())
+        {
+            if (c.getId().equals("q10Settings"))
+            {
+                CompiledExpression q10 = ExpressionCompiler.compile(c.getScope().resolve("q10"), model, "temperature");
+                if (q10.getIndependentVariables().size() > 1)
+                {
+                    throw new IllegalArgumentException("q10 of " + gate.getId() + " depends on "
+                        + q10.getIndependentVariables());
+                }
+                double[] frame = q10.newFrame();
+                frame[0] = temperature;
+                double scale = q10.evaluateFrame(frame);
+                if (Double.isNaN(scale))
+                {
+                    throw new IllegalArgumentException("Gate " + gate.getId() + " needs a temperature");
+                }
+                return scale;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * @return the surface of the segments of the cell, in m2
+     */
+    static double area(Cell cell)
+    {
+        Map<String, Component> segments = new LinkedHashMap<String, Component>();
+        for (Component c : cell.getAllOfType(Component.class))
+        {
+            if (c.getComponentType() != null && "segment".equals(c.getComponentType().getName()))
+            {
+                segments.put(c.getId(), c);
+            }
+        }
+        double area = 0;
+        for (Component s : segments.values())
+        {
+            Component distal = s.getSubComponentsWithName("distal").get(0);
+            Component proximal = null;
+            if (!s.getSubComponentsWithName("proximal").isEmpty())
+            {
+                proximal = s.getSubComponentsWithName("proximal").get(0);
+            }
+            else if (!s.getSubComponentsWithName("parent").isEmpty())
+            {
+                Component parent = segments.get(s.getSubComponentsWithName("parent").get(0)
+                    .getParameterValue("segment"));
+                proximal = parent.getSubComponentsWithName("distal").get(0);
+            }
+            double[] d = point(distal);
+            double[] p = proximal == null ? d : point(proximal);
+            double length = Math.sqrt((d[0] - p[0]) * (d[0] - p[0]) + (d[1] - p[1]) * (d[1] - p[1])
+                + (d[2] - p[2]) * (d[2] - p[2]));
+            double r1 = p[3] / 2;
+            double r2 = d[3] / 2;
+            if (length == 0)
+            {
+                // a sphere
+                area += 4 * Math.PI * r2 * r2;
+            }
+            else
+            {
+                // side of a conical frustum
+                area += Math.PI * (r1 + r2) * Math.sqrt((r1 - r2) * (r1 - r2) + length * length);
+            }
+        }
+        return area;
+    }
+
+    // x, y, z, diameter in m (morphologies are in um)
+    private static double[] point(Component p)
+    {
+        return new double[] { Double.parseDouble(p.getParameterValue("x")) * 1e-6,
+            Double.parseDouble(p.getParameterValue("y")) * 1e-6, Double.parseDouble(p.getParameterValue("z")) * 1e-6,
+            Double.parseDouble(p.getParameterValue("diameter")) * 1e-6 };
+    }
+
+    /**
+     * @param conductance of the channels of the compartment, in S
+     * @param erev reversal potential, in V
+     */
+    public HHIntegrator withChannel(String id, double conductance, double erev)
+    {
+        channels.put(id, new Channel(id, conductance, erev));
+        return this;
+    }
+
+    /**
+     * @param kinetics compiled forwardRate/reverseRate and/or
+     * timeCourse/steadyState of the gate, functions of v, as given by
+     * {@link ExpressionCompiler#compileGate(Component, Lems)}
+     * @param rateScale q10 of the gate at the simulated temperature
+     */
+    public HHIntegrator withGate(String channel, String id, int instances, Map<String, CompiledExpression> kinetics,
+        double rateScale)
+    {
+        Channel c = channels.get(channel);
+        if (c == null)
+        {
+            throw new IllegalArgumentException("No channel " + channel);
+        }
+        boolean rates = kinetics.containsKey("forwardRate") && kinetics.containsKey("reverseRate");
+        if (!rates && !kinetics.containsKey("steadyState"))
+        {
+            throw new IllegalArgumentException("Gate " + channel + ":" + id + " has no HH kinetics");
+        }
+        for (Map.Entry<String, CompiledExpression> e : kinetics.entrySet())
+        {
+            if (!e.getValue().getIndependentVariables().equals(Arrays.asList("v")))
+            {
+                throw new IllegalArgumentException(channel + ":" + id + ":" + e.getKey() + " depends on "
+                    + e.getValue().getIndependentVariables() + ", only v is supported");
+            }
+        }
+        c.gates.add(new Gate(id, instances, kinetics, rateScale));
+        return this;
+    }
+
+    public HHIntegrator withGate(String channel, String id, int instances, Map<String, CompiledExpression> kinetics)
+    {
+        return withGate(channel, id, instances, kinetics, 1);
+    }
+
+    /**
+     * @param amplitude of the injected current, in A
+     */
+    public HHIntegrator withPulse(double delay, double duration, double amplitude)
+    {
+        pulses.add(new double[] { delay, delay + duration, amplitude });
+        return this;
+    }
+
+    /**
+     * @param pulseGenerator a pulseGenerator component
+     */
+    public HHIntegrator withPulse(Component pulseGenerator, Lems model)
+    {
+        SIConverter units = new SIConverter(model);
+        return withPulse(units.toSI(pulseGenerator.getParameterValue("delay")),
+            units.toSI(pulseGenerator.getParameterValue("duration")),
+            units.toSI(pulseGenerator.getParameterValue("amplitude")));
+    }
+
+    public HHIntegrator withTimeStep(double dt)
+    {
+        this.dt = dt;
+        return this;
+    }
+
+    /**
+     * @param deltaV spacing of the gate tables between vMin and vMax, out
+     * of which values are clamped
+     */
+    public HHIntegrator withVoltageRange(double vMin, double vMax, double deltaV)
+    {
+        this.vMin = vMin;
+        this.vMax = vMax;
+        this.deltaV = deltaV;
+        return this;
+    }
+
+    public HHIntegrator withThreshold(double threshold)
+    {
+        this.threshold = threshold;
+        return this;
+    }
+
+    /**
+     * @param cells whose membrane potential is recorded at each step
+     */
+    public HHIntegrator withTrace(int... cells)
+    {
+        this.traced = cells.clone();
+        return this;
+    }
+
+    /**
+     * @param pool used to integrate the cells (by default a pool with one
+     * thread per processor, for the duration of each run)
+     */
+    public HHIntegrator withPool(ExecutorService pool)
+    {
+        this.pool = pool;
+        return this;
+    }
+
+    public Result run(double duration, int cells) throws Throwable
+    {
+        double[] scales = new double[cells];
+        Arrays.fill(scales, 1);
+        return run(duration, scales);
+    }
+
+    /**
+     * @param scales one cell per value, which multiplies the amplitude of
+     * the pulses it receives (e.g. for f-I curves)
+     */
+    public Result run(double duration, final double[] scales) throws Throwable
+    {
+        final int steps = (int) Math.round(duration / dt);
+        final Kernel kernel = new Kernel();
+        final int n = scales.length;
+        final double[] v = new double[n];
+        final int[] spikes = new int[n];
+        final Map<Integer, double[]> traces = new LinkedHashMap<Integer, double[]>();
+        for (int c : traced)
+        {
+            if (c < 0 || c >= n)
+            {
+                throw new IllegalArgumentException("No cell " + c);
+            }
+            traces.put(c, new double[steps + 1]);
+        }
+
+        long start = System.nanoTime();
+        ExecutorService executor = pool != null ? pool
+            : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try
+        {
+            // small enough chunks for the states to stay in cache
+            int chunk = Math.max(1, Math.min(256, n / Runtime.getRuntime().availableProcessors()));
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int first = 0; first < n; first += chunk)
+            {
+                final int from = first;
+                final int to = Math.min(n, first + chunk);
+                tasks.add(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        kernel.integrate(from, to, steps, scales, v, spikes, traces);
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> done : executor.invokeAll(tasks))
+            {
+                done.get();
+            }
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause();
+        }
+        finally
+        {
+            if (executor != pool)
+            {
+                executor.shutdown();
+            }
+        }
+        return new Result(v, spikes, traces, steps, System.nanoTime() - start);
+    }
+
+    /**
+     * The flattened model: per gate tables of steady state and decay over a
+     * time step, all cells sharing them
+     */
+    private class Kernel
+    {
+        final int gates;
+
+        final double[][] inf;
+
+        final double[][] decay;
+
+        final int[] instances;
+
+        // channel of each gate, gates being grouped by channel
+        final int[] firstGate;
+
+        final double[] conductance;
+
+        final double[] erev;
+
+        final double[][] pulse;
+
+        final double tableMin;
+
+        final double tableStep;
+
+        final int tableSize;
+
+        Kernel()
+        {
+            tableMin = vMin;
+            tableStep = deltaV;
+            tableSize = (int) Math.ceil((vMax - vMin) / deltaV - 1e-9) + 1;
+            List<Gate> all = new ArrayList<Gate>();
+            conductance = new double[channels.size()];
+            erev = new double[channels.size()];
+            firstGate = new int[channels.size() + 1];
+            int i = 0;
+            for (Channel c : channels.values())
+            {
+                conductance[i] = c.conductance;
+                erev[i] = c.erev;
+                firstGate[i] = all.size();
+                all.addAll(c.gates);
+                i++;
+            }
+            firstGate[i] = all.size();
+            gates = all.size();
+            inf = new double[gates][];
+            decay = new double[gates][];
+            instances = new int[gates];
+            for (int g = 0; g < gates; g++)
+            {
+                instances[g] = all.get(g).instances;
+                tabulate(all.get(g), g);
+            }
+            pulse = pulses.toArray(new double[pulses.size()][]);
+        }
+
+        private void tabulate(Gate g, int index)
+        {
+            CompiledExpression alpha = g.kinetics.get("forwardRate");
+            CompiledExpression beta = g.kinetics.get("reverseRate");
+            CompiledExpression tau = g.kinetics.get("timeCourse");
+            CompiledExpression steady = g.kinetics.get("steadyState");
+            double[] x = new double[tableSize];
+            double[] d = new double[tableSize];
+            for (int i = 0; i < tableSize; i++)
+            {
+                double v = Math.min(tableMin + i * tableStep, vMax);
+                double a = alpha == null ? Double.NaN : alpha.evaluate(v);
+                double b = beta == null ? Double.NaN : beta.evaluate(v);
+                x[i] = steady != null ? steady.evaluate(v) : a / (a + b);
+                double t;
+                if (tau != null)
+                {
+                    t = tau.evaluate(v);
+                }
+                else if (alpha != null)
+                {
+                    t = 1 / (a + b);
+                }
+                else
+                {
+                    // instantaneous
+                    t = 0;
+                }
+                t /= g.rateScale;
+                d[i] = t > 0 ? Math.exp(-dt / t) : 0;
+            }
+            inf[index] = x;
+            decay[index] = d;
+        }
+
+        void integrate(int from, int to, int steps, double[] scales, double[] v, int[] spikes,
+            Map<Integer, double[]> traces)
+        {
+            int cells = to - from;
+            double[] vs = new double[cells];
+            double[][] x = new double[gates][cells];
+            double[][] trace = new double[cells][];
+            Arrays.fill(vs, v0);
+            for (int g = 0; g < gates; g++)
+            {
+                Arrays.fill(x[g], lookup(inf[g], v0));
+            }
+            for (int c = 0; c < cells; c++)
+            {
+                trace[c] = traces.get(from + c);
+                if (trace[c] != null)
+                {
+                    trace[c][0] = v0;
+                }
+            }
+            int[] counts = new int[cells];
+            double[] current = new double[cells];
+            int channelCount = conductance.length;
+
+            for (int step = 0; step < steps; step++)
+            {
+                double t = step * dt;
+                double injected = 0;
+                for (double[] p : pulse)
+                {
+                    if (t >= p[0] && t < p[1])
+                    {
+                        injected += p[2];
+                    }
+                }
+                Arrays.fill(current, 0);
+
+                // gates, then the currents through them
+                for (int ch = 0; ch < channelCount; ch++)
+                {
+                    double gMax = conductance[ch];
+                    double e = erev[ch];
+                    for (int c = 0; c < cells; c++)
+                    {
+                        double position = (vs[c] - tableMin) / tableStep;
+                        int i = (int) position;
+                        double w;
+                        if (position <= 0)
+                        {
+                            i = 0;
+                            w = 0;
+                        }
+                        else if (i >= tableSize - 1)
+                        {
+                            i = tableSize - 2;
+                            w = 1;
+                        }
+                        else
+                        {
+                            w = position - i;
+                        }
+                        double open = 1;
+                        for (int g = firstGate[ch]; g < firstGate[ch + 1]; g++)
+                        {
+                            double[] gi = inf[g];
+                            double[] gd = decay[g];
+                            double xi = gi[i] + w * (gi[i + 1] - gi[i]);
+                            double di = gd[i] + w * (gd[i + 1] - gd[i]);
+                            double state = xi + (x[g][c] - xi) * di;
+                            x[g][c] = state;
+                            for (int k = 0; k < instances[g]; k++)
+                            {
+                                open *= state;
+                            }
+                        }
+                        current[c] += gMax * open * (e - vs[c]);
+                    }
+                }
+
+                for (int c = 0; c < cells; c++)
+                {
+                    double before = vs[c];
+                    double after = before + dt * (current[c] + injected * scales[from + c]) / capacitance;
+                    if (before < threshold && after >= threshold)
+                    {
+                        counts[c]++;
+                    }
+                    vs[c] = after;
+                    if (trace[c] != null)
+                    {
+                        trace[c][step + 1] = after;
+                    }
+                }
+            }
+            System.arraycopy(vs, 0, v, from, cells);
+            System.arraycopy(counts, 0, spikes, from, cells);
+        }
+
+        private double lookup(double[] table, double v)
+        {
+            double position = (v - tableMin) / tableStep;
+            int i = Math.max(0, Math.min(tableSize - 2, (int) position));
+            double w = Math.max(0, Math.min(1, position - i));
+            return table[i] + w * (table[i + 1] - table[i]);
+        }
+    }
+}
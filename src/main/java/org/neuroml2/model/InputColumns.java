@@ -0,0 +1,240 @@
+package org.neuroml2.model;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * The inputs of one input list, stored column-wise like
+ * {@link ProjectionColumns}: 28 bytes per input. Targets are stored as the
+ * cell index, the rest of their path being the same for all the inputs of
+ * a list, and destinations as indexes into a table of their distinct
+ * values.
+ */
+public class InputColumns extends Columns
+{
+
+    private final String id;
+
+    private final String population;
+
+    private final String component;
+
+    private IntBuffer inputIds;
+
+    private IntBuffer targetCells;
+
+    private IntBuffer segmentIds;
+
+    private IntBuffer destinations;
+
+    private FloatBuffer fractions;
+
+    private DoubleBuffer weights;
+
+    // targets are rebuilt as prefix + index + suffix
+    private String targetPrefix = null;
+
+    private String targetSuffix = null;
+
+    // distinct destinations, and their indexes
+    private final List<String> names;
+
+    private final Map<String, Integer> nameIndexes = new HashMap<String, Integer>();
+
+    InputColumns(String id, String population, String component, boolean offHeap)
+    {
+        super(offHeap, 0);
+        this.id = id;
+        this.population = population;
+        this.component = component;
+        this.names = new ArrayList<String>();
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Wraps existing columns (e.g. mapped from a file), which must all hold
+     * at least size elements
+     */
+    InputColumns(String id, String population, String component, int size, IntBuffer[] intColumns,
+        FloatBuffer[] floatColumns, DoubleBuffer[] doubleColumns, String[] targetFormat, List<String> names)
+    {
+        super(intColumns[0].isDirect(), size);
+        this.id = id;
+        this.population = population;
+        this.component = component;
+        this.inputIds = intColumns[0];
+        this.targetCells = intColumns[1];
+        this.segmentIds = intColumns[2];
+        this.destinations = intColumns[3];
+        this.fractions = floatColumns[0];
+        this.weights = doubleColumns[0];
+        this.targetPrefix = targetFormat[0];
+        this.targetSuffix = targetFormat[1];
+        this.names = new ArrayList<String>(names);
+        for (int i = 0; i < names.size(); i++)
+        {
+            nameIndexes.put(names.get(i), i);
+        }
+    }
+
+    private void allocate(int capacity)
+    {
+        inputIds = grow(inputIds, capacity);
+        targetCells = grow(targetCells, capacity);
+        segmentIds = grow(segmentIds, capacity);
+        destinations = grow(destinations, capacity);
+        fractions = grow(fractions, capacity);
+        weights = grow(weights, capacity);
+    }
+
+    void add(int inputId, String target, String destination, int segmentId, float fraction, double weight)
+    {
+        if (size == inputIds.capacity())
+        {
+            allocate(size * 2);
+        }
+        Matcher m = matchCellId(target);
+        if (size == 0)
+        {
+            targetPrefix = m.group(1);
+            targetSuffix = m.group(3);
+        }
+        else if (!targetPrefix.equals(m.group(1)) || !targetSuffix.equals(m.group(3)))
+        {
+            throw new IllegalArgumentException("Input " + inputId + " of " + id
+                + " doesn't use the same cell path as the previous ones: " + target);
+        }
+
+        inputIds.put(size, inputId);
+        targetCells.put(size, Integer.parseInt(m.group(2)));
+        segmentIds.put(size, segmentId);
+        destinations.put(size, nameIndex(destination));
+        fractions.put(size, fraction);
+        weights.put(size, weight);
+        size++;
+    }
+
+    private int nameIndex(String name)
+    {
+        if (name == null)
+        {
+            return -1;
+        }
+        Integer index = nameIndexes.get(name);
+        if (index == null)
+        {
+            index = names.size();
+            names.add(name);
+            nameIndexes.put(name, index);
+        }
+        return index;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    public String getPopulation()
+    {
+        return population;
+    }
+
+    /**
+     * @return the input component (e.g. a pulse generator)
+     */
+    public String getComponent()
+    {
+        return component;
+    }
+
+    /**
+     * @return bytes used by the columns, as currently allocated
+     */
+    public long getFootprint()
+    {
+        return (long) inputIds.capacity() * (4 * 4 + 4 + 8);
+    }
+
+    public int getInputId(int i)
+    {
+        return inputIds.get(check(i));
+    }
+
+    public int getTargetCellIndex(int i)
+    {
+        return targetCells.get(check(i));
+    }
+
+    /**
+     * @return the cell path, as in the original <code>target</code>
+     */
+    public String getTarget(int i)
+    {
+        return targetPrefix + getTargetCellIndex(i) + targetSuffix;
+    }
+
+    public String getDestination(int i)
+    {
+        int index = destinations.get(check(i));
+        return index < 0 ? null : names.get(index);
+    }
+
+    public int getSegmentId(int i)
+    {
+        return segmentIds.get(check(i));
+    }
+
+    public float getFractionAlong(int i)
+    {
+        return fractions.get(check(i));
+    }
+
+    /**
+     * @return the weight of an inputW, 1 for plain inputs
+     */
+    public double getWeight(int i)
+    {
+        return weights.get(check(i));
+    }
+
+    @Override
+    IntBuffer[] getIntColumns()
+    {
+        return new IntBuffer[] { view(inputIds), view(targetCells), view(segmentIds), view(destinations) };
+    }
+
+    @Override
+    FloatBuffer[] getFloatColumns()
+    {
+        return new FloatBuffer[] { view(fractions) };
+    }
+
+    @Override
+    DoubleBuffer[] getDoubleColumns()
+    {
+        return new DoubleBuffer[] { view(weights) };
+    }
+
+    String[] getTargetFormat()
+    {
+        return new String[] { targetPrefix, targetSuffix };
+    }
+
+    List<String> getNames()
+    {
+        return names;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "inputList " + id + ": " + component + " -> " + population + " (" + size + " inputs)";
+    }
+}
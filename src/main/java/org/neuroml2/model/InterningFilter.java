@@ -0,0 +1,71 @@
+package org.neuroml2.model;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.neuroml2.model.utils.StringInterner;
+
+/**
+ * Replaces the attribute values of a document by their interned instances
+ * (see {@link StringInterner}) before they are unmarshalled, so that the
+ * model keeps shared strings rather than one copy per occurrence. Elements
+ * are only rebuilt when one of their values was already interned.
+ */
+class InterningFilter extends TransformingEventReader
+{
+
+    private final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+    private final StringInterner interner;
+
+    InterningFilter(XMLEventReader parent, StringInterner interner)
+    {
+        super(parent);
+        this.interner = interner;
+    }
+
+    @Override
+    protected XMLEvent transform(XMLEvent event) throws XMLStreamException
+    {
+        if (!event.isStartElement())
+        {
+            return event;
+        }
+        StartElement start = event.asStartElement();
+        List<Attribute> attributes = null;
+        int index = 0;
+        for (Iterator<?> i = start.getAttributes(); i.hasNext(); index++)
+        {
+            Attribute a = (Attribute) i.next();
+            String value = interner.intern(a.getValue());
+            if (attributes == null && value != a.getValue())
+            {
+                // copy the attributes seen so far, then rebuild the rest
+                attributes = new ArrayList<Attribute>();
+                Iterator<?> j = start.getAttributes();
+                for (int k = 0; k < index; k++)
+                {
+                    attributes.add((Attribute) j.next());
+                }
+            }
+            if (attributes != null)
+            {
+                attributes.add(value == a.getValue() ? a : eventFactory.createAttribute(a.getName(), value));
+            }
+        }
+        if (attributes == null)
+        {
+            return event;
+        }
+        eventFactory.setLocation(start.getLocation());
+        return eventFactory.createStartElement(start.getName(), attributes.iterator(), start.getNamespaces());
+    }
+}
@@ -0,0 +1,314 @@
+package org.neuroml2.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.lemsml.model.ComponentType;
+import org.lemsml.model.extended.Component;
+import org.neuroml2.model.DocumentScan.Element;
+
+/**
+ * A NeuroML2 document whose components are only unmarshalled and analysed
+ * once they are asked for:
+ *
+ * <pre>
+ * LazyNeuroml2 doc = reader.readLazily(networkFile);
+ * Cell cell = (Cell) doc.getComponentById("pyr_4_sym"); // just the cell and its channels
+ * </pre>
+ *
+ * Opening the document is a quick streamed scan of its bytes, which records
+ * where each top level element starts and ends, its id and the ids it
+ * refers to. A query then reads the elements asked for which weren't read
+ * yet, with the elements they refer to (transitively) and the definitions
+ * (ComponentTypes, Units, Dimensions... any top level element without an
+ * id), straight from their ranges in the file. So the time to the first
+ * query and the heap used depend on what is accessed, not on the size of
+ * the document.
+ *
+ * The new components are analysed on their own, then added to the model
+ * {@link #getModel()} returns (after those already there, rather than in
+ * document order), so components returned by earlier queries stay in the
+ * model. The elements referred to are read again with each increment, to
+ * resolve the references: a component's references lead to these copies,
+ * not to the components of the model with the same ids.
+ */
+public class LazyNeuroml2
+{
+
+    private final NeuroML2ModelReader reader;
+
+    private final File file;
+
+    private final DocumentScan scan;
+
+    private final Set<Element> materialized = new HashSet<Element>();
+
+    private Neuroml2 model = null;
+
+    LazyNeuroml2(NeuroML2ModelReader reader, File file) throws Throwable
+    {
+        this.reader = reader;
+        this.file = file;
+        try (InputStream in = new FileInputStream(file))
+        {
+            scan = new DocumentScan(in, file.getPath());
+        }
+    }
+
+    /**
+     * @return the ids of the top level elements of the document, in document
+     * order
+     */
+    public synchronized List<String> getIds()
+    {
+        List<String> ids = new ArrayList<String>();
+        for (Element e : scan.getIdentified())
+        {
+            ids.add(e.id);
+        }
+        return ids;
+    }
+
+    /**
+     * @return the component with this id (and materializes it), null if the
+     * document has no such top level element
+     */
+    public synchronized Component getComponentById(String id) throws Throwable
+    {
+        Element e = scan.getElement(id);
+        if (e == null)
+        {
+            return null;
+        }
+        return ComponentIndex.of(materialize(Collections.singleton(e))).getComponentById(id);
+    }
+
+    /**
+     * @return the top level components of this type or of a type extending
+     * it, e.g. baseIonChannel
+     */
+    public synchronized List<Component> getAllOfType(String typeName) throws Throwable
+    {
+        return components(scan.ofType(Collections.singleton(typeName)), Component.class);
+    }
+
+    public synchronized List<Cell> getCells() throws Throwable
+    {
+        return components(scan.ofType(Collections.singleton("cell")), Cell.class);
+    }
+
+    public synchronized List<IonChannel> getIonChannels() throws Throwable
+    {
+        return components(scan.ofType(Collections.singleton("baseIonChannel")), IonChannel.class);
+    }
+
+    /**
+     * @return the model of everything materialized so far (definitions only
+     * if nothing was asked for yet)
+     */
+    public synchronized Neuroml2 getModel() throws Throwable
+    {
+        return materialize(Collections.<Element> emptySet());
+    }
+
+    /**
+     * @return the model of the whole document
+     */
+    public synchronized Neuroml2 materializeAll() throws Throwable
+    {
+        return materialize(scan.getIdentified());
+    }
+
+    /**
+     * @return how many top level elements have been materialized
+     */
+    public synchronized int getMaterializedCount()
+    {
+        return materialized.size();
+    }
+
+    /**
+     * @return the components of the elements which are of this class, in
+     * document order
+     */
+    private <T> List<T> components(List<Element> elements, Class<T> type) throws Throwable
+    {
+        ComponentIndex index = ComponentIndex.of(materialize(elements));
+        List<T> components = new ArrayList<T>();
+        for (Element e : elements)
+        {
+            Component c = index.getComponentById(e.id);
+            if (type.isInstance(c))
+            {
+                components.add(type.cast(c));
+            }
+        }
+        return components;
+    }
+
+    /**
+     * Reads the elements and the ones they refer to, if they weren't yet,
+     * and adds them to the model
+     */
+    private Neuroml2 materialize(Collection<Element> requested) throws Throwable
+    {
+        Set<Element> fresh = scan.closure(requested);
+        fresh.removeAll(materialized);
+        if (model != null && fresh.isEmpty())
+        {
+            return model;
+        }
+
+        Neuroml2 increment = read(scan.closure(fresh));
+        if (model == null)
+        {
+            model = increment;
+        }
+        else
+        {
+            Set<String> types = new HashSet<String>();
+            for (ComponentType ct : model.getComponentTypes())
+            {
+                types.add(ct.getName());
+            }
+            ComponentIndex read = ComponentIndex.of(increment);
+            ComponentIndex index = ComponentIndex.of(model);
+            // the core types the new components need
+            for (ComponentType ct : increment.getComponentTypes())
+            {
+                if (types.add(ct.getName()))
+                {
+                    model.getComponentTypes().add(ct);
+                    if (read.isCoreDefinition(ct))
+                    {
+                        index.addCoreDefinitions(Collections.singleton(ct));
+                    }
+                }
+            }
+            for (Element e : scan.getElements())
+            {
+                if (fresh.contains(e))
+                {
+                    index.add(null, read.getComponentById(e.id));
+                }
+            }
+        }
+        materialized.addAll(fresh);
+        return model;
+    }
+
+    /**
+     * @return the model of the definitions and of these elements, read from
+     * their ranges of the file
+     */
+    private Neuroml2 read(Set<Element> elements) throws Throwable
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath()))
+        {
+            List<long[]> ranges = new ArrayList<long[]>();
+            ranges.add(new long[] { 0, scan.getPrologEnd() });
+            for (Element e : scan.getElements())
+            {
+                if (elements.contains(e) || DocumentScan.isDefinition(e))
+                {
+                    ranges.add(new long[] { e.start, e.end });
+                }
+            }
+            InputStream document = new SequenceInputStream(new Ranges(channel, ranges),
+                new ByteArrayInputStream(("</" + scan.getRootName() + ">").getBytes(StandardCharsets.UTF_8)));
+            return reader.read(NeuroML2ModelReader.xmlInputFactory.createXMLEventReader(file.toURI().toString(),
+                document), null);
+        }
+    }
+
+    /**
+     * Ranges of a file, one after the other, read in windows of the channel
+     */
+    private static class Ranges extends InputStream
+    {
+
+        private final FileChannel channel;
+
+        private final List<long[]> ranges;
+
+        private final ByteBuffer window = ByteBuffer.allocate(1 << 16);
+
+        private int range = 0;
+
+        private long position;
+
+        Ranges(FileChannel channel, List<long[]> ranges)
+        {
+            this.channel = channel;
+            this.ranges = ranges;
+            this.position = ranges.isEmpty() ? 0 : ranges.get(0)[0];
+            window.limit(0);
+        }
+
+        private boolean fill() throws IOException
+        {
+            while (!window.hasRemaining())
+            {
+                if (range == ranges.size())
+                {
+                    return false;
+                }
+                long end = ranges.get(range)[1];
+                if (position >= end)
+                {
+                    range++;
+                    position = range < ranges.size() ? ranges.get(range)[0] : 0;
+                    continue;
+                }
+                window.clear();
+                window.limit((int) Math.min(window.capacity(), end - position));
+                while (window.hasRemaining())
+                {
+                    int n = channel.read(window, position);
+                    if (n < 0)
+                    {
+                        throw new IOException("Unexpected end of file");
+                    }
+                    position += n;
+                }
+                window.flip();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return fill() ? window.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!fill())
+            {
+                return -1;
+            }
+            int n = Math.min(len, window.remaining());
+            window.get(b, off, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.neuroml2.model;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A population instance, connection or input streamed to a
+ * {@link NetworkVisitor}, together with the element containing it (the
+ * population, projection or input list).
+ */
+public class NetworkElement
+{
+
+    private final String elementName;
+
+    private final Map<String, String> attributes;
+
+    private final String containerElementName;
+
+    private final Map<String, String> containerAttributes;
+
+    NetworkElement(String elementName, Map<String, String> attributes,
+        String containerElementName, Map<String, String> containerAttributes)
+    {
+        this.elementName = elementName;
+        this.attributes = attributes;
+        this.containerElementName = containerElementName;
+        this.containerAttributes = containerAttributes;
+    }
+
+    /**
+     * @return e.g. instance, connection, connectionWD, electricalConnectionInstance, input...
+     */
+    public String getElementName()
+    {
+        return elementName;
+    }
+
+    public String getId()
+    {
+        return attributes.get("id");
+    }
+
+    public String getAttribute(String name)
+    {
+        return attributes.get(name);
+    }
+
+    public Map<String, String> getAttributes()
+    {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * @return e.g. populationList, projection, electricalProjection, inputList...
+     */
+    public String getContainerElementName()
+    {
+        return containerElementName;
+    }
+
+    public String getContainerId()
+    {
+        return containerAttributes.get("id");
+    }
+
+    /**
+     * @return an attribute of the container, e.g. presynapticPopulation or
+     * synapse for a projection
+     */
+    public String getContainerAttribute(String name)
+    {
+        return containerAttributes.get(name);
+    }
+
+    @Override
+    public String toString()
+    {
+        return containerElementName + "[" + getContainerId() + "]/" + elementName + attributes;
+    }
+}
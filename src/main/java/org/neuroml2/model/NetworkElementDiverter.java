@@ -0,0 +1,171 @@
+package org.neuroml2.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Takes population instances, connections and inputs out of a (preprocessed)
+ * document stream and hands them to a {@link NetworkVisitor} instead, so
+ * they are never unmarshalled. Everything else passes through untouched.
+ */
+class NetworkElementDiverter extends TransformingEventReader
+{
+
+    static final Set<String> CONTAINERS = new HashSet<String>(Arrays.asList(
+        "populationList", "population", "projection", "electricalProjection",
+        "continuousProjection", "inputList"));
+
+    static final Set<String> INSTANCES = new HashSet<String>(Arrays.asList("instance"));
+
+    static final Set<String> CONNECTIONS = new HashSet<String>(Arrays.asList(
+        "connection", "connectionWD",
+        "electricalConnection", "electricalConnectionInstance", "electricalConnectionInstanceW",
+        "continuousConnection", "continuousConnectionInstance", "continuousConnectionInstanceW"));
+
+    static final Set<String> INPUTS = new HashSet<String>(Arrays.asList("input", "inputW"));
+
+    private final NetworkVisitor visitor;
+
+    private final Set<String> diverted;
+
+    private int depth = 0;
+
+    private String containerName = null;
+
+    private Map<String, String> containerAttributes = null;
+
+    private int containerDepth = -1;
+
+    /**
+     * The element being diverted, if any
+     */
+    private String divertedName = null;
+
+    private Map<String, String> divertedAttributes = null;
+
+    private int divertedDepth = -1;
+
+    NetworkElementDiverter(XMLEventReader parent, NetworkVisitor visitor)
+    {
+        this(parent, visitor, null);
+    }
+
+    /**
+     * @param diverted names of the elements to divert (a subset of
+     * {@link #INSTANCES}, {@link #CONNECTIONS} and {@link #INPUTS}), null for
+     * all of them
+     */
+    NetworkElementDiverter(XMLEventReader parent, NetworkVisitor visitor, Set<String> diverted)
+    {
+        super(parent);
+        this.visitor = visitor;
+        this.diverted = diverted;
+    }
+
+    @Override
+    protected XMLEvent transform(XMLEvent event) throws XMLStreamException
+    {
+        if (event.isStartElement())
+        {
+            depth++;
+            StartElement start = event.asStartElement();
+            String name = start.getName().getLocalPart();
+
+            if (divertedName != null)
+            {
+                // e.g. the location of an instance
+                attributes(start, divertedAttributes);
+                return null;
+            }
+            if (containerName != null && depth == containerDepth + 1
+                && (INSTANCES.contains(name) || CONNECTIONS.contains(name) || INPUTS.contains(name))
+                && (diverted == null || diverted.contains(name)))
+            {
+                divertedName = name;
+                divertedAttributes = attributes(start, new HashMap<String, String>());
+                divertedDepth = depth;
+                return null;
+            }
+            if (containerName == null && CONTAINERS.contains(name))
+            {
+                containerName = name;
+                containerAttributes = attributes(start, new HashMap<String, String>());
+                containerDepth = depth;
+            }
+            return event;
+        }
+        if (event.isEndElement())
+        {
+            depth--;
+            if (divertedName != null)
+            {
+                if (depth < divertedDepth)
+                {
+                    deliver();
+                }
+                return null;
+            }
+            if (depth < containerDepth)
+            {
+                containerName = null;
+                containerAttributes = null;
+                containerDepth = -1;
+            }
+            return event;
+        }
+        return divertedName == null ? event : null;
+    }
+
+    private void deliver() throws XMLStreamException
+    {
+        NetworkElement element = new NetworkElement(divertedName, divertedAttributes,
+            containerName, containerAttributes);
+        String name = divertedName;
+        divertedName = null;
+        divertedAttributes = null;
+        divertedDepth = -1;
+        try
+        {
+            if (INSTANCES.contains(name))
+            {
+                visitor.visitInstance(element);
+            }
+            else if (CONNECTIONS.contains(name))
+            {
+                visitor.visitConnection(element);
+            }
+            else
+            {
+                visitor.visitInput(element);
+            }
+        }
+        catch (XMLStreamException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new XMLStreamException("Error visiting " + element, e);
+        }
+    }
+
+    private static Map<String, String> attributes(StartElement start, Map<String, String> into)
+    {
+        for (Iterator<?> i = start.getAttributes(); i.hasNext();)
+        {
+            Attribute a = (Attribute) i.next();
+            into.put(a.getName().getLocalPart(), a.getValue());
+        }
+        return into;
+    }
+}
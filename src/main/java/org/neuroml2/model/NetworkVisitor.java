@@ -0,0 +1,33 @@
+package org.neuroml2.model;
+
+/**
+ * Receives the bulk parts of a network (population instances, projection
+ * connections and input list inputs) when a document is read in streaming
+ * mode, see {@link NeuroML2ModelReader#read(java.io.File, NetworkVisitor)}.
+ *
+ * Elements are delivered in document order while the document is being
+ * read, i.e. before the (structural part of the) model is analysed and
+ * returned, and aren't kept anywhere once the call returns.
+ */
+public interface NetworkVisitor
+{
+
+    /**
+     * An <code>instance</code> of a <code>populationList</code>, with the
+     * coordinates of its <code>location</code> (if any) as attributes x, y, z
+     */
+    void visitInstance(NetworkElement instance) throws Exception;
+
+    /**
+     * A <code>connection</code>/<code>connectionWD</code> of a
+     * <code>projection</code>, or the connection (instance) of an electrical
+     * or continuous projection
+     */
+    void visitConnection(NetworkElement connection) throws Exception;
+
+    /**
+     * An <code>input</code>/<code>inputW</code> of an <code>inputList</code>
+     */
+    void visitInput(NetworkElement input) throws Exception;
+
+}
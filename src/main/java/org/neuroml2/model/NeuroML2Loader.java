@@ -0,0 +1,566 @@
+package org.neuroml2.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.lemsml.model.extended.Component;
+
+/**
+ * Loads a model spread over several files, following the
+ * <code>&lt;include href="..."/&gt;</code> elements of the documents:
+ *
+ * <pre>
+ * Neuroml2 model = new NeuroML2Loader(reader).load(networkFile);
+ * </pre>
+ *
+ * Files are parsed and unmarshalled in parallel on a fork-join pool, each
+ * unique file only once however many documents include it (e.g. a channel
+ * shared by several cells), while their includes are followed. The models
+ * of the files are then merged, included files first, and the merged model
+ * is analysed once, so that references across files get resolved.
+ * Identical definitions found in several files (e.g. a channel copied into
+ * the file of each cell using it) are only kept once. This only applies
+ * within one {@link #load(File...)} call: each call makes a new model, with
+ * its own analysed components, which aren't shared with the models of
+ * other calls.
+ */
+public class NeuroML2Loader
+{
+
+    private static final QName INCLUDE = new QName("include");
+
+    private static final QName HREF = new QName("href");
+
+    private static final QName ID = new QName("id");
+
+    private static final QName NAME = new QName("name");
+
+    private static volatile ForkJoinPool sharedPool = null;
+
+    private final NeuroML2ModelReader reader;
+
+    private ForkJoinPool pool = null;
+
+    private final AtomicLong sharedDefinitions = new AtomicLong();
+
+    public NeuroML2Loader(NeuroML2ModelReader reader)
+    {
+        this.reader = reader;
+    }
+
+    /**
+     * @param pool used to parse and unmarshal the files (by default a pool
+     * shared by all loaders, with one thread per processor)
+     */
+    public NeuroML2Loader withPool(ForkJoinPool pool)
+    {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * @return the number of top level elements left out so far, being
+     * identical to one already loaded
+     */
+    public long getSharedDefinitionCount()
+    {
+        return sharedDefinitions.get();
+    }
+
+    private ForkJoinPool getPool()
+    {
+        if (pool != null)
+        {
+            return pool;
+        }
+        ForkJoinPool p = sharedPool;
+        if (p == null)
+        {
+            synchronized (NeuroML2Loader.class)
+            {
+                p = sharedPool;
+                if (p == null)
+                {
+                    p = new ForkJoinPool();
+                    sharedPool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * @return the model made of the given documents and all the documents
+     * they (transitively) include
+     */
+    public Neuroml2 load(File... modelFiles) throws Throwable
+    {
+        ConcurrentMap<File, Fragment> fragments = new ConcurrentHashMap<File, Fragment>();
+        List<Fragment> roots = new ArrayList<Fragment>();
+        for (File f : modelFiles)
+        {
+            Fragment root = new Fragment(f.getCanonicalFile(), fragments);
+            Fragment existing = fragments.putIfAbsent(root.file, root);
+            roots.add(existing == null ? root : existing);
+        }
+
+        final List<ParseTask> tasks = new ArrayList<ParseTask>();
+        for (Fragment root : roots)
+        {
+            tasks.add(new ParseTask(reader, root));
+        }
+        try
+        {
+            getPool().invoke(new RecursiveAction()
+            {
+                @Override
+                protected void compute()
+                {
+                    invokeAll(tasks);
+                }
+            });
+        }
+        catch (FragmentException e)
+        {
+            throw e.getCause();
+        }
+
+        // included documents first, each one once
+        List<Fragment> ordered = new ArrayList<Fragment>();
+        Set<Fragment> visited = new HashSet<Fragment>();
+        for (Fragment root : roots)
+        {
+            order(root, fragments, visited, ordered);
+        }
+        share(ordered);
+
+        Neuroml2 merged = new Neuroml2();
+        Set<String> typeNames = new HashSet<String>();
+        for (Fragment f : ordered)
+        {
+            merged.getComponentTypes().addAll(f.model.getComponentTypes());
+            merged.getUnits().addAll(f.model.getUnits());
+            merged.getDimensions().addAll(f.model.getDimensions());
+            merged.getConstants().addAll(f.model.getConstants());
+            merged.getComponents().addAll(f.model.getComponents());
+            typeNames.addAll(f.typeNames);
+        }
+        return reader.analyse(merged, typeNames);
+    }
+
+    private static void order(Fragment fragment, ConcurrentMap<File, Fragment> fragments,
+        Set<Fragment> visited, List<Fragment> ordered)
+    {
+        if (!visited.add(fragment))
+        {
+            return;
+        }
+        for (File included : fragment.includes)
+        {
+            order(fragments.get(included), fragments, visited, ordered);
+        }
+        ordered.add(fragment);
+    }
+
+    /**
+     * Removes the named top level elements identical to one in an earlier
+     * fragment (or earlier in the same one) from the model of their
+     * fragment, as they would otherwise be defined twice
+     */
+    private void share(List<Fragment> fragments)
+    {
+        Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+        long duplicates = 0;
+        for (Fragment f : fragments)
+        {
+            List<Definition> dropped = new ArrayList<Definition>();
+            for (Definition d : f.definitions)
+            {
+                if (!seen.add(ByteBuffer.wrap(d.digest)))
+                {
+                    dropped.add(d);
+                }
+            }
+            // the last ones first, so that the ordinals of the others hold
+            for (int i = dropped.size() - 1; i >= 0; i--)
+            {
+                dropped.get(i).removeFrom(f.model);
+            }
+            duplicates += dropped.size();
+        }
+        sharedDefinitions.addAndGet(duplicates);
+    }
+
+    /**
+     * A named top level element of a fragment: what finds it in the model of
+     * the fragment, and a digest of its content ignoring whitespace,
+     * comments and the order of attributes. Only the digests are compared:
+     * equal SHA-256 digests are taken for equal content.
+     */
+    private static class Definition
+    {
+
+        // element name, e.g. ComponentType or ionChannelHH
+        final String kind;
+
+        // its id or name
+        final String key;
+
+        // among the definitions of the same kind (ComponentTypes, Units...)
+        // or among the components with the same id
+        final int ordinal;
+
+        final byte[] digest;
+
+        Definition(String kind, String key, int ordinal, byte[] digest)
+        {
+            this.kind = kind;
+            this.key = key;
+            this.ordinal = ordinal;
+            this.digest = digest;
+        }
+
+        static boolean isDefinitionKind(String kind)
+        {
+            return "ComponentType".equals(kind) || "Unit".equals(kind) || "Dimension".equals(kind)
+                || "Constant".equals(kind);
+        }
+
+        void removeFrom(Neuroml2 model)
+        {
+            if (isDefinitionKind(kind))
+            {
+                List<?> definitions = "ComponentType".equals(kind) ? model.getComponentTypes()
+                    : "Unit".equals(kind) ? model.getUnits()
+                    : "Dimension".equals(kind) ? model.getDimensions() : model.getConstants();
+                definitions.remove(ordinal);
+                return;
+            }
+            int seen = 0;
+            for (Iterator<Component> i = model.getComponents().iterator(); i.hasNext();)
+            {
+                if (key.equals(i.next().getId()) && seen++ == ordinal)
+                {
+                    i.remove();
+                    return;
+                }
+            }
+        }
+
+        static boolean isSignificant(XMLEvent e)
+        {
+            return e.isStartElement() || e.isEndElement() || (e.isCharacters() && !e.asCharacters().isWhiteSpace());
+        }
+
+        /**
+         * Writes the event to the digest, in a form which is the same for
+         * events with the same meaning
+         */
+        static void update(DataOutputStream digest, XMLEvent e) throws IOException
+        {
+            if (e.isStartElement())
+            {
+                StartElement start = e.asStartElement();
+                digest.writeByte('S');
+                write(digest, start.getName().toString());
+                // whatever the order of the attributes
+                Map<String, String> attributes = new TreeMap<String, String>();
+                for (Iterator<?> i = start.getAttributes(); i.hasNext();)
+                {
+                    Attribute a = (Attribute) i.next();
+                    attributes.put(a.getName().toString(), a.getValue());
+                }
+                digest.writeInt(attributes.size());
+                for (Map.Entry<String, String> a : attributes.entrySet())
+                {
+                    write(digest, a.getKey());
+                    write(digest, a.getValue());
+                }
+            }
+            else if (e.isEndElement())
+            {
+                digest.writeByte('E');
+                write(digest, e.asEndElement().getName().toString());
+            }
+            else
+            {
+                digest.writeByte('C');
+                write(digest, e.asCharacters().getData().trim());
+            }
+        }
+
+        private static void write(DataOutputStream digest, String s) throws IOException
+        {
+            digest.writeInt(s.length());
+            digest.writeChars(s);
+        }
+    }
+
+    /**
+     * One file: what it includes, the type names it refers to, its named top
+     * level elements and its (not analysed) model, without the includes
+     */
+    private static class Fragment
+    {
+
+        final File file;
+
+        final ConcurrentMap<File, Fragment> fragments;
+
+        final Set<File> includes = new LinkedHashSet<File>();
+
+        final List<Definition> definitions = new ArrayList<Definition>();
+
+        Set<String> typeNames;
+
+        Neuroml2 model;
+
+        Fragment(File file, ConcurrentMap<File, Fragment> fragments)
+        {
+            this.file = file;
+            this.fragments = fragments;
+        }
+
+        void parse(NeuroML2ModelReader reader) throws Throwable
+        {
+            InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+            try
+            {
+                NeuroML2Preprocessor preprocessed = new NeuroML2Preprocessor(
+                    NeuroML2ModelReader.xmlInputFactory.createXMLEventReader(file.toURI().toString(), in));
+                model = reader.unmarshal(new Scanner(preprocessed));
+                typeNames = preprocessed.getTypeNames();
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        private File resolve(String href) throws IOException
+        {
+            URI uri = file.toURI().resolve(href);
+            if (!"file".equals(uri.getScheme()))
+            {
+                throw new IOException("Only local files can be included: " + href + " in " + file);
+            }
+            return new File(uri).getCanonicalFile();
+        }
+
+        /**
+         * Records the includes and digests the named top level elements of
+         * the file on their way to the unmarshaller, and drops the includes
+         */
+        private class Scanner extends TransformingEventReader
+        {
+
+            private final MessageDigest md;
+
+            private final DataOutputStream digest;
+
+            // definitions of each kind, components with each id
+            private final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+
+            private int depth = 0;
+
+            private boolean including = false;
+
+            // the named top level element being read, if any
+            private String kind = null;
+
+            private String key = null;
+
+            Scanner(XMLEventReader preprocessed) throws NoSuchAlgorithmException
+            {
+                super(preprocessed);
+                md = MessageDigest.getInstance("SHA-256");
+                digest = new DataOutputStream(new BufferedOutputStream(
+                    new DigestOutputStream(new NullOutputStream(), md), 1 << 12));
+            }
+
+            @Override
+            protected XMLEvent transform(XMLEvent e) throws XMLStreamException
+            {
+                if (e.isStartElement())
+                {
+                    depth++;
+                    if (depth == 2)
+                    {
+                        StartElement start = e.asStartElement();
+                        Attribute href = start.getAttributeByName(HREF);
+                        Attribute name = start.getAttributeByName(ID) != null ? start.getAttributeByName(ID)
+                            : start.getAttributeByName(NAME);
+                        if (INCLUDE.equals(start.getName()) && href != null)
+                        {
+                            try
+                            {
+                                includes.add(resolve(href.getValue()));
+                            }
+                            catch (IOException ex)
+                            {
+                                throw new XMLStreamException(ex.getMessage(), e.getLocation(), ex);
+                            }
+                            including = true;
+                        }
+                        else if (name != null)
+                        {
+                            kind = start.getName().getLocalPart();
+                            key = name.getValue();
+                            md.reset();
+                        }
+                    }
+                }
+                boolean kept = !including;
+                if (kind != null && Definition.isSignificant(e))
+                {
+                    try
+                    {
+                        Definition.update(digest, e);
+                    }
+                    catch (IOException ex)
+                    {
+                        throw new XMLStreamException(ex);
+                    }
+                }
+                if (e.isEndElement())
+                {
+                    if (depth == 2)
+                    {
+                        if (kind != null)
+                        {
+                            definitions.add(new Definition(kind, key, ordinal(), digest()));
+                            kind = null;
+                        }
+                        including = false;
+                    }
+                    depth--;
+                }
+                return kept ? e : null;
+            }
+
+            private int ordinal()
+            {
+                String counted = Definition.isDefinitionKind(kind) ? kind : "#" + key;
+                Integer n = ordinals.get(counted);
+                int ordinal = n == null ? 0 : n;
+                ordinals.put(counted, ordinal + 1);
+                return ordinal;
+            }
+
+            private byte[] digest() throws XMLStreamException
+            {
+                try
+                {
+                    digest.flush();
+                }
+                catch (IOException ex)
+                {
+                    throw new XMLStreamException(ex);
+                }
+                return md.digest();
+            }
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream
+    {
+
+        @Override
+        public void write(int b)
+        {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    }
+
+    private static class ParseTask extends RecursiveAction
+    {
+
+        private final NeuroML2ModelReader reader;
+
+        private final Fragment fragment;
+
+        ParseTask(NeuroML2ModelReader reader, Fragment fragment)
+        {
+            this.reader = reader;
+            this.fragment = fragment;
+        }
+
+        @Override
+        protected void compute()
+        {
+            try
+            {
+                fragment.parse(reader);
+            }
+            catch (Throwable t)
+            {
+                throw new FragmentException(new IOException("Error reading " + fragment.file, t));
+            }
+
+            // whoever first registers an included file parses it
+            List<ParseTask> included = new ArrayList<ParseTask>();
+            for (File f : fragment.includes)
+            {
+                Fragment child = new Fragment(f, fragment.fragments);
+                if (fragment.fragments.putIfAbsent(f, child) == null)
+                {
+                    included.add(new ParseTask(reader, child));
+                }
+            }
+            invokeAll(included);
+        }
+    }
+
+    private static class FragmentException extends RuntimeException
+    {
+
+        private static final long serialVersionUID = 1L;
+
+        FragmentException(IOException cause)
+        {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause()
+        {
+            return (IOException) super.getCause();
+        }
+    }
+}
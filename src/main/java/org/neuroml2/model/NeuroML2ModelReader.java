@@ -1,22 +1,37 @@
 package org.neuroml2.model;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.StringReader;
-import java.nio.file.Paths;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+
 import org.lemsml.exprparser.utils.UndefinedSymbolException;
 
+import org.lemsml.model.ComponentType;
 import org.lemsml.model.compiler.LEMSCompilerFrontend;
-import org.lemsml.model.compiler.parser.XMLUtils;
 import org.lemsml.model.compiler.semantic.LEMSSemanticAnalyser;
 import org.lemsml.model.exceptions.LEMSCompilerException;
 import org.lemsml.model.extended.Component;
@@ -24,11 +39,22 @@ import org.lemsml.model.extended.ExtObjectFactory;
 import org.lemsml.model.extended.Lems;
 
 import org.neuroml2.model.utils.FunctionNodeHelper;
-
+import org.neuroml2.model.utils.LRUCache;
+import org.neuroml2.model.utils.StringInterner;
+
+/**
+ * Reads NeuroML2 documents into the generated {@link Neuroml2} domain model.
+ *
+ * Instances are thread safe: the core type definitions and the JAXB context
+ * are initialised once per JVM and shared (documents are linked to analysed
+ * copies of the core definitions, never used by two analyses at once),
+ * unmarshallers are kept per thread. A single reader can (and should) be
+ * shared by all threads reading documents concurrently.
+ */
 public class NeuroML2ModelReader
 {
 
-    private final String[] nmlLemsDefs = new String[]
+    static final String[] nmlLemsDefs = new String[]
     {
         "NeuroML2CoreTypes.xml",
         "NeuroMLCoreCompTypes.xml",
@@ -42,245 +68,708 @@ public class NeuroML2ModelReader
         "Synapses.xml"
     };
 
-    static Lems domainDefs = null;
+    private static volatile Lems domainDefs = null;
+
+    static volatile CoreTypeIndex coreTypeIndex = null;
+
+    // the core definitions as XML, copied into each document read
+    private static volatile byte[] coreDefinitionsXml = null;
+
+    // name of each top level element of coreDefinitionsXml, null if it
+    // isn't a ComponentType
+    private static volatile String[] coreDefinitionNames = null;
+
+    // analysed copies of the core definitions, by closure (all of them for
+    // ALL_CORE_TYPES)
+    private static final LRUCache<Set<String>, CoreLayers> coreLayers = new LRUCache<Set<String>, CoreLayers>(256);
+
+    private static final Set<String> ALL_CORE_TYPES = Collections.singleton("*");
+
+    private static final AtomicLong coreAnalysisCount = new AtomicLong();
+
+    private static volatile JAXBContext jaxbContext = null;
+
+    /**
+     * Unmarshallers aren't thread safe, but are cheap compared to the
+     * context and can be reused for consecutive reads on the same thread
+     */
+    private static final ThreadLocal<Unmarshaller> jaxbUnmarshallers = new ThreadLocal<Unmarshaller>();
+
+    static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+    static
+    {
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private boolean coreTypePruning = true;
+
+    private LRUCache<String, Neuroml2> cache = null;
 
-    private final Unmarshaller jaxbUnmarshaller_ = null;
+    // component type names to keep, null to keep everything
+    private Set<String> selection = null;
+
+    // null not to intern
+    private StringInterner interner = null;
 
     public NeuroML2ModelReader() throws Throwable
     {
-        if (domainDefs == null)
+        getDomainDefs();
+    }
+
+    /**
+     * By default a document is only linked to the core component types it
+     * (transitively) refers to, so that the whole core library isn't walked
+     * by the analysis of every read. Disabling this links all ~215 core
+     * types into every document, as earlier versions did.
+     */
+    public NeuroML2ModelReader withCoreTypePruning(boolean pruning)
+    {
+        this.coreTypePruning = pruning;
+        return this;
+    }
+
+    /**
+     * Keeps analysed models in the given cache, keyed by a SHA-256 hash of
+     * the document, so that reading a byte-identical document again (with
+     * {@link #read(File)} or {@link #read(String)}) returns the model
+     * already built instead of transforming, unmarshalling and analysing it
+     * again. Entries weigh the size of the document in bytes, e.g.
+     * <code>new LRUCache&lt;String, Neuroml2&gt;(64 &lt;&lt; 20)</code> holds
+     * the models of up to 64MB of documents. The cache can be shared by
+     * several readers.
+     *
+     * Cached models are shared by all callers reading the same document:
+     * they must be treated as read only, and their {@link ComponentIndex}
+     * refuses changes.
+     */
+    public NeuroML2ModelReader withCache(LRUCache<String, Neuroml2> cache)
+    {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Only reads the top level components of the given types or of types
+     * extending them (e.g. <code>baseIonChannel</code> for all ion
+     * channels), the components they refer to (transitively, e.g. the
+     * channels of a cell) and the definitions (ComponentTypes, Units...).
+     * Everything else is dropped from the XML stream, so it is never
+     * unmarshalled nor analysed. Finding what to keep takes a quick scan of
+     * the document before it is parsed (so documents read from a stream are
+     * first copied to a temporary file). The scan requires an ASCII
+     * compatible encoding such as UTF-8: UTF-16 documents are rejected.
+     *
+     * @param typeNames component type names, none to read everything
+     */
+    public NeuroML2ModelReader withSelection(String... typeNames)
+    {
+        this.selection = typeNames.length == 0 ? null
+            : Collections.unmodifiableSet(new TreeSet<String>(Arrays.asList(typeNames)));
+        return this;
+    }
+
+    /**
+     * @param types generated classes, e.g. <code>BaseIonChannel.class</code>
+     * @see #withSelection(String...)
+     */
+    public NeuroML2ModelReader withSelection(Class<?>... types)
+    {
+        String[] typeNames = new String[types.length];
+        for (int i = 0; i < types.length; i++)
         {
-            // Currently the LEMS parser requires these to be actual files 
-            // => can't read them from jar...
-            java.nio.file.Path tempLemsDir = Files.createTempDirectory("lemsNml2Definitions");
-            File coreTypes = null;
-            for (String f : nmlLemsDefs)
+            if (!Component.class.isAssignableFrom(types[i]))
             {
-                InputStream input = NeuroML2ModelReader.class.getClassLoader().getResourceAsStream("lems/" + f);
-                File fout = new File(tempLemsDir.toFile(), f);
-                if (f.equals("NeuroML2CoreTypes.xml"))
+                throw new IllegalArgumentException(types[i] + " isn't a component class");
+            }
+            // BaseIonChannel is generated from baseIonChannel
+            String name = types[i].getSimpleName();
+            typeNames[i] = Character.toLowerCase(name.charAt(0)) + name.substring(1);
+        }
+        return withSelection(typeNames);
+    }
+
+    /**
+     * Interns attribute values (parameters, ids, references...) while
+     * documents are read, so equal values share one instance within and
+     * across models, e.g. with {@link StringInterner#shared()}. Only the
+     * strings are shared, not the quantities or components built from them.
+     * Off by default: it rebuilds the start elements with repeated values,
+     * which only pays off when many models are kept in memory.
+     *
+     * @param interner null not to intern values (the default)
+     */
+    public NeuroML2ModelReader withInterning(StringInterner interner)
+    {
+        this.interner = interner;
+        return this;
+    }
+
+    public LRUCache<String, Neuroml2> getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * @return the compiled core types (read only), of which the documents
+     * read get analysed copies
+     */
+    public static List<ComponentType> getCoreTypes() throws Throwable
+    {
+        return Collections.unmodifiableList(getDomainDefs().getComponentTypes());
+    }
+
+    static Lems getDomainDefs() throws Throwable
+    {
+        Lems defs = domainDefs;
+        if (defs == null)
+        {
+            synchronized (NeuroML2ModelReader.class)
+            {
+                defs = domainDefs;
+                if (defs == null)
                 {
-                    coreTypes = fout;
+                    // Compiling the ~215 core types is by far the most expensive
+                    // step of a cold start, so try a persisted snapshot first:
+                    // it also holds their index and serialized form
+                    String checksum = CoreTypesSnapshot.checksum(nmlLemsDefs);
+                    CoreTypesSnapshot snapshot = CoreTypesSnapshot.read(checksum);
+                    if (snapshot == null)
+                    {
+                        snapshot = CoreTypesSnapshot.of(compileDomainDefs());
+                        CoreTypesSnapshot.write(snapshot, checksum);
+                    }
+                    coreTypeIndex = snapshot.getTypeIndex();
+                    coreDefinitionsXml = snapshot.getDefinitionsXml();
+                    coreDefinitionNames = snapshot.getDefinitionNames();
+                    defs = snapshot.getDefs();
+                    domainDefs = defs;
                 }
-                OutputStream out = new FileOutputStream(fout);
+            }
+        }
+        return defs;
+    }
 
-                int read;
-                byte[] bytes = new byte[1024];
-                while ((read = input.read(bytes)) != -1)
+    static Lems compileDomainDefs() throws Throwable
+    {
+        return compileDomainDefs(NeuroML2ModelReader.class.getClassLoader());
+    }
+
+    static Lems compileDomainDefs(ClassLoader loader) throws Throwable
+    {
+        // Currently the LEMS parser requires these to be actual files, so
+        // use them in place when the resources are on the file system...
+        URL coreTypesUrl = loader.getResource("lems/" + nmlLemsDefs[0]);
+        if (coreTypesUrl == null)
+        {
+            throw new FileNotFoundException("Unable to locate LEMS definitions: lems/" + nmlLemsDefs[0]);
+        }
+        if ("file".equals(coreTypesUrl.getProtocol()))
+        {
+            return new LEMSCompilerFrontend(new File(coreTypesUrl.toURI()))
+                .generateLEMSDocument();
+        }
+
+        // ...otherwise (e.g. inside a jar) extract them once, and clean up
+        // as soon as they have been compiled
+        java.nio.file.Path tempLemsDir = Files.createTempDirectory("lemsNml2Definitions");
+        try
+        {
+            for (String f : nmlLemsDefs)
+            {
+                try (InputStream input = loader.getResourceAsStream("lems/" + f))
                 {
-                    out.write(bytes, 0, read);
+                    if (input == null)
+                    {
+                        throw new FileNotFoundException("Unable to locate LEMS definitions: lems/" + f);
+                    }
+                    Files.copy(input, tempLemsDir.resolve(f));
                 }
             }
 
-            domainDefs = new LEMSCompilerFrontend(coreTypes)
+            return new LEMSCompilerFrontend(tempLemsDir.resolve(nmlLemsDefs[0]).toFile())
                 .generateLEMSDocument();
         }
+        finally
+        {
+            for (String f : nmlLemsDefs)
+            {
+                Files.deleteIfExists(tempLemsDir.resolve(f));
+            }
+            Files.deleteIfExists(tempLemsDir);
+        }
     }
 
-    private Unmarshaller getUnmarshaller() throws JAXBException
+    static JAXBContext getJAXBContext() throws JAXBException
     {
-        if (jaxbUnmarshaller_ != null)
+        JAXBContext ctx = jaxbContext;
+        if (ctx == null)
         {
-            return jaxbUnmarshaller_;
+            synchronized (NeuroML2ModelReader.class)
+            {
+                ctx = jaxbContext;
+                if (ctx == null)
+                {
+                    ctx = com.sun.xml.bind.v2.runtime.JAXBContextImpl.newInstance("org.neuroml2.model");
+                    jaxbContext = ctx;
+                }
+            }
         }
+        return ctx;
+    }
 
-        com.sun.xml.bind.v2.ContextFactory cf;
-        ExtObjectFactory objFactory = new ExtObjectFactory();
+    private static Unmarshaller getUnmarshaller() throws JAXBException
+    {
+        Unmarshaller jaxbUnmarshaller = jaxbUnmarshallers.get();
+        if (jaxbUnmarshaller != null)
+        {
+            return jaxbUnmarshaller;
+        }
 
-        JAXBContext jaxbContext = com.sun.xml.bind.v2.runtime.JAXBContextImpl.newInstance("org.neuroml2.model");
-        Unmarshaller jaxbUnmarshaller = jaxbContext.createUnmarshaller();
+        jaxbUnmarshaller = createUnmarshaller();
+        jaxbUnmarshallers.set(jaxbUnmarshaller);
+        return jaxbUnmarshaller;
+    }
 
-        jaxbUnmarshaller.setProperty("com.sun.xml.bind.ObjectFactory", objFactory);
+    static Unmarshaller createUnmarshaller() throws JAXBException
+    {
+        ExtObjectFactory objFactory = new ExtObjectFactory();
+
+        Unmarshaller jaxbUnmarshaller = getJAXBContext().createUnmarshaller();
 
         //use the factory for extended LEMS types
+        jaxbUnmarshaller.setProperty("com.sun.xml.bind.ObjectFactory", objFactory);
         return jaxbUnmarshaller;
     }
 
     public Neuroml2 read(File modelFile) throws Throwable
     {
-        /*
-        TODO: replace this with call to read_() below??
-         */
-
-        Unmarshaller jun = getUnmarshaller();
-
-        //Adds the correct namespace to ComponentType defs inside nml
-        File nsXSLT = getLocalFile("lems/addLemsNS.xslt");
-        File kludge71XSLT = getLocalFile("lems/jLEMS_issue71_workaround.xslt");
-        File transformed = XMLUtils.transform(modelFile, nsXSLT);
-        transformed = XMLUtils.transform(transformed, kludge71XSLT);
-
-        Neuroml2 model = (Neuroml2) jun.unmarshal(transformed);
-
-        // TODO: ideal way of doing that?
-        model.getComponentTypes().addAll(domainDefs.getComponentTypes());
-        model.getUnits().addAll(domainDefs.getUnits());
-        model.getConstants().addAll(domainDefs.getConstants());
-        model.getDimensions().addAll(domainDefs.getDimensions());
-        new LEMSSemanticAnalyser(model).analyse();
+        if (cache != null)
+        {
+            byte[] content = Files.readAllBytes(modelFile.toPath());
+            boolean[] selected = select(new ByteArrayInputStream(content), modelFile.getPath());
+            return readCached(content, select(xmlInputFactory.createXMLEventReader(modelFile.toURI().toString(),
+                new ByteArrayInputStream(content)), selected));
+        }
+        return read(modelFile, null);
+    }
 
-        return model;
+    /**
+     * Streaming read: population instances, connections and inputs are
+     * passed to the visitor as they are parsed instead of being added to the
+     * model, so memory use is bounded by the structural part of the
+     * document (cells, channels, synapses...) however big the network is.
+     * The returned model has the populations, projections and input lists,
+     * but without their content.
+     */
+    public Neuroml2 read(File modelFile, NetworkVisitor visitor) throws Throwable
+    {
+        boolean[] selected = null;
+        if (selection != null)
+        {
+            // scanned in a first pass, streamed too
+            try (InputStream content = new FileInputStream(modelFile))
+            {
+                selected = select(content, modelFile.getPath());
+            }
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(modelFile), 1 << 16);
+        try
+        {
+            return read(select(xmlInputFactory.createXMLEventReader(modelFile.toURI().toString(), in), selected),
+                visitor);
+        }
+        finally
+        {
+            in.close();
+        }
     }
 
     /**
-     * This method will read in the file and use the read(String) method to
-     * parse it. Note: it also substitutes
-     * <neuroml xmlns="http://www.neuroml.org/schema/neuroml2" ...> for
-     * <neuroml2>
+     * Same as {@link #read(File)}, which now also accepts documents with a
+     * <neuroml xmlns="http://www.neuroml.org/schema/neuroml2" ...> root.
+     * Kept for compatibility.
      */
     public Neuroml2 read_(File modelFile) throws Throwable
     {
+        return read(modelFile);
+    }
 
-        String contents = new String(Files.readAllBytes(Paths.get(modelFile.getAbsolutePath())));
-
-        return read(contents);
+    /**
+     * @return the document, whose components are only read once asked for
+     * (see {@link LazyNeuroml2})
+     */
+    public LazyNeuroml2 readLazily(File modelFile) throws Throwable
+    {
+        return new LazyNeuroml2(this, modelFile);
     }
 
     public Neuroml2 read(String modelXml) throws Throwable
     {
+        byte[] content = null;
+        if (cache != null || selection != null)
+        {
+            content = modelXml.getBytes(StandardCharsets.UTF_8);
+        }
+        boolean[] selected = content == null ? null : select(new ByteArrayInputStream(content), "document");
+        XMLEventReader source = select(xmlInputFactory.createXMLEventReader(new StringReader(modelXml)), selected);
+        if (cache != null)
+        {
+            return readCached(content, source);
+        }
+        return read(source, null);
+    }
 
-        if (modelXml.contains("<neuroml"))
+    /**
+     * @param content what identifies the document
+     * @param source the document, only read on a cache miss
+     */
+    private Neuroml2 readCached(byte[] content, XMLEventReader source) throws Throwable
+    {
+        String key = contentKey(content);
+        Neuroml2 model = cache.get(key);
+        if (model == null)
         {
-            int s = modelXml.indexOf("<neuroml");
-            int b1 = modelXml.indexOf(">", s);
-            modelXml = modelXml.substring(0, s) + "<neuroml2>" + modelXml.substring(b1 + 1);
+            // concurrent misses on the same document may both read it, the
+            // last one wins
+            model = read(source, null);
+            ComponentIndex.of(model).setReadOnly();
+            cache.put(key, model, content.length);
         }
-        if (modelXml.contains("</neuroml"))
+        else
         {
-            int s = modelXml.indexOf("</neuroml");
-            int b1 = modelXml.indexOf(">", s);
-            modelXml = modelXml.substring(0, s) + "</neuroml2>" + modelXml.substring(b1 + 1);
+            source.close();
         }
+        return model;
+    }
 
-        Unmarshaller jaxbUnmarshaller = getUnmarshaller();
+    private String contentKey(byte[] content) throws NoSuchAlgorithmException
+    {
+        StringBuilder key = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(content))
+        {
+            key.append(String.format("%02x", b));
+        }
+        // the same document isn't linked the same way without pruning
+        if (!coreTypePruning)
+        {
+            key.append("+allCoreTypes");
+        }
+        if (selection != null)
+        {
+            key.append("+").append(selection);
+        }
+        return key.toString();
+    }
 
-        //Adds the correct namespace to ComponentType defs inside nml
-        File nsXSLT = getLocalFile("lems/addLemsNS.xslt");
-        File kludge71XSLT = getLocalFile("lems/jLEMS_issue71_workaround.xslt");
-        String transformed = XMLUtils.transform(modelXml, nsXSLT);
-        transformed = XMLUtils.transform(transformed, kludge71XSLT);
+    public Neuroml2 read(InputStream modelStream) throws Throwable
+    {
+        return read(modelStream, null);
+    }
 
-        StringReader reader = new StringReader(transformed);
-        Neuroml2 model = (Neuroml2) jaxbUnmarshaller.unmarshal(reader);
+    /**
+     * @see #read(File, NetworkVisitor)
+     */
+    public Neuroml2 read(InputStream modelStream, NetworkVisitor visitor) throws Throwable
+    {
+        if (selection != null)
+        {
+            // scanned before being parsed, so kept in a temporary file
+            // rather than in memory
+            java.nio.file.Path spooled = Files.createTempFile("neuroml2model", ".nml");
+            try
+            {
+                Files.copy(modelStream, spooled, StandardCopyOption.REPLACE_EXISTING);
+                return read(spooled.toFile(), visitor);
+            }
+            finally
+            {
+                Files.deleteIfExists(spooled);
+            }
+        }
+        return read(xmlInputFactory.createXMLEventReader(modelStream), visitor);
+    }
 
-        // TODO: ideal way of doing that?
-        model.getComponentTypes().addAll(domainDefs.getComponentTypes());
-        model.getUnits().addAll(domainDefs.getUnits());
-        model.getConstants().addAll(domainDefs.getConstants());
-        model.getDimensions().addAll(domainDefs.getDimensions());
-        try
+    /**
+     * @param content the document, scanned to find what to keep
+     * @return whether to keep each top level element, null if there's no
+     * selection
+     */
+    private boolean[] select(InputStream content, String name) throws IOException
+    {
+        if (selection == null)
         {
-            new LEMSSemanticAnalyser(model).analyse();
+            return null;
         }
-        catch (Exception e)
+        DocumentScan scan = new DocumentScan(content, name);
+        Set<DocumentScan.Element> kept = scan.closure(scan.ofType(selection));
+        List<DocumentScan.Element> elements = scan.getElements();
+        boolean[] selected = new boolean[elements.size()];
+        for (int i = 0; i < selected.length; i++)
         {
-            e.printStackTrace();
-            throw new Exception("Error with LEMSSemanticAnalyser...", e);
+            selected[i] = kept.contains(elements.get(i)) || DocumentScan.isDefinition(elements.get(i));
         }
+        return selected;
+    }
 
-        return model;
+    /**
+     * @return source without the elements which weren't selected
+     */
+    private static XMLEventReader select(XMLEventReader source, boolean[] selected)
+    {
+        return selected == null ? source : new ElementSelector(source, selected);
+    }
 
+    /**
+     * The document is preprocessed (see {@link NeuroML2Preprocessor}) while
+     * it streams into the unmarshaller, so no intermediate copies of it are
+     * made.
+     *
+     * @param visitor if not null, receives the bulk network elements instead
+     * of the model
+     */
+    Neuroml2 read(XMLEventReader source, NetworkVisitor visitor) throws Throwable
+    {
+        NeuroML2Preprocessor preprocessed = new NeuroML2Preprocessor(source);
+        XMLEventReader events = preprocessed;
+        if (visitor != null)
+        {
+            events = new NetworkElementDiverter(preprocessed, visitor);
+        }
+        return readPreprocessed(events, preprocessed.getTypeNames());
     }
 
-    private static File getLocalFile(String name) throws IOException
+    /**
+     * @param events an already preprocessed document
+     * @param typeNames component type names the document refers to (only
+     * complete once events have been consumed)
+     */
+    Neuroml2 readPreprocessed(XMLEventReader events, Set<String> typeNames) throws Throwable
     {
-        File f = null;
+        return analyse(unmarshal(events), typeNames);
+    }
 
-        String path = NeuroML2ModelReader.class.getClassLoader().getResource(name).toExternalForm();
-        if (path.startsWith("file:/"))
+    /**
+     * @param events an already preprocessed document, closed once read
+     * @return the model of the document, not analysed
+     */
+    Neuroml2 unmarshal(XMLEventReader events) throws Throwable
+    {
+        if (interner != null)
+        {
+            events = new InterningFilter(events, interner);
+        }
+        try
         {
-            path = path.substring(5);
-            f = new File(path);
+            return (Neuroml2) getUnmarshaller().unmarshal(events);
         }
-        else if (path.startsWith("jar:"))
+        finally
         {
-            InputStream input = NeuroML2ModelReader.class.getClassLoader().getResourceAsStream(name);
-            f = File.createTempFile(name.replaceAll("/", "_"), ".tmp");
-            f.deleteOnExit();
-            OutputStream out = new FileOutputStream(f);
-            int read;
-            byte[] bytes = new byte[1024];
-            while ((read = input.read(bytes)) != -1)
+            events.close();
+        }
+    }
+
+    /**
+     * Links the analysed core definitions the document needs into it, then
+     * analyses and indexes it. Documents needing the same core types share
+     * the same analysed definitions, see {@link CoreLayers}.
+     *
+     * @param typeNames component type names the document refers to
+     */
+    Neuroml2 analyse(Neuroml2 model, Set<String> typeNames) throws Throwable
+    {
+        CoreLayers layers = coreLayers(coreTypePruning ? coreTypeIndex.closure(typeNames) : ALL_CORE_TYPES);
+        Neuroml2 core = layers.acquire();
+        try
+        {
+            model.getComponentTypes().addAll(core.getComponentTypes());
+            model.getUnits().addAll(core.getUnits());
+            model.getConstants().addAll(core.getConstants());
+            model.getDimensions().addAll(core.getDimensions());
+            try
             {
-                out.write(bytes, 0, read);
+                new LEMSSemanticAnalyser(model).analyse();
             }
-            f.deleteOnExit();
-
+            catch (Exception e)
+            {
+                e.printStackTrace();
+                throw new Exception("Error with LEMSSemanticAnalyser...", e);
+            }
+        }
+        finally
+        {
+            layers.release(core);
         }
+        ComponentIndex index = ComponentIndex.of(model);
+        index.addCoreDefinitions(core.getComponentTypes());
+        index.addCoreDefinitions(core.getUnits());
+        index.addCoreDefinitions(core.getConstants());
+        index.addCoreDefinitions(core.getDimensions());
+
+        return model;
+    }
 
-        if (!f.exists())
+    private static CoreLayers coreLayers(Set<String> closure)
+    {
+        synchronized (coreLayers)
         {
-            throw new FileNotFoundException("Unable to locate: " + f.getAbsolutePath());
+            CoreLayers layers = coreLayers.get(closure);
+            if (layers == null)
+            {
+                layers = new CoreLayers(closure);
+                coreLayers.put(closure, layers);
+            }
+            return layers;
         }
-        return f;
     }
 
-    public static String extractInfo(File nmlFile) throws Throwable
+    /**
+     * @return how many copies of the core definitions have been analysed
+     */
+    static long getCoreAnalysisCount()
     {
-        NeuroML2ModelReader nmlr;
+        return coreAnalysisCount.get();
+    }
 
-        //System.out.println("Opening file: " + nmlFile.getCanonicalPath());
-        nmlr = new NeuroML2ModelReader();
-        Neuroml2 nml2Doc = nmlr.read_(nmlFile);
+    /**
+     * Analysed copies of the core definitions in a closure, linked into the
+     * documents which need those types. The core definitions are analysed
+     * once per copy rather than once per document.
+     *
+     * The LEMS analyser has no way of resolving a document against an
+     * already analysed scope: it walks the definitions linked into the
+     * document again (which leaves them as they were), and isn't safe to run
+     * concurrently on the same objects. So a copy is only used by one
+     * analysis at a time, and concurrent analyses get copies of their own,
+     * up to one per processor.
+     */
+    private static final class CoreLayers
+    {
+        private static final int MAX_COPIES = Runtime.getRuntime().availableProcessors();
 
-        String info = "";
+        // the types to copy, ALL_CORE_TYPES for all of them
+        private final Set<String> closure;
 
-        for (IonChannelHH ic : nml2Doc.getAllOfType(IonChannelHH.class))
+        private final List<Neuroml2> free = new ArrayList<Neuroml2>();
+
+        private int copies = 0;
+
+        CoreLayers(Set<String> closure)
         {
-            //System.out.println("Ion channel: "+ic);
-            for (BaseGate g : ic.getAllOfType(BaseGate.class))
-            {
-                info+=extractFromGate(g, ic.getId(), nml2Doc);
-            }
+            this.closure = closure;
         }
 
-        for (IonChannel ic : nml2Doc.getAllOfType(IonChannel.class))
+        /**
+         * @return a copy no other analysis uses, made if there is none free
+         * and there are fewer than MAX_COPIES
+         */
+        Neuroml2 acquire() throws Throwable
         {
-            //System.out.println("Ion channel: "+ic);
-            for (BaseGate g : ic.getAllOfType(BaseGate.class))
+            synchronized (this)
             {
-                info+=extractFromGate(g, ic.getId(), nml2Doc);
+                while (free.isEmpty() && copies >= MAX_COPIES)
+                {
+                    wait();
+                }
+                if (!free.isEmpty())
+                {
+                    return free.remove(free.size() - 1);
+                }
+                copies++;
+            }
+            boolean made = false;
+            try
+            {
+                Neuroml2 core = copyDomainDefs(closure == ALL_CORE_TYPES ? null : closure);
+                new LEMSSemanticAnalyser(core).analyse();
+                coreAnalysisCount.incrementAndGet();
+                made = true;
+                return core;
+            }
+            finally
+            {
+                if (!made)
+                {
+                    synchronized (this)
+                    {
+                        copies--;
+                        notify();
+                    }
+                }
             }
         }
-        return info;
 
+        synchronized void release(Neuroml2 core)
+        {
+            free.add(core);
+            notify();
+        }
     }
-    
-    private static String extractFromGate(BaseGate g, String parentId, Neuroml2 nml2Doc) throws LEMSCompilerException, UndefinedSymbolException
+
+    /**
+     * @param typeNames the component types to copy, null for all of them
+     * @return a fresh (not analysed) copy of the core definitions,
+     * unmarshalled from their XML form
+     */
+    private static Neuroml2 copyDomainDefs(Set<String> typeNames) throws Throwable
     {
-        String info = "";
-        String preg = parentId + ":gate " + g.getId();
-        //System.out.println("Gate: "+g);
-        info += preg + ":instances = " + g.getInstances() + "\n";
-        for (Component c : g.getChildren())
+        XMLEventReader events = xmlInputFactory.createXMLEventReader(new ByteArrayInputStream(coreDefinitionsXml));
+        if (typeNames != null)
         {
-            if (c.getId().equals("forwardRate"))
+            String[] names = coreDefinitionNames;
+            boolean[] selected = new boolean[names.length];
+            for (int i = 0; i < names.length; i++)
             {
-                String exp = FunctionNodeHelper.processExpression(c.getScope().resolve("r"), nml2Doc);
-                info += preg + ":forward rate = " + exp + "\n";
-
+                selected[i] = names[i] == null || typeNames.contains(names[i]);
             }
-            if (c.getId().equals("reverseRate"))
-            {
-                String exp = FunctionNodeHelper.processExpression(c.getScope().resolve("r"), nml2Doc);
-                info += preg + ":reverse rate = " + exp + "\n";
+            events = new ElementSelector(events, selected);
+        }
+        try
+        {
+            return (Neuroml2) getUnmarshaller().unmarshal(events);
+        }
+        finally
+        {
+            events.close();
+        }
+    }
 
-            }
-            if (c.getId().equals("timeCourse"))
-            {
-                String exp = FunctionNodeHelper.processExpression(c.getScope().resolve("t"), nml2Doc);
-                info += preg + ":time course = " + exp + "\n";
+    /**
+     * @return the kinetics of all the gates of the file, as text: those of
+     * the ionChannelHH channels, then those of the ionChannel ones (see
+     * {@link ChannelKinetics} for the structured version, which covers all
+     * ion channels in document order)
+     */
+    public static String extractInfo(File nmlFile) throws Throwable
+    {
+        StringBuilder info = new StringBuilder();
+        for (ChannelKinetics.GateKinetics g : infoExtractor().extract(nmlFile, INFO_CHANNELS))
+        {
+            info.append(g);
+        }
+        return info.toString();
+    }
 
-            }
-            if (c.getId().equals("steadyState"))
-            {
-                String exp = FunctionNodeHelper.processExpression(c.getScope().resolve("x"), nml2Doc);
-                info += preg + ":steady state = " + exp + "\n";
+    private static volatile ChannelKinetics infoExtractor = null;
+
+    private static final List<Class<? extends BaseIonChannel>> INFO_CHANNELS = Arrays
+        .<Class<? extends BaseIonChannel>> asList(IonChannelHH.class, IonChannel.class);
 
+    // one reader for all the extractions
+    private static ChannelKinetics infoExtractor() throws Throwable
+    {
+        if (infoExtractor == null)
+        {
+            synchronized (NeuroML2ModelReader.class)
+            {
+                if (infoExtractor == null)
+                {
+                    infoExtractor = new ChannelKinetics(new NeuroML2ModelReader()
+                        .withSelection(BaseIonChannel.class));
+                }
             }
         }
-        return info;
-        
+        return infoExtractor;
     }
 
     public static void main(String[] args)
@@ -0,0 +1,213 @@
+package org.neuroml2.model;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.lemsml.model.ComponentReference;
+import org.lemsml.model.ComponentType;
+import org.lemsml.model.extended.Component;
+import org.lemsml.model.extended.Lems;
+
+/**
+ * Writes models back to NeuroML2 documents, which {@link NeuroML2ModelReader}
+ * can read:
+ *
+ * <pre>
+ * new NeuroML2ModelWriter().write(model, out);
+ * new NeuroML2ModelWriter().write(model, Arrays.asList(cell), out); // the cell and what it refers to
+ * </pre>
+ *
+ * The model is marshalled straight to a StAX writer, so the document is
+ * never held in memory, whatever its size. What reading added to the model
+ * is left out on the way, without changing the model:
+ * <ul>
+ * <li>the core component types, units, dimensions and constants</li>
+ * <li>the components referenced components were resolved to (e.g. the ion
+ * channel of a channel density), the reference itself being written</li>
+ * <li>type attributes which just repeat the element name</li>
+ * </ul>
+ * Instances are thread safe.
+ */
+public class NeuroML2ModelWriter
+{
+
+    private static final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+
+    private int indentation = 4;
+
+    public NeuroML2ModelWriter() throws Throwable
+    {
+        NeuroML2ModelReader.getDomainDefs();
+    }
+
+    /**
+     * @param spaces per level (4 by default), 0 to write the document on one
+     * line
+     */
+    public NeuroML2ModelWriter withIndentation(int spaces)
+    {
+        this.indentation = spaces;
+        return this;
+    }
+
+    public void write(Neuroml2 model, File file) throws Throwable
+    {
+        try (OutputStream out = new FileOutputStream(file))
+        {
+            write(model, out);
+        }
+    }
+
+    public void write(Neuroml2 model, OutputStream out) throws Throwable
+    {
+        write(model, null, out);
+    }
+
+    /**
+     * @param selection top level components to write along with the
+     * components they refer to (transitively) and the definitions of the
+     * document, null for all
+     */
+    public void write(Neuroml2 model, Collection<? extends Component> selection, OutputStream out)
+        throws Throwable
+    {
+        final Set<Object> skipped = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        // the copies of the core definitions the reader linked in, or the
+        // shared ones for models assembled by hand
+        Lems defs = NeuroML2ModelReader.getDomainDefs();
+        ComponentIndex index = ComponentIndex.of(model);
+        for (List<?> definitions : Arrays.asList(model.getComponentTypes(), model.getUnits(),
+            model.getDimensions(), model.getConstants()))
+        {
+            for (Object d : definitions)
+            {
+                if (index.isCoreDefinition(d))
+                {
+                    skipped.add(d);
+                }
+            }
+        }
+        skipped.addAll(defs.getComponentTypes());
+        skipped.addAll(defs.getUnits());
+        skipped.addAll(defs.getDimensions());
+        skipped.addAll(defs.getConstants());
+        if (selection != null)
+        {
+            Set<Component> kept = closure(model, selection);
+            for (Component c : model.getComponents())
+            {
+                if (!kept.contains(c))
+                {
+                    skipped.add(c);
+                }
+            }
+        }
+
+        BufferedOutputStream buffered = new BufferedOutputStream(out, 1 << 16);
+        XMLStreamWriter xml = xmlOutputFactory.createXMLStreamWriter(buffered, "UTF-8");
+        final FilteringStreamWriter filter = new FilteringStreamWriter(xml, indentation);
+        // only holds the resolved references of the components being written
+        final Set<Object> dereferenced = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+        Marshaller marshaller = NeuroML2ModelReader.getJAXBContext().createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+        marshaller.setListener(new Marshaller.Listener()
+        {
+            // called before the start tag of the object is written
+            @Override
+            public void beforeMarshal(Object source)
+            {
+                if (skipped.contains(source) || dereferenced.contains(source))
+                {
+                    filter.skipNextElement();
+                }
+                else if (source instanceof Component)
+                {
+                    dereferenced.addAll(dereferenced((Component) source));
+                }
+            }
+
+            @Override
+            public void afterMarshal(Object source)
+            {
+                dereferenced.remove(source);
+            }
+        });
+
+        filter.writeStartDocument("UTF-8", "1.0");
+        filter.writeCharacters("\n");
+        marshaller.marshal(model, filter);
+        filter.writeCharacters("\n");
+        filter.writeEndDocument();
+        filter.flush();
+        buffered.flush();
+    }
+
+    /**
+     * @return the components the references of the component were resolved
+     * to
+     */
+    private static List<Component> dereferenced(Component c)
+    {
+        List<Component> dereferenced = new ArrayList<Component>();
+        ComponentType type = c.getComponentType();
+        if (type != null && type.getComponentReferences() != null)
+        {
+            for (ComponentReference ref : type.getComponentReferences())
+            {
+                dereferenced.addAll(c.getSubComponentsBoundToName(ref.getName()));
+            }
+        }
+        return dereferenced;
+    }
+
+    /**
+     * @return the selected top level components and those they refer to
+     */
+    private static Set<Component> closure(Neuroml2 model, Collection<? extends Component> selection)
+    {
+        ComponentIndex index = ComponentIndex.of(model);
+        Set<Component> closure = Collections.newSetFromMap(new IdentityHashMap<Component, Boolean>());
+        List<Component> pending = new ArrayList<Component>(selection);
+        List<Component> descendants = new ArrayList<Component>();
+        while (!pending.isEmpty())
+        {
+            Component top = pending.remove(pending.size() - 1);
+            if (!closure.add(top))
+            {
+                continue;
+            }
+            descendants.add(top);
+            while (!descendants.isEmpty())
+            {
+                Component c = descendants.remove(descendants.size() - 1);
+                for (Component referenced : dereferenced(c))
+                {
+                    Component target = index.getComponentById(referenced.getId());
+                    if (target != null)
+                    {
+                        pending.add(target);
+                    }
+                }
+                if (c.getComponents() != null)
+                {
+                    descendants.addAll(c.getComponents());
+                }
+            }
+        }
+        return closure;
+    }
+}
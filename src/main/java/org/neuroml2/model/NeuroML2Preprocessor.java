@@ -0,0 +1,189 @@
+package org.neuroml2.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Rewrites a NeuroML2 document, while it is being parsed, into the form the
+ * generated JAXB classes expect. In a single pass this:
+ * <ul>
+ * <li>renames the <code>&lt;neuroml xmlns="http://www.neuroml.org/schema/neuroml2" ...&gt;</code>
+ * root to <code>&lt;neuroml2&gt;</code> and drops the NeuroML namespace from
+ * all elements</li>
+ * <li>moves <code>ComponentType</code> definitions, including their
+ * content, into the LEMS namespace</li>
+ * <li>renames <code>gate[@type]</code> and <code>population[@type]</code> to
+ * the value of their type attribute</li>
+ * </ul>
+ */
+class NeuroML2Preprocessor extends TransformingEventReader
+{
+
+    static final String NEUROML2_NS = "http://www.neuroml.org/schema/neuroml2";
+
+    static final String LEMS_NS = "http://www.neuroml.org/lems/0.9.0";
+
+    static final String ROOT = "neuroml2";
+
+    private static final QName TYPE = new QName("type");
+
+    private static final QName EXTENDS = new QName("extends");
+
+    private final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+    /**
+     * Names of the currently open elements as they were emitted, so end tags
+     * can be renamed consistently
+     */
+    private final Deque<QName> openElements = new ArrayDeque<QName>();
+
+    /**
+     * Depth of the ComponentType definition being copied, if any
+     */
+    private int componentTypeDepth = -1;
+
+    /**
+     * Element names and type/extends values seen, i.e. every component type
+     * name the document may refer to
+     */
+    private final Set<String> typeNames = new HashSet<String>();
+
+    NeuroML2Preprocessor(XMLEventReader parent)
+    {
+        super(parent);
+    }
+
+    @Override
+    protected XMLEvent transform(XMLEvent event) throws XMLStreamException
+    {
+        if (event.isStartElement())
+        {
+            StartElement start = event.asStartElement();
+            StartElement renamed = rename(start);
+            openElements.push(renamed.getName());
+            collectTypeNames(renamed);
+            return renamed;
+        }
+        if (event.isEndElement())
+        {
+            EndElement end = event.asEndElement();
+            QName name = openElements.pop();
+            if (openElements.size() == componentTypeDepth)
+            {
+                componentTypeDepth = -1;
+            }
+            if (name.equals(end.getName()))
+            {
+                return end;
+            }
+            eventFactory.setLocation(end.getLocation());
+            return eventFactory.createEndElement(name, null);
+        }
+        return event;
+    }
+
+    private void collectTypeNames(StartElement start)
+    {
+        typeNames.add(start.getName().getLocalPart());
+        Attribute type = start.getAttributeByName(TYPE);
+        if (type != null)
+        {
+            typeNames.add(type.getValue());
+        }
+        Attribute parent = start.getAttributeByName(EXTENDS);
+        if (parent != null)
+        {
+            typeNames.add(parent.getValue());
+        }
+    }
+
+    Set<String> getTypeNames()
+    {
+        return typeNames;
+    }
+
+    private StartElement rename(StartElement start)
+    {
+        QName name = start.getName();
+        String localName = name.getLocalPart();
+        boolean neuromlNS = NEUROML2_NS.equals(name.getNamespaceURI());
+
+        if (openElements.isEmpty() && (localName.equals("neuroml") || localName.equals(ROOT)))
+        {
+            eventFactory.setLocation(start.getLocation());
+            return eventFactory.createStartElement(new QName(ROOT), null, null);
+        }
+        if (componentTypeDepth < 0 && localName.equals("ComponentType"))
+        {
+            componentTypeDepth = openElements.size();
+            if (!LEMS_NS.equals(name.getNamespaceURI()))
+            {
+                // declare the namespace too, for whoever serializes the events
+                List<Namespace> namespaces = otherNamespaces(start);
+                namespaces.add(eventFactory.createNamespace(LEMS_NS));
+                eventFactory.setLocation(start.getLocation());
+                return eventFactory.createStartElement(new QName(LEMS_NS, localName),
+                    start.getAttributes(), namespaces.iterator());
+            }
+        }
+        if (componentTypeDepth >= 0)
+        {
+            if (neuromlNS || name.getNamespaceURI() == null || name.getNamespaceURI().isEmpty())
+            {
+                return copy(start, new QName(LEMS_NS, localName));
+            }
+            return start;
+        }
+        if (localName.equals("gate") || localName.equals("population"))
+        {
+            Attribute type = start.getAttributeByName(TYPE);
+            if (type != null)
+            {
+                return copy(start, new QName(type.getValue()));
+            }
+        }
+        if (neuromlNS)
+        {
+            return copy(start, new QName(localName));
+        }
+        return start;
+    }
+
+    private StartElement copy(StartElement start, QName name)
+    {
+        eventFactory.setLocation(start.getLocation());
+        return eventFactory.createStartElement(name, start.getAttributes(), otherNamespaces(start).iterator());
+    }
+
+    /**
+     * Namespace declarations, minus the NeuroML one we are removing
+     */
+    private static List<Namespace> otherNamespaces(StartElement start)
+    {
+        List<Namespace> namespaces = new ArrayList<Namespace>();
+        for (Iterator<?> i = start.getNamespaces(); i.hasNext();)
+        {
+            Namespace ns = (Namespace) i.next();
+            if (!NEUROML2_NS.equals(ns.getNamespaceURI()))
+            {
+                namespaces.add(ns);
+            }
+        }
+        return namespaces;
+    }
+}
@@ -0,0 +1,687 @@
+package org.neuroml2.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+
+/**
+ * Compact binary snapshot of a NeuroML2 document, for models that are
+ * opened over and over again.
+ *
+ * The bulk of a large network, the instances of its populations, the
+ * connections of its projections and the inputs of its input lists, is
+ * stored column-wise (see {@link PopulationColumns},
+ * {@link ProjectionColumns} and {@link InputColumns}) and memory mapped when
+ * the snapshot is opened: nothing is parsed and the OS only pages in the
+ * columns actually accessed. The rest of the document (cells, channels, the
+ * population, projection and input list elements themselves...) is kept as
+ * XML and only read and analysed the first time {@link #getModel()} is
+ * called: that is a parse and semantic analysis of the structural part, on
+ * each snapshot opened, whose cost no longer grows with the network.
+ *
+ * <pre>
+ * NeuroML2Snapshot.write(networkFile, snapshotFile); // once
+ * NeuroML2Snapshot snapshot = NeuroML2Snapshot.open(snapshotFile); // milliseconds
+ * ProjectionColumns proj = snapshot.getProjection("SmallNet_bask_pyr");
+ * </pre>
+ *
+ * Layout (little endian): magic, version, offset and length of the
+ * structural XML, offset and length of the header, the structural XML, then
+ * the header: for each projection, then each population, then each input
+ * list, its metadata (including the names its elements refer to), its size
+ * and the offset of its columns. The columns of a table are stored one
+ * after the other: the int columns, the float columns, padding to 8 bytes,
+ * the double columns (8/2/2 for a projection, 1/3/0 for a population, 4/1/1
+ * for an input list).
+ */
+public class NeuroML2Snapshot implements Closeable
+{
+
+    private static final byte[] MAGIC = new byte[] { 'N', 'M', 'L', '2', 'S', 'N', 'A', 'P' };
+
+    private static final int FORMAT_VERSION = 4;
+
+    private static final int PREAMBLE_LENGTH = MAGIC.length + 4 + 8 + 8 + 8 + 4;
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final long structuralOffset;
+
+    private final long structuralLength;
+
+    private final Map<String, ProjectionColumns> projections = new LinkedHashMap<String, ProjectionColumns>();
+
+    private final Map<String, PopulationColumns> populations = new LinkedHashMap<String, PopulationColumns>();
+
+    private final Map<String, InputColumns> inputLists = new LinkedHashMap<String, InputColumns>();
+
+    private Neuroml2 model = null;
+
+    private NeuroML2Snapshot(RandomAccessFile file, long structuralOffset, long structuralLength)
+    {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.structuralOffset = structuralOffset;
+        this.structuralLength = structuralLength;
+    }
+
+    /**
+     * Reads a NeuroML2 document (streaming, see
+     * {@link NeuroML2ModelReader#read(File, NetworkVisitor)}) and writes its
+     * snapshot. The structural XML goes straight to the snapshot file, so
+     * neither it nor the document is held in memory.
+     */
+    public static void write(File modelFile, File snapshotFile) throws Throwable
+    {
+        BulkStore bulk = new BulkStore();
+        RandomAccessFile raf = new RandomAccessFile(snapshotFile, "rw");
+        try
+        {
+            raf.setLength(0);
+            FileChannel ch = raf.getChannel();
+            // the preamble is written last: until then the file has no
+            // magic, so a partial snapshot is never taken for a valid one
+            ch.position(PREAMBLE_LENGTH);
+            long structuralLength = writeStructural(modelFile, ch, bulk);
+
+            List<Columns> tables = bulk.getTables();
+            long headerOffset = PREAMBLE_LENGTH + structuralLength;
+            byte[] header = header(bulk, columnOffsets(tables, headerOffset, 0));
+            long[] columnOffsets = columnOffsets(tables, headerOffset, header.length);
+            header = header(bulk, columnOffsets);
+
+            write(ch, ByteBuffer.wrap(header), headerOffset);
+            for (int i = 0; i < tables.size(); i++)
+            {
+                writeColumns(ch, tables.get(i), columnOffsets[i]);
+            }
+            write(ch, preamble(structuralLength, headerOffset, header.length), 0);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the document without its instances, connections and inputs,
+     * which go to the store, at the position of the channel
+     *
+     * @return the number of bytes written
+     */
+    private static long writeStructural(File modelFile, FileChannel ch, BulkStore bulk)
+        throws Throwable
+    {
+        long start = ch.position();
+        InputStream in = new BufferedInputStream(new FileInputStream(modelFile), 1 << 16);
+        try
+        {
+            // the structural part is kept as it is in the source, it gets
+            // preprocessed when read back
+            XMLEventReader source = XMLInputFactory.newInstance().createXMLEventReader(in);
+            XMLEventReader rest = new NetworkElementDiverter(source, bulk);
+            // not closed, that would close the channel
+            OutputStream structural = new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16);
+            XMLEventWriter out = XMLOutputFactory.newInstance().createXMLEventWriter(structural, "UTF-8");
+            out.add(rest);
+            out.flush();
+            structural.flush();
+            rest.close();
+        }
+        finally
+        {
+            in.close();
+        }
+        return ch.position() - start;
+    }
+
+    /**
+     * @return where the columns of each table start, after a header of this
+     * length at this offset
+     */
+    private static long[] columnOffsets(List<Columns> tables, long headerOffset, int headerLength)
+    {
+        long offset = align(headerOffset + headerLength);
+        long[] columnOffsets = new long[tables.size()];
+        for (int i = 0; i < tables.size(); i++)
+        {
+            Columns c = tables.get(i);
+            columnOffsets[i] = offset;
+            offset = align(offset + columnsLength(c.getIntColumns().length, c.getFloatColumns().length,
+                c.getDoubleColumns().length, c.size()));
+        }
+        return columnOffsets;
+    }
+
+    private static ByteBuffer preamble(long structuralLength, long headerOffset, int headerLength)
+    {
+        ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        preamble.put(MAGIC);
+        preamble.putInt(FORMAT_VERSION);
+        preamble.putLong(PREAMBLE_LENGTH);
+        preamble.putLong(structuralLength);
+        preamble.putLong(headerOffset);
+        preamble.putInt(headerLength);
+        preamble.flip();
+        return preamble;
+    }
+
+    /**
+     * @param columnOffsets of the tables, in the order of
+     * {@link BulkStore#getTables()}
+     * @return the projections, populations and input lists tables; their
+     * length doesn't depend on the offsets (fixed width)
+     */
+    private static byte[] header(BulkStore bulk, long[] columnOffsets) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int table = 0;
+        List<ProjectionColumns> projections = bulk.connectivity.getProjections();
+        out.writeInt(Integer.reverseBytes(projections.size()));
+        for (ProjectionColumns p : projections)
+        {
+            writeString(out, p.getId());
+            writeString(out, p.getElementName());
+            writeString(out, p.getPresynapticPopulation());
+            writeString(out, p.getPostsynapticPopulation());
+            writeString(out, p.getSynapse());
+            for (String s : p.getCellIdFormat())
+            {
+                writeString(out, s);
+            }
+            writeStrings(out, p.getNames());
+            out.writeInt(Integer.reverseBytes(p.size()));
+            out.writeLong(Long.reverseBytes(columnOffsets[table++]));
+        }
+        out.writeInt(Integer.reverseBytes(bulk.populations.size()));
+        for (PopulationColumns p : bulk.populations.values())
+        {
+            writeString(out, p.getId());
+            writeString(out, p.getComponent());
+            out.writeInt(Integer.reverseBytes(p.size()));
+            out.writeLong(Long.reverseBytes(columnOffsets[table++]));
+        }
+        out.writeInt(Integer.reverseBytes(bulk.inputLists.size()));
+        for (InputColumns l : bulk.inputLists.values())
+        {
+            writeString(out, l.getId());
+            writeString(out, l.getPopulation());
+            writeString(out, l.getComponent());
+            for (String s : l.getTargetFormat())
+            {
+                writeString(out, s);
+            }
+            writeStrings(out, l.getNames());
+            out.writeInt(Integer.reverseBytes(l.size()));
+            out.writeLong(Long.reverseBytes(columnOffsets[table++]));
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException
+    {
+        out.writeInt(Integer.reverseBytes(strings.size()));
+        for (String s : strings)
+        {
+            writeString(out, s);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        if (s == null)
+        {
+            out.writeInt(Integer.reverseBytes(-1));
+            return;
+        }
+        byte[] utf8 = s.getBytes("UTF-8");
+        out.writeInt(Integer.reverseBytes(utf8.length));
+        out.write(utf8);
+    }
+
+    private static long align(long offset)
+    {
+        return (offset + 7) & ~7L;
+    }
+
+    private static long floatColumnsEnd(int ints, int floats, int size)
+    {
+        return align(4L * (ints + floats) * size);
+    }
+
+    private static long columnsLength(int ints, int floats, int doubles, int size)
+    {
+        return floatColumnsEnd(ints, floats, size) + 8L * doubles * size;
+    }
+
+    private static void write(FileChannel ch, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            position += ch.write(buffer, position);
+        }
+    }
+
+    private static void writeColumns(FileChannel ch, Columns table, long offset) throws IOException
+    {
+        IntBuffer[] intColumns = table.getIntColumns();
+        FloatBuffer[] floatColumns = table.getFloatColumns();
+        ByteBuffer chunk = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        long position = offset;
+        for (IntBuffer column : intColumns)
+        {
+            while (column.hasRemaining())
+            {
+                chunk.clear();
+                IntBuffer ints = chunk.asIntBuffer();
+                int n = Math.min(ints.capacity(), column.remaining());
+                for (int i = 0; i < n; i++)
+                {
+                    ints.put(column.get());
+                }
+                chunk.limit(n * 4);
+                write(ch, chunk, position);
+                position += n * 4;
+            }
+        }
+        for (FloatBuffer column : floatColumns)
+        {
+            while (column.hasRemaining())
+            {
+                chunk.clear();
+                FloatBuffer floats = chunk.asFloatBuffer();
+                int n = Math.min(floats.capacity(), column.remaining());
+                for (int i = 0; i < n; i++)
+                {
+                    floats.put(column.get());
+                }
+                chunk.limit(n * 4);
+                write(ch, chunk, position);
+                position += n * 4;
+            }
+        }
+        position = offset + floatColumnsEnd(intColumns.length, floatColumns.length, table.size());
+        for (DoubleBuffer column : table.getDoubleColumns())
+        {
+            while (column.hasRemaining())
+            {
+                chunk.clear();
+                DoubleBuffer doubles = chunk.asDoubleBuffer();
+                int n = Math.min(doubles.capacity(), column.remaining());
+                for (int i = 0; i < n; i++)
+                {
+                    doubles.put(column.get());
+                }
+                chunk.limit(n * 8);
+                write(ch, chunk, position);
+                position += n * 8;
+            }
+        }
+    }
+
+    /**
+     * Maps a snapshot. Only the header is actually read.
+     */
+    public static NeuroML2Snapshot open(File snapshotFile) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(snapshotFile, "r");
+        try
+        {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer preamble = read(ch, 0, PREAMBLE_LENGTH);
+            byte[] magic = new byte[MAGIC.length];
+            preamble.get(magic);
+            if (!java.util.Arrays.equals(MAGIC, magic))
+            {
+                throw new IOException(snapshotFile + " isn't a NeuroML2 snapshot");
+            }
+            int version = preamble.getInt();
+            if (version != FORMAT_VERSION)
+            {
+                throw new IOException("Unsupported NeuroML2 snapshot version " + version + " in " + snapshotFile);
+            }
+            long structuralOffset = preamble.getLong();
+            long structuralLength = preamble.getLong();
+            long headerOffset = preamble.getLong();
+            int headerLength = preamble.getInt();
+
+            ByteBuffer header = read(ch, headerOffset, headerLength);
+            NeuroML2Snapshot snapshot = new NeuroML2Snapshot(raf, structuralOffset, structuralLength);
+            for (int i = header.getInt(); i > 0; i--)
+            {
+                String id = readString(header);
+                String elementName = readString(header);
+                String pre = readString(header);
+                String post = readString(header);
+                String synapse = readString(header);
+                String[] format = new String[4];
+                for (int f = 0; f < format.length; f++)
+                {
+                    format[f] = readString(header);
+                }
+                List<String> names = readStrings(header);
+                int size = header.getInt();
+                long offset = header.getLong();
+                snapshot.projections.put(id, new ProjectionColumns(id, elementName, pre, post, synapse, size,
+                    mapInts(ch, offset, size, 8), mapFloats(ch, offset, size, 8, 2),
+                    mapDoubles(ch, offset, size, 8, 2, 2), format, names));
+            }
+            for (int i = header.getInt(); i > 0; i--)
+            {
+                String id = readString(header);
+                String component = readString(header);
+                int size = header.getInt();
+                long offset = header.getLong();
+                snapshot.populations.put(id, new PopulationColumns(id, component, size,
+                    mapInts(ch, offset, size, 1), mapFloats(ch, offset, size, 1, 3)));
+            }
+            for (int i = header.getInt(); i > 0; i--)
+            {
+                String id = readString(header);
+                String population = readString(header);
+                String component = readString(header);
+                String[] format = new String[] { readString(header), readString(header) };
+                List<String> names = readStrings(header);
+                int size = header.getInt();
+                long offset = header.getLong();
+                snapshot.inputLists.put(id, new InputColumns(id, population, component, size,
+                    mapInts(ch, offset, size, 4), mapFloats(ch, offset, size, 4, 1),
+                    mapDoubles(ch, offset, size, 4, 1, 1), format, names));
+            }
+            return snapshot;
+        }
+        catch (IOException e)
+        {
+            raf.close();
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            raf.close();
+            throw new IOException("Corrupt NeuroML2 snapshot: " + snapshotFile, e);
+        }
+    }
+
+    private static IntBuffer[] mapInts(FileChannel ch, long offset, int size, int count) throws IOException
+    {
+        IntBuffer[] columns = new IntBuffer[count];
+        for (int c = 0; c < count; c++)
+        {
+            columns[c] = map(ch, offset + 4L * c * size, 4L * size).asIntBuffer();
+        }
+        return columns;
+    }
+
+    private static FloatBuffer[] mapFloats(FileChannel ch, long offset, int size, int ints, int count)
+        throws IOException
+    {
+        FloatBuffer[] columns = new FloatBuffer[count];
+        for (int c = 0; c < count; c++)
+        {
+            columns[c] = map(ch, offset + 4L * (ints + c) * size, 4L * size).asFloatBuffer();
+        }
+        return columns;
+    }
+
+    private static DoubleBuffer[] mapDoubles(FileChannel ch, long offset, int size, int ints, int floats,
+        int count) throws IOException
+    {
+        DoubleBuffer[] columns = new DoubleBuffer[count];
+        for (int c = 0; c < count; c++)
+        {
+            columns[c] = map(ch, offset + floatColumnsEnd(ints, floats, size) + 8L * c * size, 8L * size)
+                .asDoubleBuffer();
+        }
+        return columns;
+    }
+
+    private static ByteBuffer read(FileChannel ch, long position, int length) throws IOException
+    {
+        ByteBuffer b = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining())
+        {
+            if (ch.read(b, position + b.position()) < 0)
+            {
+                throw new IOException("Truncated NeuroML2 snapshot");
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    private static ByteBuffer map(FileChannel ch, long position, long length) throws IOException
+    {
+        return ch.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static List<String> readStrings(ByteBuffer b) throws IOException
+    {
+        List<String> strings = new ArrayList<String>();
+        for (int n = b.getInt(); n > 0; n--)
+        {
+            strings.add(readString(b));
+        }
+        return strings;
+    }
+
+    private static String readString(ByteBuffer b) throws IOException
+    {
+        int length = b.getInt();
+        if (length < 0)
+        {
+            return null;
+        }
+        byte[] utf8 = new byte[length];
+        b.get(utf8);
+        return new String(utf8, "UTF-8");
+    }
+
+    public List<ProjectionColumns> getProjections()
+    {
+        return Collections.unmodifiableList(new ArrayList<ProjectionColumns>(projections.values()));
+    }
+
+    public ProjectionColumns getProjection(String id)
+    {
+        return projections.get(id);
+    }
+
+    public List<PopulationColumns> getPopulations()
+    {
+        return Collections.unmodifiableList(new ArrayList<PopulationColumns>(populations.values()));
+    }
+
+    /**
+     * @return the instances of the population, null if it has none (e.g. a
+     * population with just a size)
+     */
+    public PopulationColumns getPopulation(String id)
+    {
+        return populations.get(id);
+    }
+
+    public List<InputColumns> getInputLists()
+    {
+        return Collections.unmodifiableList(new ArrayList<InputColumns>(inputLists.values()));
+    }
+
+    public InputColumns getInputList(String id)
+    {
+        return inputLists.get(id);
+    }
+
+    /**
+     * @return the analysed model, without the instances of its populations,
+     * the connections of its projections and the inputs of its input lists
+     * (see {@link #getPopulations()}, {@link #getProjections()} and
+     * {@link #getInputLists()}). Parsed and analysed on first call.
+     */
+    public synchronized Neuroml2 getModel() throws Throwable
+    {
+        if (model == null)
+        {
+            InputStream xml = new BufferedInputStream(new RangeInputStream(channel, structuralOffset,
+                structuralLength), 1 << 16);
+            model = new NeuroML2ModelReader().read(xml);
+        }
+        return model;
+    }
+
+    /**
+     * Closes the file; the mapped columns stay valid until they are garbage
+     * collected.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        file.close();
+    }
+
+    /**
+     * Keeps the bulk elements of a network in columns: connections in a
+     * {@link ConnectivityStore}, instances and inputs by population and
+     * input list
+     */
+    private static class BulkStore implements NetworkVisitor
+    {
+
+        final ConnectivityStore connectivity = new ConnectivityStore(false);
+
+        final Map<String, PopulationColumns> populations = new LinkedHashMap<String, PopulationColumns>();
+
+        final Map<String, InputColumns> inputLists = new LinkedHashMap<String, InputColumns>();
+
+        @Override
+        public void visitInstance(NetworkElement instance)
+        {
+            PopulationColumns population = populations.get(instance.getContainerId());
+            if (population == null)
+            {
+                population = new PopulationColumns(instance.getContainerId(),
+                    instance.getContainerAttribute("component"), false);
+                populations.put(population.getId(), population);
+            }
+            population.add(Integer.parseInt(instance.getId()), Float.parseFloat(attribute(instance, "x", "NaN")),
+                Float.parseFloat(attribute(instance, "y", "NaN")), Float.parseFloat(attribute(instance, "z", "NaN")));
+        }
+
+        @Override
+        public void visitConnection(NetworkElement connection) throws Exception
+        {
+            connectivity.visitConnection(connection);
+        }
+
+        @Override
+        public void visitInput(NetworkElement input)
+        {
+            InputColumns inputList = inputLists.get(input.getContainerId());
+            if (inputList == null)
+            {
+                inputList = new InputColumns(input.getContainerId(), input.getContainerAttribute("population"),
+                    input.getContainerAttribute("component"), false);
+                inputLists.put(inputList.getId(), inputList);
+            }
+            String target = input.getAttribute("target");
+            if (target == null)
+            {
+                throw new IllegalArgumentException("Missing target in " + input);
+            }
+            inputList.add(Integer.parseInt(input.getId()), target, input.getAttribute("destination"),
+                Integer.parseInt(attribute(input, "segmentId", "0")),
+                Float.parseFloat(attribute(input, "fractionAlong", "0.5")),
+                Double.parseDouble(attribute(input, "weight", "1")));
+        }
+
+        private static String attribute(NetworkElement e, String name, String defaultValue)
+        {
+            String value = e.getAttribute(name);
+            return value == null ? defaultValue : value;
+        }
+
+        /**
+         * @return the projections, then the populations, then the input
+         * lists
+         */
+        List<Columns> getTables()
+        {
+            List<Columns> tables = new ArrayList<Columns>();
+            tables.addAll(connectivity.getProjections());
+            tables.addAll(populations.values());
+            tables.addAll(inputLists.values());
+            return tables;
+        }
+    }
+
+    /**
+     * A range of the file, read with positional reads (the channel stays
+     * usable, and the range may exceed what a single mapping can hold)
+     */
+    private static class RangeInputStream extends InputStream
+    {
+
+        private final FileChannel channel;
+
+        private final long end;
+
+        private long position;
+
+        RangeInputStream(FileChannel channel, long offset, long length)
+        {
+            this.channel = channel;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (position >= end)
+            {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n < 0)
+            {
+                throw new IOException("Truncated NeuroML2 snapshot");
+            }
+            position += n;
+            return n;
+        }
+    }
+}
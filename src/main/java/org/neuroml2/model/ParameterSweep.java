@@ -0,0 +1,413 @@
+package org.neuroml2.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.lemsml.exprparser.utils.UndefinedSymbolException;
+import org.lemsml.model.exceptions.LEMSCompilerException;
+import org.lemsml.model.extended.Component;
+import org.lemsml.model.extended.Lems;
+import org.lemsml.model.extended.Symbol;
+import org.neuroml2.model.utils.CompiledExpression;
+import org.neuroml2.model.utils.ExpressionCompiler;
+import org.neuroml2.model.utils.ExpressionNode;
+import org.neuroml2.model.utils.SIConverter;
+
+/**
+ * Evaluates an expression over every combination of values of some of its
+ * parameters, e.g. a gate rate over temperatures, midpoints and voltages:
+ *
+ * <pre>
+ * ParameterSweep.Result r = ParameterSweep.forGate(gate, "forwardRate", model)
+ *     .withValues("temperature", 279.45, 289.45, 299.45)
+ *     .withValues("midpoint", -0.035, -0.03, -0.025)
+ *     .withRange("v", -0.1, 0.05, 1e-4)
+ *     .run();
+ * double alpha = r.get(t, m, v);
+ * </pre>
+ *
+ * The swept parameters replace their definitions in a compiled copy of the
+ * expression, so the model itself is never modified. Values are in SI
+ * units. Combinations are evaluated in parallel into one array, the last
+ * parameter varying fastest.
+ *
+ * For gates, temperature applies through their q10Settings: rates are
+ * multiplied, time courses divided by q10. A q10 depending on the
+ * temperature (e.g. q10ExpTemp) needs it swept, or fixed with
+ * {@link #withTemperature(double)}. Any other symbol (e.g. the
+ * factor of a q10ConductanceScaling) can be swept with
+ * {@link #ParameterSweep(Symbol, Lems)}.
+ */
+public class ParameterSweep
+{
+
+    /**
+     * Dense results of a sweep
+     */
+    public static class Result
+    {
+        private final List<String> parameters;
+
+        private final List<double[]> grids;
+
+        private final double[] values;
+
+        Result(List<String> parameters, List<double[]> grids, double[] values)
+        {
+            this.parameters = parameters;
+            this.grids = grids;
+            this.values = values;
+        }
+
+        /**
+         * @return the swept parameters, in the order of the dimensions
+         */
+        public List<String> getParameters()
+        {
+            return Collections.unmodifiableList(parameters);
+        }
+
+        public double[] getValues(String parameter)
+        {
+            int i = parameters.indexOf(parameter);
+            if (i < 0)
+            {
+                throw new IllegalArgumentException(parameter + " wasn't swept");
+            }
+            return grids.get(i).clone();
+        }
+
+        public int[] getShape()
+        {
+            int[] shape = new int[grids.size()];
+            for (int i = 0; i < shape.length; i++)
+            {
+                shape[i] = grids.get(i).length;
+            }
+            return shape;
+        }
+
+        /**
+         * @return all the results, row-major (the last parameter varies
+         * fastest), not copied
+         */
+        public double[] getValues()
+        {
+            return values;
+        }
+
+        /**
+         * @param indices of the value of each parameter
+         * @return the index of their result in {@link #getValues()}
+         */
+        public int index(int... indices)
+        {
+            if (indices.length != grids.size())
+            {
+                throw new IllegalArgumentException("Expected " + grids.size() + " indices");
+            }
+            int flat = 0;
+            for (int i = 0; i < indices.length; i++)
+            {
+                flat = flat * grids.get(i).length + indices[i];
+            }
+            return flat;
+        }
+
+        public double get(int... indices)
+        {
+            return values[index(indices)];
+        }
+    }
+
+    private final Map<String, ExpressionNode> context;
+
+    private final String target;
+
+    private final SIConverter units;
+
+    private final Map<String, double[]> grids = new LinkedHashMap<String, double[]>();
+
+    // q10 of a gate, and its exponent for the target (1 for rates, -1 for
+    // time courses)
+    private Map<String, ExpressionNode> q10 = null;
+
+    private int q10Power = 0;
+
+    // kelvin, when it isn't swept
+    private Double temperature = null;
+
+    private ExecutorService pool = null;
+
+    public ParameterSweep(Symbol resolved, Lems lems) throws LEMSCompilerException, UndefinedSymbolException
+    {
+        this(ExpressionCompiler.parseContext(resolved), resolved.getName(), new SIConverter(lems));
+    }
+
+    /**
+     * @param context definitions, as in
+     * {@link ExpressionCompiler#compile(Map, String, SIConverter, String...)}
+     */
+    public ParameterSweep(Map<String, ExpressionNode> context, String target, SIConverter units)
+    {
+        this.context = context;
+        this.target = target;
+        this.units = units;
+    }
+
+    /**
+     * @param child forwardRate, reverseRate, timeCourse or steadyState
+     */
+    public static ParameterSweep forGate(Component gate, String child, Lems lems)
+        throws LEMSCompilerException, UndefinedSymbolException
+    {
+        String symbol;
+        int power;
+        if (child.equals("forwardRate") || child.equals("reverseRate"))
+        {
+            symbol = "r";
+            power = 1;
+        }
+        else if (child.equals("timeCourse"))
+        {
+            symbol = "t";
+            power = -1;
+        }
+        else if (child.equals("steadyState"))
+        {
+            symbol = "x";
+            power = 0;
+        }
+        else
+        {
+            throw new IllegalArgumentException("No " + child + " kinetics");
+        }
+
+        ParameterSweep sweep = null;
+        Map<String, ExpressionNode> q10 = null;
+        for (Component c : gate.getChildren())
+        {
+            if (c.getId().equals(child))
+            {
+                sweep = new ParameterSweep(c.getScope().resolve(symbol), lems);
+            }
+            else if (c.getId().equals("q10Settings"))
+            {
+                q10 = ExpressionCompiler.parseContext(c.getScope().resolve("q10"));
+            }
+        }
+        if (sweep == null)
+        {
+            throw new IllegalArgumentException(gate.getId() + " has no " + child);
+        }
+        if (q10 != null && power != 0)
+        {
+            sweep.q10 = q10;
+            sweep.q10Power = power;
+        }
+        return sweep;
+    }
+
+    /**
+     * @param values of the parameter, in SI units
+     */
+    public ParameterSweep withValues(String parameter, double... values)
+    {
+        if (values.length == 0)
+        {
+            throw new IllegalArgumentException("No values for " + parameter);
+        }
+        grids.put(parameter, values.clone());
+        return this;
+    }
+
+    /**
+     * @param step spacing of the values from min to max (included)
+     */
+    public ParameterSweep withRange(String parameter, double min, double max, double step)
+    {
+        if (!(step > 0) || max < min)
+        {
+            throw new IllegalArgumentException("Bad range for " + parameter);
+        }
+        int n = (int) Math.ceil((max - min) / step - 1e-9) + 1;
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++)
+        {
+            values[i] = Math.min(min + i * step, max);
+        }
+        return withValues(parameter, values);
+    }
+
+    /**
+     * @param kelvin the temperature the expression (and the q10 of a gate)
+     * is evaluated at, unless it is swept
+     */
+    public ParameterSweep withTemperature(double kelvin)
+    {
+        this.temperature = kelvin;
+        return this;
+    }
+
+    /**
+     * @param pool used to evaluate the combinations (by default a pool with
+     * one thread per processor, for the duration of {@link #run()})
+     */
+    public ParameterSweep withPool(ExecutorService pool)
+    {
+        this.pool = pool;
+        return this;
+    }
+
+    public Result run() throws Throwable
+    {
+        final List<String> parameters = new ArrayList<String>(grids.keySet());
+        final List<double[]> values = new ArrayList<double[]>(grids.values());
+        if (parameters.isEmpty())
+        {
+            throw new IllegalArgumentException("Nothing to sweep");
+        }
+        // the swept parameters are the first slots of the frames, then the
+        // fixed temperature if any
+        List<String> slots = new ArrayList<String>(parameters);
+        if (temperature != null && !grids.containsKey("temperature"))
+        {
+            slots.add("temperature");
+        }
+        String[] names = slots.toArray(new String[slots.size()]);
+        final CompiledExpression f = compile(context, target, names);
+        final CompiledExpression scaling = q10 == null ? null : compile(q10, "q10", names);
+
+        final int inner = values.get(values.size() - 1).length;
+        long total = 1;
+        for (double[] v : values)
+        {
+            total *= v.length;
+            if (total > Integer.MAX_VALUE)
+            {
+                throw new IllegalArgumentException("Too many combinations to sweep: " + this);
+            }
+        }
+        final double[] results = new double[(int) total];
+        final int rows = (int) total / inner;
+
+        ExecutorService executor = pool != null ? pool
+            : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try
+        {
+            int chunk = Math.max(1, rows / (4 * Runtime.getRuntime().availableProcessors()));
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int start = 0; start < rows; start += chunk)
+            {
+                final int from = start;
+                final int to = Math.min(rows, start + chunk);
+                tasks.add(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        fill(f, scaling, values, from, to, inner, results);
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> done : executor.invokeAll(tasks))
+            {
+                done.get();
+            }
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause();
+        }
+        finally
+        {
+            if (executor != pool)
+            {
+                executor.shutdown();
+            }
+        }
+        return new Result(parameters, values, results);
+    }
+
+    private CompiledExpression compile(Map<String, ExpressionNode> definitions, String name, String[] parameters)
+    {
+        CompiledExpression compiled = ExpressionCompiler.compile(definitions, name, units, parameters);
+        List<String> variables = compiled.getIndependentVariables();
+        if (variables.size() > parameters.length)
+        {
+            List<String> missing = variables.subList(parameters.length, variables.size());
+            throw new IllegalArgumentException("No values for " + missing + " (" + name + ")"
+                + (missing.contains("temperature") ? ": sweep it, or fix it with withTemperature()" : ""));
+        }
+        return compiled;
+    }
+
+    /**
+     * Evaluates the rows [from, to[, a row being all the values of the last
+     * parameter
+     */
+    private void fill(CompiledExpression f, CompiledExpression scaling, List<double[]> values, int from, int to,
+        int inner, double[] results)
+    {
+        int dimensions = values.size();
+        int last = dimensions - 1;
+        double[] frame = f.newFrame();
+        double[] scalingFrame = scaling == null ? null : scaling.newFrame();
+        if (temperature != null && !grids.containsKey("temperature"))
+        {
+            frame[dimensions] = temperature;
+            if (scalingFrame != null)
+            {
+                scalingFrame[dimensions] = temperature;
+            }
+        }
+        int[] indices = new int[dimensions];
+        for (int row = from; row < to; row++)
+        {
+            int rest = row;
+            for (int d = last - 1; d >= 0; d--)
+            {
+                indices[d] = rest % values.get(d).length;
+                rest /= values.get(d).length;
+                frame[d] = values.get(d)[indices[d]];
+            }
+            double factor = 1;
+            if (scaling != null)
+            {
+                System.arraycopy(frame, 0, scalingFrame, 0, last);
+            }
+            double[] lastValues = values.get(last);
+            int offset = row * inner;
+            for (int i = 0; i < inner; i++)
+            {
+                frame[last] = lastValues[i];
+                if (scaling != null)
+                {
+                    scalingFrame[last] = lastValues[i];
+                    factor = Math.pow(scaling.evaluateFrame(scalingFrame), q10Power);
+                }
+                results[offset + i] = f.evaluateFrame(frame) * factor;
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder s = new StringBuilder(target);
+        for (Map.Entry<String, double[]> e : grids.entrySet())
+        {
+            s.append(' ').append(e.getKey()).append('[').append(e.getValue().length).append(']');
+        }
+        return s.toString();
+    }
+}
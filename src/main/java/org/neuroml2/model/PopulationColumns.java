@@ -0,0 +1,135 @@
+package org.neuroml2.model;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * The instances of one population, stored column-wise like
+ * {@link ProjectionColumns}: 16 bytes per instance. The coordinates of
+ * instances without a location are NaN.
+ */
+public class PopulationColumns extends Columns
+{
+
+    private final String id;
+
+    private final String component;
+
+    private IntBuffer instanceIds;
+
+    private FloatBuffer xs;
+
+    private FloatBuffer ys;
+
+    private FloatBuffer zs;
+
+    PopulationColumns(String id, String component, boolean offHeap)
+    {
+        super(offHeap, 0);
+        this.id = id;
+        this.component = component;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Wraps existing columns (e.g. mapped from a file), which must all hold
+     * at least size elements
+     */
+    PopulationColumns(String id, String component, int size, IntBuffer[] intColumns, FloatBuffer[] floatColumns)
+    {
+        super(intColumns[0].isDirect(), size);
+        this.id = id;
+        this.component = component;
+        this.instanceIds = intColumns[0];
+        this.xs = floatColumns[0];
+        this.ys = floatColumns[1];
+        this.zs = floatColumns[2];
+    }
+
+    private void allocate(int capacity)
+    {
+        instanceIds = grow(instanceIds, capacity);
+        xs = grow(xs, capacity);
+        ys = grow(ys, capacity);
+        zs = grow(zs, capacity);
+    }
+
+    void add(int instanceId, float x, float y, float z)
+    {
+        if (size == instanceIds.capacity())
+        {
+            allocate(size * 2);
+        }
+        instanceIds.put(size, instanceId);
+        xs.put(size, x);
+        ys.put(size, y);
+        zs.put(size, z);
+        size++;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * @return the cell (or other component) of the population
+     */
+    public String getComponent()
+    {
+        return component;
+    }
+
+    /**
+     * @return bytes used by the columns, as currently allocated
+     */
+    public long getFootprint()
+    {
+        return (long) instanceIds.capacity() * 4 * 4;
+    }
+
+    public int getInstanceId(int i)
+    {
+        return instanceIds.get(check(i));
+    }
+
+    public float getX(int i)
+    {
+        return xs.get(check(i));
+    }
+
+    public float getY(int i)
+    {
+        return ys.get(check(i));
+    }
+
+    public float getZ(int i)
+    {
+        return zs.get(check(i));
+    }
+
+    @Override
+    IntBuffer[] getIntColumns()
+    {
+        return new IntBuffer[] { view(instanceIds) };
+    }
+
+    @Override
+    FloatBuffer[] getFloatColumns()
+    {
+        return new FloatBuffer[] { view(xs), view(ys), view(zs) };
+    }
+
+    @Override
+    DoubleBuffer[] getDoubleColumns()
+    {
+        return new DoubleBuffer[0];
+    }
+
+    @Override
+    public String toString()
+    {
+        return "population " + id + " of " + component + " (" + size + " instances)";
+    }
+}
@@ -0,0 +1,520 @@
+package org.neuroml2.model;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * The connections of one projection (or electrical/continuous projection),
+ * stored column-wise in primitive buffers instead of one Component per
+ * connection: ~56 bytes per connection instead of several hundred.
+ *
+ * Cell ids like <code>../pop/3/cell</code> or <code>../pop[3]</code> are
+ * stored as the cell index (3), the rest of the path being the same for all
+ * connections of a projection. The components named by each connection
+ * (the synapse of electrical connections, the pre and post components of
+ * continuous ones) are stored as indexes into a table of the distinct
+ * names of the projection. Delays are in seconds. Buffers are either on the
+ * heap or direct (off heap).
+ *
+ * Not thread safe while it is being filled; read only access from several
+ * threads is fine.
+ */
+public class ProjectionColumns extends Columns
+{
+
+    private final String id;
+
+    private final String elementName;
+
+    private final String presynapticPopulation;
+
+    private final String postsynapticPopulation;
+
+    private final String synapse;
+
+    private IntBuffer connectionIds;
+
+    private IntBuffer preCells;
+
+    private IntBuffer postCells;
+
+    private IntBuffer preSegments;
+
+    private IntBuffer postSegments;
+
+    private FloatBuffer preFractions;
+
+    private FloatBuffer postFractions;
+
+    private DoubleBuffer weights;
+
+    private DoubleBuffer delays;
+
+    // indexes into names, -1 when the connection has none
+    private IntBuffer synapses;
+
+    private IntBuffer preComponents;
+
+    private IntBuffer postComponents;
+
+    // distinct component names of the connections, and their indexes
+    private final List<String> names;
+
+    private final Map<String, Integer> nameIndexes = new HashMap<String, Integer>();
+
+    // the synapse shared by all the connections, once checked
+    private volatile String[] commonSynapse = null;
+
+    // cell ids are rebuilt as prefix + index + suffix
+    private String prePrefix = null;
+
+    private String preSuffix = null;
+
+    private String postPrefix = null;
+
+    private String postSuffix = null;
+
+    ProjectionColumns(String id, String elementName, String presynapticPopulation,
+        String postsynapticPopulation, String synapse, boolean offHeap)
+    {
+        super(offHeap, 0);
+        this.id = id;
+        this.elementName = elementName;
+        this.presynapticPopulation = presynapticPopulation;
+        this.postsynapticPopulation = postsynapticPopulation;
+        this.synapse = synapse;
+        this.names = new ArrayList<String>();
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Wraps existing columns (e.g. mapped from a file), which must all hold
+     * at least size elements
+     */
+    ProjectionColumns(String id, String elementName, String presynapticPopulation,
+        String postsynapticPopulation, String synapse, int size,
+        IntBuffer[] intColumns, FloatBuffer[] floatColumns, DoubleBuffer[] doubleColumns,
+        String[] cellIdFormat, List<String> names)
+    {
+        super(intColumns[0].isDirect(), size);
+        this.id = id;
+        this.elementName = elementName;
+        this.presynapticPopulation = presynapticPopulation;
+        this.postsynapticPopulation = postsynapticPopulation;
+        this.synapse = synapse;
+        this.connectionIds = intColumns[0];
+        this.preCells = intColumns[1];
+        this.postCells = intColumns[2];
+        this.preSegments = intColumns[3];
+        this.postSegments = intColumns[4];
+        this.synapses = intColumns[5];
+        this.preComponents = intColumns[6];
+        this.postComponents = intColumns[7];
+        this.preFractions = floatColumns[0];
+        this.postFractions = floatColumns[1];
+        this.weights = doubleColumns[0];
+        this.delays = doubleColumns[1];
+        this.prePrefix = cellIdFormat[0];
+        this.preSuffix = cellIdFormat[1];
+        this.postPrefix = cellIdFormat[2];
+        this.postSuffix = cellIdFormat[3];
+        this.names = new ArrayList<String>(names);
+        for (int i = 0; i < names.size(); i++)
+        {
+            nameIndexes.put(names.get(i), i);
+        }
+    }
+
+    private void allocate(int capacity)
+    {
+        connectionIds = grow(connectionIds, capacity);
+        preCells = grow(preCells, capacity);
+        postCells = grow(postCells, capacity);
+        preSegments = grow(preSegments, capacity);
+        postSegments = grow(postSegments, capacity);
+        preFractions = grow(preFractions, capacity);
+        postFractions = grow(postFractions, capacity);
+        weights = grow(weights, capacity);
+        delays = grow(delays, capacity);
+        synapses = grow(synapses, capacity);
+        preComponents = grow(preComponents, capacity);
+        postComponents = grow(postComponents, capacity);
+    }
+
+    /**
+     * @param synapse the synapse of the connection itself (electrical
+     * connections), null if it has none
+     * @param preComponent the pre component of a continuous connection, null
+     * for the others
+     * @param postComponent the post component of a continuous connection,
+     * null for the others
+     */
+    void add(int connectionId, String preCellId, String postCellId, int preSegment, int postSegment,
+        float preFraction, float postFraction, double weight, double delay,
+        String synapse, String preComponent, String postComponent)
+    {
+        if (size == connectionIds.capacity())
+        {
+            allocate(size * 2);
+        }
+        Matcher pre = matchCellId(preCellId);
+        Matcher post = matchCellId(postCellId);
+        if (size == 0)
+        {
+            prePrefix = pre.group(1);
+            preSuffix = pre.group(3);
+            postPrefix = post.group(1);
+            postSuffix = post.group(3);
+        }
+        else if (!prePrefix.equals(pre.group(1)) || !preSuffix.equals(pre.group(3))
+            || !postPrefix.equals(post.group(1)) || !postSuffix.equals(post.group(3)))
+        {
+            throw new IllegalArgumentException("Connection " + connectionId + " of " + id
+                + " doesn't use the same cell paths as the previous ones: " + preCellId + ", " + postCellId);
+        }
+
+        connectionIds.put(size, connectionId);
+        preCells.put(size, Integer.parseInt(pre.group(2)));
+        postCells.put(size, Integer.parseInt(post.group(2)));
+        preSegments.put(size, preSegment);
+        postSegments.put(size, postSegment);
+        preFractions.put(size, preFraction);
+        postFractions.put(size, postFraction);
+        weights.put(size, weight);
+        delays.put(size, delay);
+        synapses.put(size, nameIndex(synapse));
+        preComponents.put(size, nameIndex(preComponent));
+        postComponents.put(size, nameIndex(postComponent));
+        size++;
+        commonSynapse = null;
+    }
+
+    private int nameIndex(String name)
+    {
+        if (name == null)
+        {
+            return -1;
+        }
+        Integer index = nameIndexes.get(name);
+        if (index == null)
+        {
+            index = names.size();
+            names.add(name);
+            nameIndexes.put(name, index);
+        }
+        return index;
+    }
+
+    private String name(int index)
+    {
+        return index < 0 ? null : names.get(index);
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * @return projection, electricalProjection or continuousProjection
+     */
+    public String getElementName()
+    {
+        return elementName;
+    }
+
+    public String getPresynapticPopulation()
+    {
+        return presynapticPopulation;
+    }
+
+    public String getPostsynapticPopulation()
+    {
+        return postsynapticPopulation;
+    }
+
+    /**
+     * @return the synapse of the projection: its synapse attribute or, for
+     * electrical projections whose connections each name their synapse, the
+     * synapse of all the connections if they use the same one (null if they
+     * don't, see {@link #getSynapse(int)})
+     */
+    public String getSynapse()
+    {
+        if (synapse != null)
+        {
+            return synapse;
+        }
+        String[] common = commonSynapse;
+        if (common == null)
+        {
+            int index = size == 0 ? -1 : synapses.get(0);
+            for (int i = 1; i < size && index >= 0; i++)
+            {
+                if (synapses.get(i) != index)
+                {
+                    index = -1;
+                }
+            }
+            common = new String[] { name(index) };
+            commonSynapse = common;
+        }
+        return common[0];
+    }
+
+    /**
+     * @return bytes used by the columns, as currently allocated
+     */
+    public long getFootprint()
+    {
+        return (long) connectionIds.capacity() * (8 * 4 + 2 * 4 + 2 * 8);
+    }
+
+    public int getConnectionId(int i)
+    {
+        return connectionIds.get(check(i));
+    }
+
+    public int getPreCellIndex(int i)
+    {
+        return preCells.get(check(i));
+    }
+
+    public int getPostCellIndex(int i)
+    {
+        return postCells.get(check(i));
+    }
+
+    /**
+     * @return the cell path, as in the original <code>preCellId</code>
+     */
+    public String getPreCellId(int i)
+    {
+        return prePrefix + getPreCellIndex(i) + preSuffix;
+    }
+
+    /**
+     * @return the cell path, as in the original <code>postCellId</code>
+     */
+    public String getPostCellId(int i)
+    {
+        return postPrefix + getPostCellIndex(i) + postSuffix;
+    }
+
+    public int getPreSegmentId(int i)
+    {
+        return preSegments.get(check(i));
+    }
+
+    public int getPostSegmentId(int i)
+    {
+        return postSegments.get(check(i));
+    }
+
+    public float getPreFractionAlong(int i)
+    {
+        return preFractions.get(check(i));
+    }
+
+    public float getPostFractionAlong(int i)
+    {
+        return postFractions.get(check(i));
+    }
+
+    public double getWeight(int i)
+    {
+        return weights.get(check(i));
+    }
+
+    /**
+     * @return the delay in seconds
+     */
+    public double getDelay(int i)
+    {
+        return delays.get(check(i));
+    }
+
+    /**
+     * @return the synapse of the connection, or of the projection if the
+     * connection doesn't name one
+     */
+    public String getSynapse(int i)
+    {
+        String s = name(synapses.get(check(i)));
+        return s == null ? synapse : s;
+    }
+
+    /**
+     * @return the pre component of a continuous connection, null for the
+     * others
+     */
+    public String getPreComponent(int i)
+    {
+        return name(preComponents.get(check(i)));
+    }
+
+    /**
+     * @return the post component of a continuous connection, null for the
+     * others
+     */
+    public String getPostComponent(int i)
+    {
+        return name(postComponents.get(check(i)));
+    }
+
+    /**
+     * @return a read only view of the connection at i, with the same
+     * accessors as the generated connection classes
+     */
+    public ConnectionView get(int i)
+    {
+        return new ConnectionView(check(i));
+    }
+
+    // read only views of whole columns, for bulk processing
+
+    public IntBuffer getPreCellIndices()
+    {
+        return view(preCells);
+    }
+
+    public IntBuffer getPostCellIndices()
+    {
+        return view(postCells);
+    }
+
+    public DoubleBuffer getWeights()
+    {
+        return view(weights);
+    }
+
+    public DoubleBuffer getDelays()
+    {
+        return view(delays);
+    }
+
+    @Override
+    IntBuffer[] getIntColumns()
+    {
+        return new IntBuffer[] { view(connectionIds), view(preCells), view(postCells), view(preSegments),
+            view(postSegments), view(synapses), view(preComponents), view(postComponents) };
+    }
+
+    @Override
+    FloatBuffer[] getFloatColumns()
+    {
+        return new FloatBuffer[] { view(preFractions), view(postFractions) };
+    }
+
+    @Override
+    DoubleBuffer[] getDoubleColumns()
+    {
+        return new DoubleBuffer[] { view(weights), view(delays) };
+    }
+
+    String[] getCellIdFormat()
+    {
+        return new String[] { prePrefix, preSuffix, postPrefix, postSuffix };
+    }
+
+    List<String> getNames()
+    {
+        return names;
+    }
+
+    @Override
+    public String toString()
+    {
+        return elementName + " " + id + ": " + presynapticPopulation + " -> " + postsynapticPopulation
+            + " (" + size + " connections)";
+    }
+
+    /**
+     * Flyweight view of one connection
+     */
+    public class ConnectionView
+    {
+
+        private final int index;
+
+        ConnectionView(int index)
+        {
+            this.index = index;
+        }
+
+        public String getId()
+        {
+            return String.valueOf(getConnectionId(index));
+        }
+
+        public String getPreCellId()
+        {
+            return ProjectionColumns.this.getPreCellId(index);
+        }
+
+        public String getPostCellId()
+        {
+            return ProjectionColumns.this.getPostCellId(index);
+        }
+
+        public String getPreSegmentId()
+        {
+            return String.valueOf(ProjectionColumns.this.getPreSegmentId(index));
+        }
+
+        public String getPostSegmentId()
+        {
+            return String.valueOf(ProjectionColumns.this.getPostSegmentId(index));
+        }
+
+        public String getPreFractionAlong()
+        {
+            return String.valueOf(ProjectionColumns.this.getPreFractionAlong(index));
+        }
+
+        public String getPostFractionAlong()
+        {
+            return String.valueOf(ProjectionColumns.this.getPostFractionAlong(index));
+        }
+
+        public String getWeight()
+        {
+            return String.valueOf(ProjectionColumns.this.getWeight(index));
+        }
+
+        /**
+         * @return the delay, in seconds
+         */
+        public String getDelay()
+        {
+            return ProjectionColumns.this.getDelay(index) + " s";
+        }
+
+        public String getSynapse()
+        {
+            return ProjectionColumns.this.getSynapse(index);
+        }
+
+        public String getPreComponent()
+        {
+            return ProjectionColumns.this.getPreComponent(index);
+        }
+
+        public String getPostComponent()
+        {
+            return ProjectionColumns.this.getPostComponent(index);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "connection " + getId() + ": " + getPreCellId() + " -> " + getPostCellId();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package org.neuroml2.model;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.neuroml2.model.utils.CompiledExpression;
+import org.neuroml2.model.utils.ExpressionCompiler;
+import org.neuroml2.model.utils.RateTable;
+
+/**
+ * Lookup tables of the rates, time courses and steady states of every gate
+ * of every ion channel in a model, as functions of v:
+ *
+ * <pre>
+ * RateTables tables = new RateTables(-0.1, 0.05, 1e-5).tabulate(model);
+ * double alpha = tables.getTable("Na_pyr", "m", "forwardRate").interpolate(v);
+ * </pre>
+ *
+ * Expressions are compiled (see {@link ExpressionCompiler}) then the tables
+ * are filled in parallel. Everything is in SI units. Expressions depending
+ * on more than v are left out (see {@link #getUntabulated()}).
+ */
+public class RateTables
+{
+
+    private final double vMin;
+
+    private final double vMax;
+
+    private final double deltaV;
+
+    private static volatile ForkJoinPool sharedPool = null;
+
+    private ExecutorService pool = null;
+
+    private final Map<String, RateTable> tables = new TreeMap<String, RateTable>();
+
+    private final Map<String, List<String>> untabulated = new TreeMap<String, List<String>>();
+
+    /**
+     * @param vMin lowest voltage, in volts
+     * @param vMax highest voltage, in volts
+     * @param deltaV spacing of the samples, in volts
+     */
+    public RateTables(double vMin, double vMax, double deltaV)
+    {
+        this.vMin = vMin;
+        this.vMax = vMax;
+        this.deltaV = deltaV;
+    }
+
+    /**
+     * @param xRange and deltaX as in FunctionNodeHelper
+     */
+    public RateTables(Double[] xRange, Double deltaX)
+    {
+        this(xRange[0], xRange[1], deltaX);
+    }
+
+    /**
+     * @param pool used to fill the tables (by default a pool shared by all
+     * instances, with one thread per processor)
+     */
+    public RateTables withPool(ExecutorService pool)
+    {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Adds the tables of all the gates of the model
+     */
+    public RateTables tabulate(Neuroml2 model) throws Throwable
+    {
+        // compiling walks the LEMS model, so keep that on this thread
+        final Map<String, CompiledExpression> compiled = new TreeMap<String, CompiledExpression>();
+        for (BaseIonChannel ic : ComponentIndex.of(model).getAllOfType(BaseIonChannel.class))
+        {
+            for (BaseGate g : ic.getAllOfType(BaseGate.class))
+            {
+                for (Map.Entry<String, CompiledExpression> e : ExpressionCompiler.compileGate(g, model).entrySet())
+                {
+                    String name = key(ic.getId(), g.getId(), e.getKey());
+                    if (e.getValue().getIndependentVariables().size() == 1)
+                    {
+                        compiled.put(name, e.getValue());
+                    }
+                    else
+                    {
+                        // e.g. concentration dependent rates
+                        untabulated.put(name, e.getValue().getIndependentVariables());
+                    }
+                }
+            }
+        }
+
+        ExecutorService executor = getPool();
+        try
+        {
+            List<Future<RateTable>> filled = new ArrayList<Future<RateTable>>();
+            for (final Map.Entry<String, CompiledExpression> e : compiled.entrySet())
+            {
+                filled.add(executor.submit(new Callable<RateTable>()
+                {
+                    @Override
+                    public RateTable call()
+                    {
+                        return RateTable.tabulate(e.getKey(), e.getValue(), vMin, vMax, deltaV);
+                    }
+                }));
+            }
+            for (Future<RateTable> f : filled)
+            {
+                RateTable table = f.get();
+                tables.put(table.getName(), table);
+            }
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause();
+        }
+        return this;
+    }
+
+    private ExecutorService getPool()
+    {
+        if (pool != null)
+        {
+            return pool;
+        }
+        ForkJoinPool p = sharedPool;
+        if (p == null)
+        {
+            synchronized (RateTables.class)
+            {
+                p = sharedPool;
+                if (p == null)
+                {
+                    p = new ForkJoinPool();
+                    sharedPool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    private static String key(String channel, String gate, String child)
+    {
+        return channel + ":" + gate + ":" + child;
+    }
+
+    /**
+     * @return tables by channel:gate:child (e.g. Na_pyr:m:forwardRate)
+     */
+    public Map<String, RateTable> getTables()
+    {
+        return Collections.unmodifiableMap(tables);
+    }
+
+    /**
+     * @return the expressions which depend on more than v (e.g. on a
+     * concentration), with their variables, hence not tabulated
+     */
+    public Map<String, List<String>> getUntabulated()
+    {
+        return Collections.unmodifiableMap(untabulated);
+    }
+
+    /**
+     * @param child forwardRate, reverseRate, timeCourse or steadyState
+     */
+    public RateTable getTable(String channel, String gate, String child)
+    {
+        return tables.get(key(channel, gate, child));
+    }
+
+    /**
+     * @return an estimate of the largest interpolation error of all tables
+     * (see {@link RateTable#getMaxError()}), NaN if any table reports NaN
+     */
+    public double getMaxError()
+    {
+        double max = 0;
+        for (RateTable t : tables.values())
+        {
+            if (Double.isNaN(t.getMaxError()))
+            {
+                return Double.NaN;
+            }
+            max = Math.max(max, t.getMaxError());
+        }
+        return max;
+    }
+
+    /**
+     * Writes the tables as CSV: a header with the table names, then one
+     * line per voltage with the value of each table
+     */
+    public void export(Writer out) throws IOException
+    {
+        out.write("v");
+        for (String name : tables.keySet())
+        {
+            out.write(",");
+            out.write(name);
+        }
+        out.write("\n");
+        if (tables.isEmpty())
+        {
+            return;
+        }
+        RateTable first = tables.values().iterator().next();
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < first.size(); i++)
+        {
+            line.setLength(0);
+            line.append(first.getX(i));
+            for (RateTable t : tables.values())
+            {
+                line.append(',').append(t.getValues()[i]);
+            }
+            line.append('\n');
+            out.write(line.toString());
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,121 @@
+package org.neuroml2.model;
+
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.util.EventReaderDelegate;
+
+/**
+ * Base for the streaming filters applied to a document on its way to the
+ * unmarshaller: every event read from the parent goes through
+ * {@link #transform(XMLEvent)} exactly once, which may replace it or drop it
+ * (by returning null).
+ */
+abstract class TransformingEventReader extends EventReaderDelegate
+{
+
+    private XMLEvent peeked = null;
+
+    TransformingEventReader(XMLEventReader parent)
+    {
+        super(parent);
+    }
+
+    /**
+     * @return the event to pass on, or null to drop it
+     */
+    protected abstract XMLEvent transform(XMLEvent event) throws XMLStreamException;
+
+    @Override
+    public boolean hasNext()
+    {
+        try
+        {
+            return peek() != null;
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public XMLEvent peek() throws XMLStreamException
+    {
+        while (peeked == null && super.hasNext())
+        {
+            peeked = transform(super.nextEvent());
+        }
+        return peeked;
+    }
+
+    @Override
+    public XMLEvent nextEvent() throws XMLStreamException
+    {
+        XMLEvent event = peek();
+        if (event == null)
+        {
+            throw new NoSuchElementException();
+        }
+        peeked = null;
+        return event;
+    }
+
+    @Override
+    public Object next()
+    {
+        try
+        {
+            return nextEvent();
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public XMLEvent nextTag() throws XMLStreamException
+    {
+        while (true)
+        {
+            XMLEvent event = nextEvent();
+            if (event.isStartElement() || event.isEndElement())
+            {
+                return event;
+            }
+            if (!(event.isCharacters() && event.asCharacters().isWhiteSpace())
+                && event.getEventType() != XMLStreamConstants.COMMENT
+                && event.getEventType() != XMLStreamConstants.PROCESSING_INSTRUCTION
+                && event.getEventType() != XMLStreamConstants.START_DOCUMENT)
+            {
+                throw new XMLStreamException("Expected start or end tag", event.getLocation());
+            }
+        }
+    }
+
+    @Override
+    public String getElementText() throws XMLStreamException
+    {
+        StringBuilder text = new StringBuilder();
+        while (true)
+        {
+            XMLEvent event = nextEvent();
+            if (event.isEndElement())
+            {
+                return text.toString();
+            }
+            if (event.isCharacters())
+            {
+                text.append(event.asCharacters().getData());
+            }
+            else if (event.isStartElement())
+            {
+                throw new XMLStreamException("Unexpected element in text only element", event.getLocation());
+            }
+        }
+    }
+}
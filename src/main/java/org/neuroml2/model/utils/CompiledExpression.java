@@ -0,0 +1,132 @@
+package org.neuroml2.model.utils;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An expression compiled by {@link ExpressionCompiler}: all its dependencies
+ * are bound and all quantities are in SI units, so evaluating it is plain
+ * double arithmetic.
+ *
+ * Values live in a frame: the independent variables first, then one slot
+ * per intermediate variable, each computed once per evaluation, in
+ * dependency order. Instances are immutable and thread safe; frames aren't.
+ * {@link #evaluate(double)} and {@link #evaluate(double...)} reuse a frame
+ * per thread; hot loops should rather hold their own frame, from
+ * {@link #newFrame()}, and call {@link #evaluateFrame(double[])}.
+ */
+public class CompiledExpression
+{
+
+    private final String name;
+
+    private final List<String> independentVariables;
+
+    private final int frameSize;
+
+    private final int[] slots;
+
+    private final ExpressionCompiler.Op[] steps;
+
+    private final int result;
+
+    private final ThreadLocal<double[]> frames = new ThreadLocal<double[]>();
+
+    CompiledExpression(String name, List<String> independentVariables, int frameSize, int[] slots,
+        ExpressionCompiler.Op[] steps, int result)
+    {
+        this.name = name;
+        this.independentVariables = Collections.unmodifiableList(independentVariables);
+        this.frameSize = frameSize;
+        this.slots = slots;
+        this.steps = steps;
+        this.result = result;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the variables the expression depends on, in the order their
+     * values are expected (in SI units)
+     */
+    public List<String> getIndependentVariables()
+    {
+        return independentVariables;
+    }
+
+    /**
+     * For expressions of a single variable (typically v, in volts)
+     */
+    public double evaluate(double x)
+    {
+        if (independentVariables.size() != 1)
+        {
+            throw new IllegalStateException(name + " depends on " + independentVariables);
+        }
+        double[] frame = frame();
+        frame[0] = x;
+        return evaluateFrame(frame);
+    }
+
+    /**
+     * @param values of the independent variables, in order
+     */
+    public double evaluate(double... values)
+    {
+        if (values.length != independentVariables.size())
+        {
+            throw new IllegalArgumentException(name + " depends on " + independentVariables);
+        }
+        double[] frame = frame();
+        System.arraycopy(values, 0, frame, 0, values.length);
+        return evaluateFrame(frame);
+    }
+
+    /**
+     * @return the frame of this thread (evaluations don't nest, so one is
+     * enough)
+     */
+    private double[] frame()
+    {
+        double[] frame = frames.get();
+        if (frame == null)
+        {
+            frame = newFrame();
+            frames.set(frame);
+        }
+        return frame;
+    }
+
+    /**
+     * @return a frame for {@link #evaluateFrame(double[])}, to be reused by
+     * one thread
+     */
+    public double[] newFrame()
+    {
+        return new double[frameSize];
+    }
+
+    /**
+     * Evaluates without allocating anything
+     *
+     * @param frame from {@link #newFrame()}, starting with the values of the
+     * independent variables
+     */
+    public double evaluateFrame(double[] frame)
+    {
+        for (int i = 0; i < steps.length; i++)
+        {
+            frame[slots[i]] = steps[i].eval(frame);
+        }
+        return frame[result];
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + "(" + independentVariables + ")";
+    }
+}
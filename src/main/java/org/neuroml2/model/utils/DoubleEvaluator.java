@@ -0,0 +1,144 @@
+package org.neuroml2.model.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.lemsml.exprparser.utils.UndefinedSymbolException;
+import org.lemsml.model.exceptions.LEMSCompilerException;
+import org.lemsml.model.extended.Lems;
+import org.lemsml.model.extended.Scope;
+
+/**
+ * Evaluates a symbol of a {@link Scope} on plain doubles, the unit-erased
+ * counterpart of
+ * <code>scope.evaluate("r", ctxt).getValue().doubleValue()</code>:
+ *
+ * <pre>
+ * DoubleEvaluator r = DoubleEvaluator.bind(scope, "r", model, "v").withInputUnits("mV");
+ * double rate = r.evaluate(-65); // per_s
+ * </pre>
+ *
+ * All unit conversions (of parameters, inputs and result) are resolved when
+ * the expression is bound. By default inputs and result are in SI units.
+ * Evaluating allocates nothing: each thread gets its own frame, so a bound
+ * expression can be shared by threads once configured.
+ */
+public class DoubleEvaluator
+{
+
+    private final CompiledExpression compiled;
+
+    private final SIConverter units;
+
+    private final double[] inputFactors;
+
+    private final double[] inputOffsets;
+
+    private double outputFactor = 1;
+
+    private double outputOffset = 0;
+
+    private final ThreadLocal<double[]> frames = new ThreadLocal<double[]>()
+    {
+        @Override
+        protected double[] initialValue()
+        {
+            return compiled.newFrame();
+        }
+    };
+
+    DoubleEvaluator(CompiledExpression compiled, SIConverter units)
+    {
+        this.compiled = compiled;
+        this.units = units;
+        int n = compiled.getIndependentVariables().size();
+        inputFactors = new double[n];
+        inputOffsets = new double[n];
+        Arrays.fill(inputFactors, 1);
+    }
+
+    /**
+     * @param independentVariables as in
+     * {@link ExpressionCompiler#compile(org.lemsml.model.extended.Symbol, Lems, String...)}
+     */
+    public static DoubleEvaluator bind(Scope scope, String symbol, Lems lems, String... independentVariables)
+        throws LEMSCompilerException, UndefinedSymbolException
+    {
+        SIConverter units = new SIConverter(lems);
+        return new DoubleEvaluator(ExpressionCompiler.compile(ExpressionCompiler.parseContext(scope.resolve(symbol)),
+            symbol, units, independentVariables), units);
+    }
+
+    /**
+     * @param unitSymbols units of the independent variables, in order (null
+     * for SI)
+     */
+    public DoubleEvaluator withInputUnits(String... unitSymbols)
+    {
+        if (unitSymbols.length > inputFactors.length)
+        {
+            throw new IllegalArgumentException(compiled.getName() + " depends on "
+                + compiled.getIndependentVariables());
+        }
+        for (int i = 0; i < unitSymbols.length; i++)
+        {
+            inputFactors[i] = unitSymbols[i] == null ? 1 : units.getFactor(unitSymbols[i]);
+            inputOffsets[i] = unitSymbols[i] == null ? 0 : units.getOffset(unitSymbols[i]);
+        }
+        return this;
+    }
+
+    /**
+     * @param unitSymbol unit of the result (null for SI)
+     */
+    public DoubleEvaluator withOutputUnit(String unitSymbol)
+    {
+        outputFactor = unitSymbol == null ? 1 : units.getFactor(unitSymbol);
+        outputOffset = unitSymbol == null ? 0 : units.getOffset(unitSymbol);
+        return this;
+    }
+
+    public List<String> getIndependentVariables()
+    {
+        return compiled.getIndependentVariables();
+    }
+
+    public double evaluate(double x)
+    {
+        double[] frame = frames.get();
+        frame[0] = x * inputFactors[0] + inputOffsets[0];
+        return output(compiled.evaluateFrame(frame));
+    }
+
+    public double evaluate(double x, double y)
+    {
+        double[] frame = frames.get();
+        frame[0] = x * inputFactors[0] + inputOffsets[0];
+        frame[1] = y * inputFactors[1] + inputOffsets[1];
+        return output(compiled.evaluateFrame(frame));
+    }
+
+    /**
+     * @param values of all the independent variables, in order
+     */
+    public double evaluate(double[] values)
+    {
+        double[] frame = frames.get();
+        for (int i = 0; i < inputFactors.length; i++)
+        {
+            frame[i] = values[i] * inputFactors[i] + inputOffsets[i];
+        }
+        return output(compiled.evaluateFrame(frame));
+    }
+
+    private double output(double si)
+    {
+        return (si - outputOffset) / outputFactor;
+    }
+
+    @Override
+    public String toString()
+    {
+        return compiled.toString();
+    }
+}
@@ -0,0 +1,746 @@
+package org.neuroml2.model.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.lemsml.exprparser.utils.UndefinedSymbolException;
+import org.lemsml.model.Case;
+import org.lemsml.model.ConditionalDerivedVariable;
+import org.lemsml.model.exceptions.LEMSCompilerException;
+import org.lemsml.model.extended.Component;
+import org.lemsml.model.extended.Lems;
+import org.lemsml.model.extended.Symbol;
+import org.neuroml2.model.utils.ExpressionNode.Binary;
+import org.neuroml2.model.utils.ExpressionNode.Conditional;
+import org.neuroml2.model.utils.ExpressionNode.Constant;
+import org.neuroml2.model.utils.ExpressionNode.Function;
+import org.neuroml2.model.utils.ExpressionNode.Operator;
+import org.neuroml2.model.utils.ExpressionNode.Unary;
+import org.neuroml2.model.utils.ExpressionNode.Variable;
+
+/**
+ * Compiles a resolved LEMS symbol, with the topologically sorted context of
+ * its dependencies (the same one {@link FunctionNodeHelper} renders to
+ * MathJS), into a {@link CompiledExpression} for fast repeated evaluation:
+ *
+ * <pre>
+ * CompiledExpression r = ExpressionCompiler.compile(gate.getForwardRate().getScope().resolve("r"), model);
+ * for (double v = -0.1; v &lt; 0.05; v += 1e-5) r.evaluate(v);
+ * </pre>
+ *
+ * Parameter values are converted to SI and folded once, at compile time
+ * (see {@link ExpressionSimplifier}), and the cases of
+ * ConditionalDerivedVariables become branches. Nothing but doubles is
+ * involved at evaluation time.
+ */
+public class ExpressionCompiler
+{
+
+    /**
+     * Symbol defining each rate/time course/steady state child of a gate
+     */
+    private static final Map<String, String> GATE_CHILDREN = new LinkedHashMap<String, String>();
+
+    static
+    {
+        GATE_CHILDREN.put("forwardRate", "r");
+        GATE_CHILDREN.put("reverseRate", "r");
+        GATE_CHILDREN.put("timeCourse", "t");
+        GATE_CHILDREN.put("steadyState", "x");
+    }
+
+    /**
+     * @param independentVariables variables left free, in the order the
+     * compiled expression expects them. Other symbols the expression depends
+     * on but which aren't defined in its context are appended.
+     */
+    public static CompiledExpression compile(Symbol resolved, Lems lems, String... independentVariables)
+        throws LEMSCompilerException, UndefinedSymbolException
+    {
+        return compile(parseContext(resolved), resolved.getName(), new SIConverter(lems), independentVariables);
+    }
+
+    /**
+     * Compiles the forward/reverse rates, time course and steady state of a
+     * gate, as functions of v
+     *
+     * @return compiled expressions by child id
+     */
+    public static Map<String, CompiledExpression> compileGate(Component gate, Lems lems)
+        throws LEMSCompilerException, UndefinedSymbolException
+    {
+        Map<String, CompiledExpression> compiled = new LinkedHashMap<String, CompiledExpression>();
+        SIConverter units = new SIConverter(lems);
+        for (Component c : gate.getChildren())
+        {
+            String symbol = GATE_CHILDREN.get(c.getId());
+            if (symbol != null)
+            {
+                Symbol resolved = c.getScope().resolve(symbol);
+                compiled.put(c.getId(), compile(parseContext(resolved), resolved.getName(), units, "v"));
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * @return the parsed definitions of the symbol and its dependencies,
+     * ConditionalDerivedVariables as nested conditionals
+     */
+    public static Map<String, ExpressionNode> parseContext(Symbol resolved)
+        throws LEMSCompilerException, UndefinedSymbolException
+    {
+        Map<String, String> sorted = resolved.getScope().buildTopoSortedContext(resolved);
+        Map<String, ExpressionNode> context = new LinkedHashMap<String, ExpressionNode>();
+        for (Map.Entry<String, String> kv : sorted.entrySet())
+        {
+            if (kv.getValue() != null && !kv.getValue().trim().isEmpty())
+            {
+                context.put(kv.getKey(), LemsExpressionParser.parseCached(kv.getValue()));
+            }
+        }
+        if (resolved.getType() instanceof ConditionalDerivedVariable)
+        {
+            context.put(resolved.getName(), parseCases((ConditionalDerivedVariable) resolved.getType()));
+        }
+        return context;
+    }
+
+    /**
+     * Same semantics as the MathJS rendering: a case without condition is
+     * the default, otherwise the last case is.
+     */
+    public static ExpressionNode parseCases(ConditionalDerivedVariable cdv)
+    {
+        List<Case> cases = cdv.getCase();
+        ExpressionNode otherwise = null;
+        List<ExpressionNode[]> conditional = new ArrayList<ExpressionNode[]>();
+        for (int i = 0; i < cases.size(); i++)
+        {
+            Case c = cases.get(i);
+            ExpressionNode value = LemsExpressionParser.parseCached(c.getValueDefinition());
+            if (c.getCondition() == null || (i == cases.size() - 1 && otherwise == null))
+            {
+                otherwise = value;
+            }
+            else
+            {
+                conditional.add(new ExpressionNode[] { LemsExpressionParser.parseCached(c.getCondition()), value });
+            }
+        }
+        if (otherwise == null)
+        {
+            throw new IllegalArgumentException("No case in " + cdv);
+        }
+        ExpressionNode node = otherwise;
+        for (int i = conditional.size() - 1; i >= 0; i--)
+        {
+            node = new Conditional(conditional.get(i)[0], conditional.get(i)[1], node);
+        }
+        return node;
+    }
+
+    /**
+     * @param context definitions of the variables, in any order
+     * @param target the variable to compile
+     * @param units to convert quantities to SI, can be null if there are none
+     */
+    public static CompiledExpression compile(Map<String, ExpressionNode> context, String target, SIConverter units,
+        String... independentVariables)
+    {
+        // constants are folded once here rather than at every evaluation
+        return new ExpressionCompiler(ExpressionSimplifier.simplify(context, target, units, independentVariables),
+            units, independentVariables).compile(target);
+    }
+
+    private final Map<String, ExpressionNode> context;
+
+    private final SIConverter units;
+
+    private final List<String> independent = new ArrayList<String>();
+
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+
+    private final List<String> order = new ArrayList<String>();
+
+    private ExpressionCompiler(Map<String, ExpressionNode> context, SIConverter units, String[] independentVariables)
+    {
+        this.context = context;
+        this.units = units;
+        this.independent.addAll(Arrays.asList(independentVariables));
+    }
+
+    private CompiledExpression compile(String target)
+    {
+        // dependency order of what the target actually needs
+        sort(target, new HashSet<String>());
+
+        // a frame is: independent variables, then intermediate ones
+        for (String v : independent)
+        {
+            slots.put(v, slots.size());
+        }
+        for (String v : order)
+        {
+            slots.put(v, slots.size());
+        }
+        int[] targets = new int[order.size()];
+        Op[] steps = new Op[order.size()];
+        for (int i = 0; i < order.size(); i++)
+        {
+            targets[i] = slots.get(order.get(i));
+            steps[i] = bind(context.get(order.get(i)));
+        }
+        return new CompiledExpression(target, new ArrayList<String>(independent), slots.size(), targets, steps,
+            slots.get(target));
+    }
+
+    private boolean isIndependent(String name)
+    {
+        if (independent.contains(name))
+        {
+            return true;
+        }
+        ExpressionNode def = context.get(name);
+        // x = x, as in FunctionNodeHelper.setIndependentVariable
+        return def == null || (def instanceof Variable && ((Variable) def).getName().equals(name));
+    }
+
+    private void sort(String name, Set<String> visiting)
+    {
+        if (isIndependent(name))
+        {
+            if (!independent.contains(name))
+            {
+                independent.add(name);
+            }
+            return;
+        }
+        if (order.contains(name))
+        {
+            return;
+        }
+        if (!visiting.add(name))
+        {
+            throw new IllegalArgumentException("Circular definition of " + name);
+        }
+        for (String dependency : variables(context.get(name), new LinkedHashSet<String>()))
+        {
+            sort(dependency, visiting);
+        }
+        visiting.remove(name);
+        order.add(name);
+    }
+
+    static Set<String> variables(ExpressionNode node, Set<String> names)
+    {
+        if (node instanceof Variable)
+        {
+            names.add(((Variable) node).getName());
+        }
+        for (ExpressionNode child : node.getChildren())
+        {
+            variables(child, names);
+        }
+        return names;
+    }
+
+    private Op bind(ExpressionNode node)
+    {
+        return node.accept(new ExpressionNode.Visitor<Op>()
+        {
+            @Override
+            public Op visitConstant(Constant node)
+            {
+                if (node.getUnit() == null)
+                {
+                    return new Const(node.getValue());
+                }
+                if (units == null)
+                {
+                    throw new IllegalArgumentException("No units to convert " + node);
+                }
+                return new Const(units.getConverter(node.getUnit()).convert(node.getValue()));
+            }
+
+            @Override
+            public Op visitVariable(Variable node)
+            {
+                return new Slot(slots.get(node.getName()));
+            }
+
+            @Override
+            public Op visitUnary(Unary node)
+            {
+                Op operand = node.getOperand().accept(this);
+                return node.getOperator() == Operator.NOT ? new Not(operand) : new Neg(operand);
+            }
+
+            @Override
+            public Op visitBinary(Binary node)
+            {
+                Op left = node.getLeft().accept(this);
+                Op right = node.getRight().accept(this);
+                switch (node.getOperator())
+                {
+                    case ADD:
+                        return new Add(left, right);
+                    case SUB:
+                        return new Sub(left, right);
+                    case MUL:
+                        return new Mul(left, right);
+                    case DIV:
+                        return new Div(left, right);
+                    case POW:
+                        return new Pow(left, right);
+                    case AND:
+                        return new And(left, right);
+                    case OR:
+                        return new Or(left, right);
+                    default:
+                        return new Compare(node.getOperator(), left, right);
+                }
+            }
+
+            @Override
+            public Op visitFunction(Function node)
+            {
+                Op argument = node.getArgument().accept(this);
+                if (node.getName().equals("exp"))
+                {
+                    return new Exp(argument);
+                }
+                return new Call(functionCode(node.getName()), argument);
+            }
+
+            @Override
+            public Op visitConditional(Conditional node)
+            {
+                return new Branch(node.getCondition().accept(this), node.getThen().accept(this),
+                    node.getOtherwise().accept(this));
+            }
+        });
+    }
+
+    // functions of the LEMS expression language
+
+    static final List<String> FUNCTIONS = Arrays.asList("exp", "ln", "log", "sqrt", "abs", "ceil", "floor",
+        "sin", "cos", "tan", "sinh", "cosh", "tanh", "H", "random");
+
+    private static int functionCode(String name)
+    {
+        int code = FUNCTIONS.indexOf(name);
+        if (code < 0)
+        {
+            throw new IllegalArgumentException("Unknown function " + name);
+        }
+        return code;
+    }
+
+    /**
+     * @return x op y, with comparisons and logical operators giving 1 or 0
+     */
+    static double apply(Operator op, double x, double y)
+    {
+        switch (op)
+        {
+            case ADD:
+                return x + y;
+            case SUB:
+                return x - y;
+            case MUL:
+                return x * y;
+            case DIV:
+                return x / y;
+            case POW:
+                return Math.pow(x, y);
+            case AND:
+                return x != 0 && y != 0 ? 1 : 0;
+            case OR:
+                return x != 0 || y != 0 ? 1 : 0;
+            case GT:
+                return x > y ? 1 : 0;
+            case GE:
+                return x >= y ? 1 : 0;
+            case LT:
+                return x < y ? 1 : 0;
+            case LE:
+                return x <= y ? 1 : 0;
+            case EQ:
+                return x == y ? 1 : 0;
+            case NE:
+                return x != y ? 1 : 0;
+            default:
+                throw new IllegalArgumentException(op + " isn't binary");
+        }
+    }
+
+    static double call(int function, double x)
+    {
+        switch (function)
+        {
+            case 0:
+                return Math.exp(x);
+            case 1:
+                return Math.log(x);
+            case 2:
+                return Math.log10(x);
+            case 3:
+                return Math.sqrt(x);
+            case 4:
+                return Math.abs(x);
+            case 5:
+                return Math.ceil(x);
+            case 6:
+                return Math.floor(x);
+            case 7:
+                return Math.sin(x);
+            case 8:
+                return Math.cos(x);
+            case 9:
+                return Math.tan(x);
+            case 10:
+                return Math.sinh(x);
+            case 11:
+                return Math.cosh(x);
+            case 12:
+                return Math.tanh(x);
+            case 13:
+                // Heaviside
+                return x > 0 ? 1 : x < 0 ? 0 : 0.5;
+            default:
+                // random(x): uniform in [0, x)
+                return Math.random() * x;
+        }
+    }
+
+    // evaluation tree, booleans are 1/0
+
+    abstract static class Op
+    {
+
+        abstract double eval(double[] frame);
+    }
+
+    private static final class Const extends Op
+    {
+
+        private final double value;
+
+        Const(double value)
+        {
+            this.value = value;
+        }
+
+        @Override
+        double eval(double[] frame)
+        {
+            return value;
+        }
+    }
+
+    private static final class Slot extends Op
+    {
+
+        private final int slot;
+
+        Slot(int slot)
+        {
+            this.slot = slot;
+        }
+
+        @Override
+        double eval(double[] frame)
+        {
+            return frame[slot];
+        }
+    }
+
+    private static final class Neg extends Op
+    {
+
+        private final Op a;
+
+        Neg(Op a)
+        {
+            this.a = a;
+        }
+
+        @Override
+        double eval(double[] frame)
+        {
+            return -a.eval(frame);
+        }
+    }
+
+    private static final class Not extends Op
+    {
+
+        private final Op a;
+
+        Not(Op a)
+        {
+            this.a = a;
+        }
+
+        @Override
+        double eval(double[] frame)
+        {
+            return a.eval(frame) != 0 ? 0 : 1;
+        }
+    }
+
+    private static final class Add extends Op
+    {
+
+        private final Op a;
+
+        private final Op b;
+
+        Add(Op a, Op b)
+        {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        double eval(double[] frame)
+        {
+            return a.eval(frame) + b.eval(frame);
+        }
+    }
+
+    private static final class Sub extends Op
+    {
+
+        private final Op a;
+
+        private final Op b;
+
+        Sub(Op a, Op b)
+        {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        double eval(double[] frame)
+        {
+            return a.eval(frame) - b.eval(frame);
+        }
+    }
+
+    private static final class Mul extends Op
+    {
+
+        private final Op a;
+
+        private final Op b;
+
+        Mul(Op a, Op b)
+        {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        double eval(double[] frame)
+        {
+            return a.eval(frame) * b.eval(frame);
+        }
+    }
+
+    private static final class Div extends Op
+    {
+
+        private final Op a;
+
+        private final Op b;
+
+        Div(Op a, Op b)
+        {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        double eval(double[] frame)
+        {
+            return a.eval(frame) / b.eval(frame);
+        }
+    }
+
+    private static final class Pow extends Op
+    {
+
+        private final Op a;
+
+        private final Op b;
+
+        Pow(Op a, Op b)
+        {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        double eval(double[] frame)
+        {
+            return Math.pow(a.eval(frame), b.eval(frame));
+        }
+    }
+
+    private static final class And extends Op
+    {
+
+        private final Op a;
+
+        private final Op b;
+
+        And(Op a, Op b)
+        {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        double eval(double[] frame)
+        {
+            return a.eval(frame) != 0 && b.eval(frame) != 0 ? 1 : 0;
+        }
+    }
+
+    private static final class Or extends Op
+    {
+
+        private final Op a;
+
+        private final Op b;
+
+        Or(Op a, Op b)
+        {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        double eval(double[] frame)
+        {
+            return a.eval(frame) != 0 || b.eval(frame) != 0 ? 1 : 0;
+        }
+    }
+
+    private static final class Compare extends Op
+    {
+
+        private final Operator operator;
+
+        private final Op a;
+
+        private final Op b;
+
+        Compare(Operator operator, Op a, Op b)
+        {
+            this.operator = operator;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        double eval(double[] frame)
+        {
+            double x = a.eval(frame);
+            double y = b.eval(frame);
+            boolean result;
+            switch (operator)
+            {
+                case GT:
+                    result = x > y;
+                    break;
+                case GE:
+                    result = x >= y;
+                    break;
+                case LT:
+                    result = x < y;
+                    break;
+                case LE:
+                    result = x <= y;
+                    break;
+                case EQ:
+                    result = x == y;
+                    break;
+                default:
+                    result = x != y;
+                    break;
+            }
+            return result ? 1 : 0;
+        }
+    }
+
+    private static final class Branch extends Op
+    {
+
+        private final Op condition;
+
+        private final Op then;
+
+        private final Op otherwise;
+
+        Branch(Op condition, Op then, Op otherwise)
+        {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        double eval(double[] frame)
+        {
+            return condition.eval(frame) != 0 ? then.eval(frame) : otherwise.eval(frame);
+        }
+    }
+
+    private static final class Exp extends Op
+    {
+
+        private final Op a;
+
+        Exp(Op a)
+        {
+            this.a = a;
+        }
+
+        @Override
+        double eval(double[] frame)
+        {
+            return Math.exp(a.eval(frame));
+        }
+    }
+
+    private static final class Call extends Op
+    {
+
+        private final int function;
+
+        private final Op a;
+
+        Call(int function, Op a)
+        {
+            this.function = function;
+            this.a = a;
+        }
+
+        @Override
+        double eval(double[] frame)
+        {
+            return call(function, a.eval(frame));
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package org.neuroml2.model.utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable syntax tree of a LEMS expression (see
+ * {@link LemsExpressionParser}). Nodes refer to variables by name; binding
+ * them to values is left to {@link ExpressionCompiler} and friends, so the
+ * same tree can be shared, cached and rendered in several ways.
+ */
+public abstract class ExpressionNode
+{
+
+    public enum Operator
+    {
+        ADD("+"), SUB("-"), MUL("*"), DIV("/"), POW("^"),
+        GT(".gt."), GE(".geq."), LT(".lt."), LE(".leq."), EQ(".eq."), NE(".neq."),
+        AND(".and."), OR(".or."),
+        NEG("-"), NOT("!");
+
+        private final String symbol;
+
+        Operator(String symbol)
+        {
+            this.symbol = symbol;
+        }
+
+        /**
+         * @return the LEMS notation of the operator
+         */
+        public String getSymbol()
+        {
+            return symbol;
+        }
+
+        public boolean isComparison()
+        {
+            return compareTo(GT) >= 0 && compareTo(NE) <= 0;
+        }
+
+        public boolean isLogical()
+        {
+            return this == AND || this == OR || this == NOT;
+        }
+    }
+
+    public interface Visitor<T>
+    {
+
+        T visitConstant(Constant node);
+
+        T visitVariable(Variable node);
+
+        T visitUnary(Unary node);
+
+        T visitBinary(Binary node);
+
+        T visitFunction(Function node);
+
+        T visitConditional(Conditional node);
+    }
+
+    public abstract <T> T accept(Visitor<T> visitor);
+
+    /**
+     * @return the children of this node, in order
+     */
+    public abstract List<ExpressionNode> getChildren();
+
+    @Override
+    public String toString()
+    {
+        return accept(new ToLems());
+    }
+
+    /**
+     * A number, with an optional unit symbol (e.g. <code>-65mV</code>)
+     */
+    public static final class Constant extends ExpressionNode
+    {
+
+        private final double value;
+
+        private final String unit;
+
+        public Constant(double value, String unit)
+        {
+            this.value = value;
+            this.unit = unit;
+        }
+
+        public Constant(double value)
+        {
+            this(value, null);
+        }
+
+        public double getValue()
+        {
+            return value;
+        }
+
+        /**
+         * @return the unit symbol, or null for a plain number
+         */
+        public String getUnit()
+        {
+            return unit;
+        }
+
+        @Override
+        public <T> T accept(Visitor<T> visitor)
+        {
+            return visitor.visitConstant(this);
+        }
+
+        @Override
+        public List<ExpressionNode> getChildren()
+        {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof Constant && Double.compare(((Constant) o).value, value) == 0
+                && (unit == null ? ((Constant) o).unit == null : unit.equals(((Constant) o).unit));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Double.valueOf(value).hashCode() * 31 + (unit == null ? 0 : unit.hashCode());
+        }
+    }
+
+    public static final class Variable extends ExpressionNode
+    {
+
+        private final String name;
+
+        public Variable(String name)
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        @Override
+        public <T> T accept(Visitor<T> visitor)
+        {
+            return visitor.visitVariable(this);
+        }
+
+        @Override
+        public List<ExpressionNode> getChildren()
+        {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof Variable && ((Variable) o).name.equals(name);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return name.hashCode();
+        }
+    }
+
+    /**
+     * Negation or logical not
+     */
+    public static final class Unary extends ExpressionNode
+    {
+
+        private final Operator operator;
+
+        private final ExpressionNode operand;
+
+        public Unary(Operator operator, ExpressionNode operand)
+        {
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        public Operator getOperator()
+        {
+            return operator;
+        }
+
+        public ExpressionNode getOperand()
+        {
+            return operand;
+        }
+
+        @Override
+        public <T> T accept(Visitor<T> visitor)
+        {
+            return visitor.visitUnary(this);
+        }
+
+        @Override
+        public List<ExpressionNode> getChildren()
+        {
+            return Collections.singletonList(operand);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof Unary && ((Unary) o).operator == operator && ((Unary) o).operand.equals(operand);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return operator.hashCode() * 31 + operand.hashCode();
+        }
+    }
+
+    public static final class Binary extends ExpressionNode
+    {
+
+        private final Operator operator;
+
+        private final ExpressionNode left;
+
+        private final ExpressionNode right;
+
+        public Binary(Operator operator, ExpressionNode left, ExpressionNode right)
+        {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        public Operator getOperator()
+        {
+            return operator;
+        }
+
+        public ExpressionNode getLeft()
+        {
+            return left;
+        }
+
+        public ExpressionNode getRight()
+        {
+            return right;
+        }
+
+        @Override
+        public <T> T accept(Visitor<T> visitor)
+        {
+            return visitor.visitBinary(this);
+        }
+
+        @Override
+        public List<ExpressionNode> getChildren()
+        {
+            return Arrays.asList(left, right);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof Binary && ((Binary) o).operator == operator && ((Binary) o).left.equals(left)
+                && ((Binary) o).right.equals(right);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (operator.hashCode() * 31 + left.hashCode()) * 31 + right.hashCode();
+        }
+    }
+
+    /**
+     * A call to one of the LEMS functions (exp, ln, log, sqrt, abs, H...)
+     */
+    public static final class Function extends ExpressionNode
+    {
+
+        private final String name;
+
+        private final ExpressionNode argument;
+
+        public Function(String name, ExpressionNode argument)
+        {
+            this.name = name;
+            this.argument = argument;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public ExpressionNode getArgument()
+        {
+            return argument;
+        }
+
+        @Override
+        public <T> T accept(Visitor<T> visitor)
+        {
+            return visitor.visitFunction(this);
+        }
+
+        @Override
+        public List<ExpressionNode> getChildren()
+        {
+            return Collections.singletonList(argument);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof Function && ((Function) o).name.equals(name)
+                && ((Function) o).argument.equals(argument);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return name.hashCode() * 31 + argument.hashCode();
+        }
+    }
+
+    /**
+     * <code>condition ? then : otherwise</code>, which is also how the cases
+     * of a ConditionalDerivedVariable are represented
+     */
+    public static final class Conditional extends ExpressionNode
+    {
+
+        private final ExpressionNode condition;
+
+        private final ExpressionNode then;
+
+        private final ExpressionNode otherwise;
+
+        public Conditional(ExpressionNode condition, ExpressionNode then, ExpressionNode otherwise)
+        {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        public ExpressionNode getCondition()
+        {
+            return condition;
+        }
+
+        public ExpressionNode getThen()
+        {
+            return then;
+        }
+
+        public ExpressionNode getOtherwise()
+        {
+            return otherwise;
+        }
+
+        @Override
+        public <T> T accept(Visitor<T> visitor)
+        {
+            return visitor.visitConditional(this);
+        }
+
+        @Override
+        public List<ExpressionNode> getChildren()
+        {
+            return Arrays.asList(condition, then, otherwise);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof Conditional && ((Conditional) o).condition.equals(condition)
+                && ((Conditional) o).then.equals(then) && ((Conditional) o).otherwise.equals(otherwise);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (condition.hashCode() * 31 + then.hashCode()) * 31 + otherwise.hashCode();
+        }
+    }
+
+    /**
+     * Back to (fully parenthesised) LEMS syntax
+     */
+    private static class ToLems implements Visitor<String>
+    {
+
+        @Override
+        public String visitConstant(Constant node)
+        {
+            double v = node.getValue();
+            String number = v == Math.rint(v) && Math.abs(v) < 1e15 ? String.valueOf((long) v) : String.valueOf(v);
+            return node.getUnit() == null ? number : number + " " + node.getUnit();
+        }
+
+        @Override
+        public String visitVariable(Variable node)
+        {
+            return node.getName();
+        }
+
+        @Override
+        public String visitUnary(Unary node)
+        {
+            return node.getOperator().getSymbol() + "(" + node.getOperand().accept(this) + ")";
+        }
+
+        @Override
+        public String visitBinary(Binary node)
+        {
+            return "(" + node.getLeft().accept(this) + " " + node.getOperator().getSymbol() + " "
+                + node.getRight().accept(this) + ")";
+        }
+
+        @Override
+        public String visitFunction(Function node)
+        {
+            return node.getName() + "(" + node.getArgument().accept(this) + ")";
+        }
+
+        @Override
+        public String visitConditional(Conditional node)
+        {
+            return "(" + node.getCondition().accept(this) + " ? " + node.getThen().accept(this) + " : "
+                + node.getOtherwise().accept(this) + ")";
+        }
+    }
+}
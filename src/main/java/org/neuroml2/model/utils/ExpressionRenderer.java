@@ -0,0 +1,400 @@
+package org.neuroml2.model.utils;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.neuroml2.model.utils.ExpressionNode.Binary;
+import org.neuroml2.model.utils.ExpressionNode.Conditional;
+import org.neuroml2.model.utils.ExpressionNode.Constant;
+import org.neuroml2.model.utils.ExpressionNode.Function;
+import org.neuroml2.model.utils.ExpressionNode.Operator;
+import org.neuroml2.model.utils.ExpressionNode.Unary;
+import org.neuroml2.model.utils.ExpressionNode.Variable;
+
+/**
+ * Renders an {@link ExpressionNode} to several languages at once, in a
+ * single pass over the tree:
+ *
+ * <pre>
+ * Map&lt;Target, String&gt; r = new ExpressionRenderer(units, Target.MATHJS, Target.LATEX).render(node);
+ * </pre>
+ *
+ * Quantities are converted to SI (except in LaTeX, where units are shown),
+ * functions are those of LEMS (ln is the natural logarithm, log the decimal
+ * one) and parentheses are only added where precedence needs them.
+ */
+public class ExpressionRenderer
+{
+
+    public enum Target
+    {
+        MATHJS, LATEX, C, JAVA
+    }
+
+    // precedence, from lowest
+    private static final int CONDITIONAL = 1;
+
+    private static final int OR = 2;
+
+    private static final int AND = 3;
+
+    private static final int COMPARISON = 4;
+
+    private static final int ADDITIVE = 5;
+
+    private static final int MULTIPLICATIVE = 6;
+
+    private static final int UNARY = 7;
+
+    private static final int POWER = 8;
+
+    private static final int ATOM = 9;
+
+    /**
+     * Renderings of a node, with their precedence, for each target
+     */
+    private static class Rendered
+    {
+        final String[] text;
+
+        final int[] precedence;
+
+        Rendered(int n)
+        {
+            text = new String[n];
+            precedence = new int[n];
+        }
+
+        void set(int i, String t, int p)
+        {
+            text[i] = t;
+            precedence[i] = p;
+        }
+    }
+
+    private final SIConverter units;
+
+    private final Target[] targets;
+
+    /**
+     * @param units to convert quantities to SI, can be null if there are none
+     */
+    public ExpressionRenderer(SIConverter units, Target... targets)
+    {
+        this.units = units;
+        this.targets = targets.length == 0 ? Target.values() : targets.clone();
+    }
+
+    public Map<Target, String> render(ExpressionNode node)
+    {
+        Rendered r = node.accept(visitor);
+        Map<Target, String> rendered = new EnumMap<Target, String>(Target.class);
+        for (int i = 0; i < targets.length; i++)
+        {
+            rendered.put(targets[i], r.text[i]);
+        }
+        return rendered;
+    }
+
+    public String render(ExpressionNode node, Target target)
+    {
+        return new ExpressionRenderer(units, target).render(node).get(target);
+    }
+
+    private final ExpressionNode.Visitor<Rendered> visitor = new ExpressionNode.Visitor<Rendered>()
+    {
+        @Override
+        public Rendered visitConstant(Constant node)
+        {
+            Rendered r = new Rendered(targets.length);
+            double si = Double.NaN;
+            for (int i = 0; i < targets.length; i++)
+            {
+                if (targets[i] == Target.LATEX)
+                {
+                    String number = latexNumber(node.getValue());
+                    if (node.getUnit() != null)
+                    {
+                        number += "\\,\\mathrm{" + escape(node.getUnit()) + "}";
+                    }
+                    r.set(i, number, node.getValue() < 0 ? UNARY : ATOM);
+                    continue;
+                }
+                if (node.getUnit() == null)
+                {
+                    si = node.getValue();
+                }
+                else if (units == null)
+                {
+                    throw new IllegalArgumentException("No units to convert " + node);
+                }
+                else
+                {
+                    si = units.getConverter(node.getUnit()).convert(node.getValue());
+                }
+                String number = number(si);
+                if (targets[i] != Target.MATHJS && number.indexOf('.') < 0 && number.indexOf('E') < 0
+                    && !number.endsWith("Infinity") && !number.equals("NaN"))
+                {
+                    // 1/2 is 0 in C and Java
+                    number += ".0";
+                }
+                r.set(i, number, si < 0 ? UNARY : ATOM);
+            }
+            return r;
+        }
+
+        @Override
+        public Rendered visitVariable(Variable node)
+        {
+            Rendered r = new Rendered(targets.length);
+            for (int i = 0; i < targets.length; i++)
+            {
+                String name = node.getName();
+                if (targets[i] == Target.LATEX && name.length() > 1)
+                {
+                    name = "\\mathrm{" + escape(name) + "}";
+                }
+                r.set(i, name, ATOM);
+            }
+            return r;
+        }
+
+        @Override
+        public Rendered visitUnary(Unary node)
+        {
+            Rendered operand = node.getOperand().accept(this);
+            Rendered r = new Rendered(targets.length);
+            for (int i = 0; i < targets.length; i++)
+            {
+                // strictly above, so that - -x doesn't become --x
+                String o = wrap(operand, i, UNARY + 1);
+                if (node.getOperator() == Operator.NEG)
+                {
+                    r.set(i, "-" + o, UNARY);
+                }
+                else
+                {
+                    String not = targets[i] == Target.MATHJS ? "not " : targets[i] == Target.LATEX ? "\\lnot " : "!";
+                    r.set(i, not + o, UNARY);
+                }
+            }
+            return r;
+        }
+
+        @Override
+        public Rendered visitBinary(Binary node)
+        {
+            Rendered left = node.getLeft().accept(this);
+            Rendered right = node.getRight().accept(this);
+            Operator op = node.getOperator();
+            Rendered r = new Rendered(targets.length);
+            for (int i = 0; i < targets.length; i++)
+            {
+                Target t = targets[i];
+                if (op == Operator.POW)
+                {
+                    if (t == Target.C || t == Target.JAVA)
+                    {
+                        String pow = t == Target.C ? "pow(" : "Math.pow(";
+                        r.set(i, pow + left.text[i] + ", " + right.text[i] + ")", ATOM);
+                    }
+                    else if (t == Target.LATEX)
+                    {
+                        r.set(i, "{" + wrap(left, i, ATOM) + "}^{" + right.text[i] + "}", POWER);
+                    }
+                    else
+                    {
+                        r.set(i, wrap(left, i, POWER + 1) + " ^ " + wrap(right, i, UNARY), POWER);
+                    }
+                }
+                else if (op == Operator.DIV && t == Target.LATEX)
+                {
+                    r.set(i, "\\frac{" + left.text[i] + "}{" + right.text[i] + "}", ATOM);
+                }
+                else
+                {
+                    int p = precedence(op);
+                    // left associative, comparisons don't associate
+                    int leftMin = op.isComparison() ? p + 1 : p;
+                    r.set(i, wrap(left, i, leftMin) + " " + symbol(op, t) + " " + wrap(right, i, p + 1), p);
+                }
+            }
+            return r;
+        }
+
+        @Override
+        public Rendered visitFunction(Function node)
+        {
+            Rendered argument = node.getArgument().accept(this);
+            Rendered r = new Rendered(targets.length);
+            for (int i = 0; i < targets.length; i++)
+            {
+                r.set(i, function(node.getName(), argument.text[i], targets[i]), ATOM);
+            }
+            return r;
+        }
+
+        @Override
+        public Rendered visitConditional(Conditional node)
+        {
+            Rendered condition = node.getCondition().accept(this);
+            Rendered then = node.getThen().accept(this);
+            Rendered otherwise = node.getOtherwise().accept(this);
+            Rendered r = new Rendered(targets.length);
+            for (int i = 0; i < targets.length; i++)
+            {
+                if (targets[i] == Target.LATEX)
+                {
+                    r.set(i, "\\begin{cases}" + then.text[i] + " & \\text{if } " + condition.text[i] + " \\\\ "
+                        + otherwise.text[i] + " & \\text{otherwise}\\end{cases}", ATOM);
+                }
+                else
+                {
+                    // a ? b : c ? d : e chains to the right
+                    r.set(i, wrap(condition, i, CONDITIONAL + 1) + " ? " + wrap(then, i, CONDITIONAL + 1) + " : "
+                        + wrap(otherwise, i, CONDITIONAL), CONDITIONAL);
+                }
+            }
+            return r;
+        }
+    };
+
+    private String wrap(Rendered r, int i, int minimum)
+    {
+        if (r.precedence[i] >= minimum)
+        {
+            return r.text[i];
+        }
+        return targets[i] == Target.LATEX ? "\\left(" + r.text[i] + "\\right)" : "(" + r.text[i] + ")";
+    }
+
+    private static int precedence(Operator op)
+    {
+        switch (op)
+        {
+            case ADD:
+            case SUB:
+                return ADDITIVE;
+            case MUL:
+            case DIV:
+                return MULTIPLICATIVE;
+            case AND:
+                return AND;
+            case OR:
+                return OR;
+            default:
+                return COMPARISON;
+        }
+    }
+
+    private static String symbol(Operator op, Target t)
+    {
+        switch (op)
+        {
+            case MUL:
+                return t == Target.LATEX ? "\\cdot" : "*";
+            case AND:
+                return t == Target.MATHJS ? "and" : t == Target.LATEX ? "\\land" : "&&";
+            case OR:
+                return t == Target.MATHJS ? "or" : t == Target.LATEX ? "\\lor" : "||";
+            case GT:
+                return ">";
+            case GE:
+                return t == Target.LATEX ? "\\geq" : ">=";
+            case LT:
+                return "<";
+            case LE:
+                return t == Target.LATEX ? "\\leq" : "<=";
+            case EQ:
+                return t == Target.LATEX ? "=" : "==";
+            case NE:
+                return t == Target.LATEX ? "\\neq" : "!=";
+            default:
+                return op.getSymbol();
+        }
+    }
+
+    private static String function(String name, String x, Target t)
+    {
+        if (!ExpressionCompiler.FUNCTIONS.contains(name))
+        {
+            throw new IllegalArgumentException("Unknown function " + name);
+        }
+        if (t == Target.LATEX)
+        {
+            if (name.equals("sqrt"))
+            {
+                return "\\sqrt{" + x + "}";
+            }
+            if (name.equals("abs"))
+            {
+                return "\\left|" + x + "\\right|";
+            }
+            if (name.equals("ceil"))
+            {
+                return "\\left\\lceil " + x + "\\right\\rceil";
+            }
+            if (name.equals("floor"))
+            {
+                return "\\left\\lfloor " + x + "\\right\\rfloor";
+            }
+            String f = name.equals("log") ? "\\log_{10}" : name.equals("H") ? "H"
+                : name.equals("random") ? "\\mathrm{random}" : "\\" + name;
+            return f + "\\left(" + x + "\\right)";
+        }
+        if (name.equals("H"))
+        {
+            // Heaviside, 0.5 at 0
+            String one = t == Target.MATHJS ? "1" : "1.0";
+            String zero = t == Target.MATHJS ? "0" : "0.0";
+            return "((" + x + ") > 0 ? " + one + " : (" + x + ") < 0 ? " + zero + " : 0.5)";
+        }
+        if (name.equals("random"))
+        {
+            if (t == Target.C)
+            {
+                return "((" + x + ") * ((double) rand() / ((double) RAND_MAX + 1)))";
+            }
+            if (t == Target.JAVA)
+            {
+                return "(Math.random() * (" + x + "))";
+            }
+            return "random(" + x + ")";
+        }
+        if (name.equals("ln"))
+        {
+            name = "log";
+        }
+        else if (name.equals("log"))
+        {
+            name = "log10";
+        }
+        else if (name.equals("abs") && t == Target.C)
+        {
+            name = "fabs";
+        }
+        return (t == Target.JAVA ? "Math." : "") + name + "(" + x + ")";
+    }
+
+    private static String number(double v)
+    {
+        return v == Math.rint(v) && Math.abs(v) < 1e15 ? String.valueOf((long) v) : String.valueOf(v);
+    }
+
+    private static String latexNumber(double v)
+    {
+        String n = number(v);
+        int e = n.indexOf('E');
+        if (e < 0)
+        {
+            return n;
+        }
+        return n.substring(0, e) + " \\times 10^{" + n.substring(e + 1) + "}";
+    }
+
+    private static String escape(String name)
+    {
+        return name.replace("_", "\\_");
+    }
+}
@@ -0,0 +1,368 @@
+package org.neuroml2.model.utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.neuroml2.model.utils.ExpressionNode.Binary;
+import org.neuroml2.model.utils.ExpressionNode.Conditional;
+import org.neuroml2.model.utils.ExpressionNode.Constant;
+import org.neuroml2.model.utils.ExpressionNode.Function;
+import org.neuroml2.model.utils.ExpressionNode.Operator;
+import org.neuroml2.model.utils.ExpressionNode.Unary;
+import org.neuroml2.model.utils.ExpressionNode.Variable;
+
+/**
+ * Simplifies expressions before they are evaluated many times:
+ *
+ * <ul>
+ * <li>quantities are converted to SI, and parameters whose definition
+ * folds to a constant are replaced by their value</li>
+ * <li>operations on constants are computed (functions but random), with
+ * the semantics of {@link ExpressionCompiler}</li>
+ * <li>conditionals on constants, or with identical branches, are reduced to
+ * the branch taken</li>
+ * <li>neutral elements (<code>x * 1</code>, <code>x + 0</code>,
+ * <code>x ^ 1</code>...) are dropped, constants of products and sums
+ * merged, <code>0 - x</code> becomes <code>-x</code> and
+ * <code>a - -b</code> <code>a + b</code></li>
+ * <li>exponentials are combined (<code>exp(a) * exp(b)</code> to
+ * <code>exp(a + b)</code>, <code>c / exp(a)</code> to
+ * <code>c * exp(-a)</code>) and nested divisions flattened</li>
+ * </ul>
+ *
+ * Reassociating may change results in the last bits. Trees are left
+ * untouched, so the original form remains available for display.
+ */
+public class ExpressionSimplifier
+{
+
+    private final Map<String, ExpressionNode> context;
+
+    private final SIConverter units;
+
+    private final Set<String> independent;
+
+    // in dependency order
+    private final Map<String, ExpressionNode> simplified = new LinkedHashMap<String, ExpressionNode>();
+
+    private final Set<String> visiting = new HashSet<String>();
+
+    private ExpressionSimplifier(Map<String, ExpressionNode> context, SIConverter units, String[] independent)
+    {
+        this.context = context;
+        this.units = units;
+        this.independent = new HashSet<String>(Arrays.asList(independent));
+    }
+
+    /**
+     * @param units to convert quantities to SI, if null they are kept
+     */
+    public static ExpressionNode simplify(ExpressionNode node, SIConverter units)
+    {
+        return new ExpressionSimplifier(Collections.<String, ExpressionNode> emptyMap(), units, new String[0])
+            .simplify(node);
+    }
+
+    /**
+     * Simplifies all the definitions of a context, as in
+     * {@link ExpressionCompiler#compile(Map, String, SIConverter, String...)}
+     *
+     * @param independentVariables are never replaced by their definition
+     */
+    public static Map<String, ExpressionNode> simplify(Map<String, ExpressionNode> context, SIConverter units,
+        String... independentVariables)
+    {
+        ExpressionSimplifier s = new ExpressionSimplifier(context, units, independentVariables);
+        Map<String, ExpressionNode> all = new LinkedHashMap<String, ExpressionNode>();
+        for (String name : context.keySet())
+        {
+            ExpressionNode def = s.definition(name);
+            all.put(name, def != null ? def : context.get(name));
+        }
+        return all;
+    }
+
+    /**
+     * @return the simplified definitions target depends on, target included
+     */
+    static Map<String, ExpressionNode> simplify(Map<String, ExpressionNode> context, String target,
+        SIConverter units, String... independentVariables)
+    {
+        ExpressionSimplifier s = new ExpressionSimplifier(context, units, independentVariables);
+        s.definition(target);
+        return s.simplified;
+    }
+
+    /**
+     * @return the simplified definition of name, null if it's free
+     */
+    private ExpressionNode definition(String name)
+    {
+        ExpressionNode def = simplified.get(name);
+        if (def != null)
+        {
+            return def;
+        }
+        def = context.get(name);
+        if (def == null || independent.contains(name) || def.equals(new Variable(name)) || !visiting.add(name))
+        {
+            // circular definitions are left for the compiler to report
+            return null;
+        }
+        def = simplify(def);
+        visiting.remove(name);
+        simplified.put(name, def);
+        return def;
+    }
+
+    private ExpressionNode simplify(ExpressionNode node)
+    {
+        return node.accept(new ExpressionNode.Visitor<ExpressionNode>()
+        {
+            @Override
+            public ExpressionNode visitConstant(Constant node)
+            {
+                if (node.getUnit() == null || units == null)
+                {
+                    return node;
+                }
+                return new Constant(units.getConverter(node.getUnit()).convert(node.getValue()));
+            }
+
+            @Override
+            public ExpressionNode visitVariable(Variable node)
+            {
+                ExpressionNode def = definition(node.getName());
+                return isConstant(def) ? def : node;
+            }
+
+            @Override
+            public ExpressionNode visitUnary(Unary node)
+            {
+                return unary(node.getOperator(), node.getOperand().accept(this));
+            }
+
+            @Override
+            public ExpressionNode visitBinary(Binary node)
+            {
+                return binary(node.getOperator(), node.getLeft().accept(this), node.getRight().accept(this));
+            }
+
+            @Override
+            public ExpressionNode visitFunction(Function node)
+            {
+                return function(node.getName(), node.getArgument().accept(this));
+            }
+
+            @Override
+            public ExpressionNode visitConditional(Conditional node)
+            {
+                ExpressionNode condition = node.getCondition().accept(this);
+                if (isConstant(condition))
+                {
+                    // the other branch is dead
+                    return value(condition) != 0 ? node.getThen().accept(this) : node.getOtherwise().accept(this);
+                }
+                ExpressionNode then = node.getThen().accept(this);
+                ExpressionNode otherwise = node.getOtherwise().accept(this);
+                if (then.equals(otherwise))
+                {
+                    return then;
+                }
+                return new Conditional(condition, then, otherwise);
+            }
+        });
+    }
+
+    private static boolean isConstant(ExpressionNode node)
+    {
+        return node instanceof Constant && ((Constant) node).getUnit() == null;
+    }
+
+    private static boolean isConstant(ExpressionNode node, double value)
+    {
+        return isConstant(node) && value(node) == value;
+    }
+
+    private static double value(ExpressionNode node)
+    {
+        return ((Constant) node).getValue();
+    }
+
+    private static boolean isExp(ExpressionNode node)
+    {
+        return node instanceof Function && ((Function) node).getName().equals("exp");
+    }
+
+    private static boolean isNegation(ExpressionNode node)
+    {
+        return node instanceof Unary && ((Unary) node).getOperator() == Operator.NEG;
+    }
+
+    private static boolean isProductWithExp(ExpressionNode node)
+    {
+        return node instanceof Binary && ((Binary) node).getOperator() == Operator.MUL
+            && isExp(((Binary) node).getRight());
+    }
+
+    private static ExpressionNode argument(ExpressionNode node)
+    {
+        return ((Function) node).getArgument();
+    }
+
+    private static ExpressionNode unary(Operator op, ExpressionNode operand)
+    {
+        if (isConstant(operand))
+        {
+            double x = value(operand);
+            return new Constant(op == Operator.NEG ? -x : x != 0 ? 0 : 1);
+        }
+        if (op == Operator.NEG && isNegation(operand))
+        {
+            return ((Unary) operand).getOperand();
+        }
+        return new Unary(op, operand);
+    }
+
+    private static ExpressionNode binary(Operator op, ExpressionNode left, ExpressionNode right)
+    {
+        if (isConstant(left) && isConstant(right))
+        {
+            return new Constant(ExpressionCompiler.apply(op, value(left), value(right)));
+        }
+        switch (op)
+        {
+            case ADD:
+                if (isConstant(right, 0))
+                {
+                    return left;
+                }
+                if (isConstant(left, 0))
+                {
+                    return right;
+                }
+                if (isNegation(right))
+                {
+                    return binary(Operator.SUB, left, ((Unary) right).getOperand());
+                }
+                return merge(op, left, right);
+            case SUB:
+                if (isConstant(right, 0))
+                {
+                    return left;
+                }
+                if (isConstant(left, 0))
+                {
+                    return unary(Operator.NEG, right);
+                }
+                if (isNegation(right))
+                {
+                    return binary(Operator.ADD, left, ((Unary) right).getOperand());
+                }
+                break;
+            case MUL:
+                if (isConstant(right, 1))
+                {
+                    return left;
+                }
+                if (isConstant(left, 1))
+                {
+                    return right;
+                }
+                if (isExp(left) && isExp(right))
+                {
+                    return function("exp", binary(Operator.ADD, argument(left), argument(right)));
+                }
+                if (isExp(right) && isProductWithExp(left))
+                {
+                    // (a * exp(p)) * exp(q) = a * exp(p + q)
+                    Binary l = (Binary) left;
+                    return binary(Operator.MUL, l.getLeft(),
+                        function("exp", binary(Operator.ADD, argument(l.getRight()), argument(right))));
+                }
+                return merge(op, left, right);
+            case DIV:
+                if (isConstant(right, 1))
+                {
+                    return left;
+                }
+                if (isExp(left) && isExp(right))
+                {
+                    return function("exp", binary(Operator.SUB, argument(left), argument(right)));
+                }
+                if (isExp(right) && isProductWithExp(left))
+                {
+                    Binary l = (Binary) left;
+                    return binary(Operator.MUL, l.getLeft(),
+                        function("exp", binary(Operator.SUB, argument(l.getRight()), argument(right))));
+                }
+                if (isExp(right))
+                {
+                    // a multiplication is cheaper than a division
+                    ExpressionNode inverse = function("exp", unary(Operator.NEG, argument(right)));
+                    return isConstant(left, 1) ? inverse : binary(Operator.MUL, left, inverse);
+                }
+                if (left instanceof Binary && ((Binary) left).getOperator() == Operator.DIV)
+                {
+                    // (a / b) / c = a / (b * c)
+                    Binary l = (Binary) left;
+                    return binary(Operator.DIV, l.getLeft(), binary(Operator.MUL, l.getRight(), right));
+                }
+                if (right instanceof Binary && ((Binary) right).getOperator() == Operator.DIV)
+                {
+                    // a / (b / c) = (a * c) / b
+                    Binary r = (Binary) right;
+                    return binary(Operator.DIV, binary(Operator.MUL, left, r.getRight()), r.getLeft());
+                }
+                break;
+            case POW:
+                if (isConstant(right, 1))
+                {
+                    return left;
+                }
+                if (isConstant(right, 0))
+                {
+                    return new Constant(1);
+                }
+                break;
+            default:
+                break;
+        }
+        return new Binary(op, left, right);
+    }
+
+    /**
+     * (x op c1) op c2 = x op (c1 op c2), for op + or *
+     */
+    private static ExpressionNode merge(Operator op, ExpressionNode left, ExpressionNode right)
+    {
+        ExpressionNode constant = isConstant(left) ? left : isConstant(right) ? right : null;
+        ExpressionNode other = constant == left ? right : left;
+        if (constant != null && other instanceof Binary && ((Binary) other).getOperator() == op)
+        {
+            Binary inner = (Binary) other;
+            if (isConstant(inner.getRight()))
+            {
+                return binary(op, inner.getLeft(), binary(op, inner.getRight(), constant));
+            }
+            if (isConstant(inner.getLeft()))
+            {
+                return binary(op, binary(op, inner.getLeft(), constant), inner.getRight());
+            }
+        }
+        return new Binary(op, left, right);
+    }
+
+    private static ExpressionNode function(String name, ExpressionNode argument)
+    {
+        if (isConstant(argument) && !name.equals("random") && ExpressionCompiler.FUNCTIONS.contains(name))
+        {
+            return new Constant(ExpressionCompiler.call(ExpressionCompiler.FUNCTIONS.indexOf(name), value(argument)));
+        }
+        return new Function(name, argument);
+    }
+}
@@ -1,14 +1,15 @@
 package org.neuroml2.model.utils;
 
 import com.google.common.base.Joiner;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.lemsml.exprparser.utils.ExpressionParser;
 
-import org.lemsml.exprparser.utils.SymbolExpander;
 import org.lemsml.exprparser.utils.UndefinedSymbolException;
 import org.lemsml.exprparser.visitors.ARenderAs;
 import org.lemsml.exprparser.visitors.AntlrExpressionParser;
@@ -19,40 +20,51 @@ import org.lemsml.model.ConditionalDerivedVariable;
 import org.lemsml.model.exceptions.LEMSCompilerException;
 import org.lemsml.model.extended.Lems;
 import org.lemsml.model.extended.LemsNode;
-import org.lemsml.model.extended.Scope;
 import org.lemsml.model.extended.Symbol;
 
 public class FunctionNodeHelper {
-    
+
+	// Core types (HHExpLinearRate, HHSigmoidVariable...) share the same few
+	// definitions across all gates, so renderings are kept by expression
+	// (and unit context) instead of parsing the same strings over and over
+	private static final LRUCache<String, String> renderings = new LRUCache<String, String>(8192);
+
+	// unit maps by content (compared with equals, not by hash), to their id
+	private static final LRUCache<Map<String, ? extends Object>, String> unitContextIds =
+		new LRUCache<Map<String, ? extends Object>, String>(64);
+
+	// guarded by unitContextIds
+	private static long unitContextCount = 0;
+
+	private static final ThreadLocal<UnitContext> lastUnitContext = new ThreadLocal<UnitContext>();
+
 	private String name;
 	private String independentVariable;
 	private Double[] xRange;
 	private Double deltaX;
-	//context must be toposorted!!
-	LinkedHashMap<String, String> context = new LinkedHashMap<String, String>(){
-		private static final long serialVersionUID = 1242351L;
-	{
+	// definitions, expanded on demand
+	private final SymbolGraph context = new SymbolGraph()
 		//null is allowed in the antlr lems grammar
-		put("null", "null");
-	}};
-	private LinkedHashMap<String, String> expandedContext;
+		.define("null", "null");
 
 
 	public void setIndependentVariable(String x) {
 		this.independentVariable = x;
-		this.context.put(independentVariable, independentVariable);
+		this.context.define(independentVariable, independentVariable);
 	}
 
 	public String getExpression() {
-		return context.get(getName());
+		return context.getDefinition(getName());
 	}
 
 	public void register(String variable, String value) {
-		this.context.put(variable, value);
+		this.context.define(variable, value);
 	}
 
 	public void register(Map<String, String> ctxt) {
-		this.context.putAll(ctxt);
+		for (Map.Entry<String, String> kv : ctxt.entrySet()) {
+			this.context.define(kv.getKey(), kv.getValue());
+		}
 	}
 
 	public void deRegister(String k) {
@@ -87,34 +99,67 @@ public class FunctionNodeHelper {
 		this.name = name;
 	}
 
+	/**
+	 * Tabulates a compiled version of this function over xRange, every
+	 * deltaX (both in SI units)
+	 */
+	public RateTable tabulate(CompiledExpression compiled) {
+		if (xRange == null || deltaX == null) {
+			throw new IllegalStateException("xRange and deltaX must be set to tabulate " + getName());
+		}
+		return RateTable.tabulate(getName(), compiled, xRange[0], xRange[1], deltaX);
+	}
+
     @Override
 	public String toString() {
-		return this.getName()  + ": " + this.context;
+		return this.getName()  + ": " + this.context.getDefinitions();
 	}
 
 	public String toTeX() {
-		RenderLatex adaptor = new RenderLatex();
-		AntlrExpressionParser p = new AntlrExpressionParser(getExpression());
-		return p.parseAndVisitWith(adaptor);
+		String expression = getExpression();
+		String key = "TeX\u0000" + expression;
+		String tex = renderings.get(key);
+		if (tex == null) {
+			RenderLatex adaptor = new RenderLatex();
+			AntlrExpressionParser p = new AntlrExpressionParser(expression);
+			tex = p.parseAndVisitWith(adaptor);
+			renderings.put(key, tex);
+		}
+		return tex;
 	}
 
 	public String getBigFatExpression(String var){
-		if(expandedContext == null){
-			expandedContext = new LinkedHashMap<String, String>(context);
-			SymbolExpander.expandSymbols(expandedContext);
-		}
-		return "f(" + independentVariable + ")="  + expandedContext.get(var);
+		return "f(" + independentVariable + ")="  + context.expand(var);
 	}
 
 	public String getExpression(String var){
-		if(expandedContext == null){
-			expandedContext = new LinkedHashMap<String, String>(context);
-			SymbolExpander.expandSymbols(expandedContext);
+		return context.expand(var);
+	}
+
+	/**
+	 * @return var as a sequence of bindings instead of one expression: the
+	 * intermediates used more than once, then f(x), e.g.
+	 * <code>x = (v - midpoint) / scale; f(v)=rate * x / (1 - exp(-x))</code>
+	 */
+	public String getLetExpression(String var){
+		StringBuilder let = new StringBuilder();
+		for (Map.Entry<String, String> b : context.getBindings(var).entrySet()) {
+			if (b.getKey().equals(var)) {
+				let.append("f(").append(independentVariable).append(")=").append(b.getValue());
+			} else {
+				let.append(b.getKey()).append(" = ").append(b.getValue()).append("; ");
+			}
 		}
-		return expandedContext.get(var);
+		return let.toString();
 	}
-    
-    
+
+	/**
+	 * @return the intermediates of var, see {@link SymbolGraph#getBindings(String)}
+	 */
+	public Map<String, String> getBindings(String var){
+		return context.getBindings(var);
+	}
+
 	public static Set<String> findIndependentVariables(String expression,
 			Map<String, String> context) {
 		Set<String> vars = ExpressionParser.listSymbolsInExpression(expression);
@@ -167,29 +212,43 @@ public class FunctionNodeHelper {
     
 	public static String processExpression(Symbol resolved, Lems lems)
 			throws LEMSCompilerException, UndefinedSymbolException {
+		return processExpression(resolved, collectDefinitions(resolved), lems);
+	}
+
+	/**
+	 * The part of {@link #processExpression(Symbol, Lems)} which walks the
+	 * LEMS model: the (toposorted) definitions resolved depends on
+	 */
+	public static Map<String, String> collectDefinitions(Symbol resolved)
+			throws LEMSCompilerException, UndefinedSymbolException {
+		return resolved.getScope().buildTopoSortedContext(resolved);
+	}
+
+	/**
+	 * The rendering part of {@link #processExpression(Symbol, Lems)}, which
+	 * only reads the model, so it can run on any thread
+	 *
+	 * @param definitions from {@link #collectDefinitions(Symbol)}
+	 */
+	public static String processExpression(Symbol resolved, Map<String, String> definitions, Lems lems) {
 
 		LemsNode type = resolved.getType();
 		FunctionNodeHelper f = new FunctionNodeHelper();
 		f.setName(resolved.getName());
-		f.register(depsToMathJS(resolved, lems));
+		f.register(depsToMathJS(definitions, lems));
 		f.setIndependentVariable("v");
 
 		if (type instanceof ConditionalDerivedVariable) {
 			ConditionalDerivedVariable cdv = (ConditionalDerivedVariable) resolved.getType();
 			f.register(f.getName(), conditionalDVToMathJS(cdv, lems));
 		}
-        
-        
 
 		return f.getExpression(f.getName());
 	}
-    
-    
-	private static Map<String, String> depsToMathJS(Symbol resolved, Lems lems)
-			throws LEMSCompilerException, UndefinedSymbolException {
+
+
+	private static Map<String, String> depsToMathJS(Map<String, String> sortedContext, Lems lems) {
 		Map<String, String> ret = new LinkedHashMap<String, String>();
-		Scope scope = resolved.getScope();
-		Map<String, String> sortedContext = scope.buildTopoSortedContext(resolved);
 		for(Map.Entry<String, String> kv : sortedContext.entrySet()){
 			String var = kv.getKey();
 			String def = kv.getValue();
@@ -198,10 +257,150 @@ public class FunctionNodeHelper {
 		return ret;
 	}
 
+	/**
+	 * Renders resolved, with its dependencies inlined, to each of the
+	 * targets: the expressions are parsed once, then rendered in a single
+	 * pass (instead of one parse per RenderMathJS or RenderLatex use)
+	 */
+	public static Map<ExpressionRenderer.Target, String> processExpression(Symbol resolved, Lems lems,
+			ExpressionRenderer.Target... targets) throws LEMSCompilerException, UndefinedSymbolException {
+		return processExpression(resolved, lems, false, targets);
+	}
+
+	/**
+	 * @param simplified to render the expression as evaluated (see
+	 * {@link ExpressionSimplifier}) rather than as written
+	 */
+	public static Map<ExpressionRenderer.Target, String> processExpression(Symbol resolved, Lems lems,
+			boolean simplified, ExpressionRenderer.Target... targets)
+			throws LEMSCompilerException, UndefinedSymbolException {
+		Map<String, ExpressionNode> context = ExpressionCompiler.parseContext(resolved);
+		ExpressionNode expanded = inline(resolved.getName(), context, new HashMap<String, ExpressionNode>());
+		SIConverter units = new SIConverter(lems);
+		if (simplified) {
+			expanded = ExpressionSimplifier.simplify(expanded, units);
+		}
+		return new ExpressionRenderer(units, targets).render(expanded);
+	}
+
+	/**
+	 * @param expression in LEMS syntax
+	 */
+	public static Map<ExpressionRenderer.Target, String> render(String expression, Lems lems,
+			ExpressionRenderer.Target... targets) {
+		SIConverter units = lems == null ? null : new SIConverter(lems);
+		return new ExpressionRenderer(units, targets).render(LemsExpressionParser.parseCached(expression));
+	}
+
+	private static final ExpressionNode VISITING = new ExpressionNode.Variable("");
+
+	// definition of symbol with its dependencies substituted, each expanded
+	// once (the tree shares them)
+	private static ExpressionNode inline(String symbol, final Map<String, ExpressionNode> context,
+			final Map<String, ExpressionNode> inlined) {
+		ExpressionNode done = inlined.get(symbol);
+		if (done == VISITING) {
+			throw new IllegalArgumentException("Circular definition of " + symbol);
+		}
+		if (done != null) {
+			return done;
+		}
+		ExpressionNode def = context.get(symbol);
+		if (def == null || def.equals(new ExpressionNode.Variable(symbol))) {
+			return new ExpressionNode.Variable(symbol);
+		}
+		inlined.put(symbol, VISITING);
+		ExpressionNode expanded = def.accept(new ExpressionNode.Visitor<ExpressionNode>() {
+			@Override
+			public ExpressionNode visitConstant(ExpressionNode.Constant node) {
+				return node;
+			}
+
+			@Override
+			public ExpressionNode visitVariable(ExpressionNode.Variable node) {
+				return inline(node.getName(), context, inlined);
+			}
+
+			@Override
+			public ExpressionNode visitUnary(ExpressionNode.Unary node) {
+				return new ExpressionNode.Unary(node.getOperator(), node.getOperand().accept(this));
+			}
+
+			@Override
+			public ExpressionNode visitBinary(ExpressionNode.Binary node) {
+				return new ExpressionNode.Binary(node.getOperator(), node.getLeft().accept(this),
+						node.getRight().accept(this));
+			}
+
+			@Override
+			public ExpressionNode visitFunction(ExpressionNode.Function node) {
+				return new ExpressionNode.Function(node.getName(), node.getArgument().accept(this));
+			}
+
+			@Override
+			public ExpressionNode visitConditional(ExpressionNode.Conditional node) {
+				return new ExpressionNode.Conditional(node.getCondition().accept(this),
+						node.getThen().accept(this), node.getOtherwise().accept(this));
+			}
+		});
+		inlined.put(symbol, expanded);
+		return expanded;
+	}
+
 	private static String adaptToMathJS(String expression, Lems lems) {
-		ARenderAs adaptor = new RenderMathJS(lems.getSymbolToUnit());
-		AntlrExpressionParser p = new AntlrExpressionParser(expression);
-		return p.parseAndVisitWith(adaptor);
+		Map<String, ? extends Object> units = lems.getSymbolToUnit();
+		String key = unitContext(units) + "\u0000" + expression;
+		String rendered = renderings.get(key);
+		if (rendered == null) {
+			ARenderAs adaptor = new RenderMathJS(units);
+			AntlrExpressionParser p = new AntlrExpressionParser(expression);
+			rendered = p.parseAndVisitWith(adaptor);
+			renderings.put(key, rendered);
+		}
+		return rendered;
+	}
+
+	/**
+	 * @return an id of the units an expression is rendered with: unit maps
+	 * with the same content (documents normally all have the core units)
+	 * share one id, others never do. The id of the last map seen is kept
+	 * per thread, so threads rendering different documents don't evict
+	 * each other.
+	 */
+	private static String unitContext(Map<String, ? extends Object> units) {
+		UnitContext last = lastUnitContext.get();
+		if (last == null || last.units.get() != units) {
+			String id;
+			synchronized (unitContextIds) {
+				id = unitContextIds.get(units);
+				if (id == null) {
+					// a copy, so that the key can't change
+					id = "MathJS:" + (++unitContextCount);
+					unitContextIds.put(new HashMap<String, Object>(units), id);
+				}
+			}
+			last = new UnitContext(units, id);
+			lastUnitContext.set(last);
+		}
+		return last.id;
+	}
+
+	private static class UnitContext {
+		// weak: the thread mustn't keep the units of a model alive
+		final WeakReference<Map<String, ? extends Object>> units;
+		final String id;
+
+		UnitContext(Map<String, ? extends Object> units, String id) {
+			this.units = new WeakReference<Map<String, ? extends Object>>(units);
+			this.id = id;
+		}
+	}
+
+	/**
+	 * @return the cache of rendered expressions, e.g. for its statistics
+	 */
+	public static LRUCache<String, String> getRenderingCache() {
+		return renderings;
 	}
     
 
@@ -0,0 +1,159 @@
+package org.neuroml2.model.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache bounded by the total weight of its entries (bytes, entry count...),
+ * evicting the least recently used entries first. Keeps hit/miss/eviction
+ * counts. Thread safe.
+ */
+public class LRUCache<K, V>
+{
+
+    private final long maxWeight;
+
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+
+    private long weight = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    /**
+     * @param maxWeight total weight above which entries get evicted
+     */
+    public LRUCache(long maxWeight)
+    {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * @return the cached value, or null
+     */
+    public synchronized V get(K key)
+    {
+        Entry<V> e = entries.get(key);
+        if (e == null)
+        {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.value;
+    }
+
+    /**
+     * Adds (or replaces) an entry with a weight of 1
+     */
+    public void put(K key, V value)
+    {
+        put(key, value, 1);
+    }
+
+    /**
+     * Adds (or replaces) an entry. An entry heavier than the whole cache
+     * isn't kept.
+     */
+    public synchronized void put(K key, V value, long entryWeight)
+    {
+        Entry<V> old = entries.remove(key);
+        if (old != null)
+        {
+            weight -= old.weight;
+        }
+        if (entryWeight > maxWeight)
+        {
+            return;
+        }
+        entries.put(key, new Entry<V>(value, entryWeight));
+        weight += entryWeight;
+
+        Iterator<Entry<V>> lru = entries.values().iterator();
+        while (weight > maxWeight)
+        {
+            Entry<V> eldest = lru.next();
+            lru.remove();
+            weight -= eldest.weight;
+            evictions++;
+        }
+    }
+
+    public synchronized void remove(K key)
+    {
+        Entry<V> old = entries.remove(key);
+        if (old != null)
+        {
+            weight -= old.weight;
+        }
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized long getWeight()
+    {
+        return weight;
+    }
+
+    public long getMaxWeight()
+    {
+        return maxWeight;
+    }
+
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    /**
+     * @return hits / requests, 0 before the first request
+     */
+    public synchronized double getHitRate()
+    {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "LRUCache: " + entries.size() + " entries, weight " + weight + "/" + maxWeight + ", " + hits
+            + " hits, " + misses + " misses, " + evictions + " evictions";
+    }
+
+    private static class Entry<V>
+    {
+
+        final V value;
+
+        final long weight;
+
+        Entry(V value, long weight)
+        {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package org.neuroml2.model.utils;
+
+import org.neuroml2.model.utils.ExpressionNode.Binary;
+import org.neuroml2.model.utils.ExpressionNode.Conditional;
+import org.neuroml2.model.utils.ExpressionNode.Constant;
+import org.neuroml2.model.utils.ExpressionNode.Function;
+import org.neuroml2.model.utils.ExpressionNode.Operator;
+import org.neuroml2.model.utils.ExpressionNode.Unary;
+import org.neuroml2.model.utils.ExpressionNode.Variable;
+
+/**
+ * Recursive descent parser for LEMS expressions, e.g.
+ * <code>rate * exp((v - midpoint)/scale)</code> or
+ * <code>x .gt. 0 .and. x .lt. 1</code>, into {@link ExpressionNode}s.
+ * Numbers directly followed by a unit symbol (<code>-65mV</code>,
+ * <code>0.1 per_ms</code>), as found in parameter values, are parsed as
+ * quantities.
+ *
+ * Precedence, from lowest: <code>?:</code>, <code>.or.</code>,
+ * <code>.and.</code>, comparisons, <code>+ -</code>, <code>* /</code>,
+ * unary <code>- !</code>, <code>^</code> (right associative). The C-like
+ * forms of the logical and comparison operators (<code>&amp;&amp; || &lt;
+ * &gt;= ==</code>...) are accepted too.
+ */
+public class LemsExpressionParser
+{
+
+    private enum Kind
+    {
+        NUMBER, IDENTIFIER, OPERATOR, END
+    }
+
+    // trees are immutable, so they can be shared by all the expressions
+    // with the same definition
+    private static final LRUCache<String, ExpressionNode> parsed = new LRUCache<String, ExpressionNode>(8192);
+
+    private final String expression;
+
+    private int position = 0;
+
+    private Kind kind;
+
+    private String token;
+
+    private int tokenStart;
+
+    private LemsExpressionParser(String expression)
+    {
+        this.expression = expression;
+        advance();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the expression isn't valid
+     */
+    public static ExpressionNode parse(String expression)
+    {
+        LemsExpressionParser parser = new LemsExpressionParser(expression);
+        ExpressionNode node = parser.conditional();
+        if (parser.kind != Kind.END)
+        {
+            throw parser.error("Unexpected " + parser.token);
+        }
+        return node;
+    }
+
+    /**
+     * Same as {@link #parse(String)}, for expressions likely to be parsed
+     * again: the trees of the last few thousand expressions are kept
+     */
+    public static ExpressionNode parseCached(String expression)
+    {
+        ExpressionNode node = parsed.get(expression);
+        if (node == null)
+        {
+            node = parse(expression);
+            parsed.put(expression, node);
+        }
+        return node;
+    }
+
+    /**
+     * @return the cache of {@link #parseCached(String)}, e.g. for its
+     * statistics
+     */
+    public static LRUCache<String, ExpressionNode> getCache()
+    {
+        return parsed;
+    }
+
+    private ExpressionNode conditional()
+    {
+        ExpressionNode condition = or();
+        if (accept("?"))
+        {
+            ExpressionNode then = conditional();
+            expect(":");
+            return new Conditional(condition, then, conditional());
+        }
+        return condition;
+    }
+
+    private ExpressionNode or()
+    {
+        ExpressionNode left = and();
+        while (accept(".or.") || accept("||"))
+        {
+            left = new Binary(Operator.OR, left, and());
+        }
+        return left;
+    }
+
+    private ExpressionNode and()
+    {
+        ExpressionNode left = comparison();
+        while (accept(".and.") || accept("&&"))
+        {
+            left = new Binary(Operator.AND, left, comparison());
+        }
+        return left;
+    }
+
+    private ExpressionNode comparison()
+    {
+        ExpressionNode left = additive();
+        Operator op = comparisonOperator();
+        if (op != null)
+        {
+            return new Binary(op, left, additive());
+        }
+        return left;
+    }
+
+    private Operator comparisonOperator()
+    {
+        if (kind != Kind.OPERATOR)
+        {
+            return null;
+        }
+        Operator op;
+        if (token.equals(".gt.") || token.equals(">"))
+        {
+            op = Operator.GT;
+        }
+        else if (token.equals(".geq.") || token.equals(">="))
+        {
+            op = Operator.GE;
+        }
+        else if (token.equals(".lt.") || token.equals("<"))
+        {
+            op = Operator.LT;
+        }
+        else if (token.equals(".leq.") || token.equals("<="))
+        {
+            op = Operator.LE;
+        }
+        else if (token.equals(".eq.") || token.equals("=="))
+        {
+            op = Operator.EQ;
+        }
+        else if (token.equals(".neq.") || token.equals("!="))
+        {
+            op = Operator.NE;
+        }
+        else
+        {
+            return null;
+        }
+        advance();
+        return op;
+    }
+
+    private ExpressionNode additive()
+    {
+        ExpressionNode left = multiplicative();
+        while (true)
+        {
+            if (accept("+"))
+            {
+                left = new Binary(Operator.ADD, left, multiplicative());
+            }
+            else if (accept("-"))
+            {
+                left = new Binary(Operator.SUB, left, multiplicative());
+            }
+            else
+            {
+                return left;
+            }
+        }
+    }
+
+    private ExpressionNode multiplicative()
+    {
+        ExpressionNode left = unary();
+        while (true)
+        {
+            if (accept("*"))
+            {
+                left = new Binary(Operator.MUL, left, unary());
+            }
+            else if (accept("/"))
+            {
+                left = new Binary(Operator.DIV, left, unary());
+            }
+            else
+            {
+                return left;
+            }
+        }
+    }
+
+    private ExpressionNode unary()
+    {
+        if (accept("-"))
+        {
+            ExpressionNode operand = unary();
+            if (operand instanceof Constant && ((Constant) operand).getUnit() != null)
+            {
+                // -5 degC is -5 in degC, not -(5 degC) (offset units)
+                return new Constant(-((Constant) operand).getValue(), ((Constant) operand).getUnit());
+            }
+            return new Unary(Operator.NEG, operand);
+        }
+        if (accept("+"))
+        {
+            return unary();
+        }
+        if (accept("!") || accept(".not."))
+        {
+            return new Unary(Operator.NOT, unary());
+        }
+        return power();
+    }
+
+    private ExpressionNode power()
+    {
+        ExpressionNode base = primary();
+        if (accept("^"))
+        {
+            return new Binary(Operator.POW, base, unary());
+        }
+        return base;
+    }
+
+    private ExpressionNode primary()
+    {
+        if (kind == Kind.NUMBER)
+        {
+            double value;
+            try
+            {
+                value = Double.parseDouble(token);
+            }
+            catch (NumberFormatException e)
+            {
+                throw error("Bad number " + token);
+            }
+            advance();
+            if (kind == Kind.IDENTIFIER)
+            {
+                String unit = token;
+                advance();
+                return new Constant(value, unit);
+            }
+            return new Constant(value);
+        }
+        if (kind == Kind.IDENTIFIER)
+        {
+            String name = token;
+            advance();
+            if (accept("("))
+            {
+                ExpressionNode argument = conditional();
+                expect(")");
+                return new Function(name, argument);
+            }
+            return new Variable(name);
+        }
+        if (accept("("))
+        {
+            ExpressionNode inner = conditional();
+            expect(")");
+            return inner;
+        }
+        throw error(kind == Kind.END ? "Unexpected end" : "Unexpected " + token);
+    }
+
+    private boolean accept(String operator)
+    {
+        if (kind == Kind.OPERATOR && token.equals(operator))
+        {
+            advance();
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String operator)
+    {
+        if (!accept(operator))
+        {
+            throw error("Expected " + operator);
+        }
+    }
+
+    private IllegalArgumentException error(String message)
+    {
+        return new IllegalArgumentException(message + " at " + tokenStart + " in: " + expression);
+    }
+
+    private void advance()
+    {
+        int n = expression.length();
+        while (position < n && Character.isWhitespace(expression.charAt(position)))
+        {
+            position++;
+        }
+        tokenStart = position;
+        if (position == n)
+        {
+            kind = Kind.END;
+            token = null;
+            return;
+        }
+
+        char c = expression.charAt(position);
+        if (Character.isDigit(c) || (c == '.' && position + 1 < n && Character.isDigit(expression.charAt(position + 1))))
+        {
+            while (position < n && (Character.isDigit(expression.charAt(position)) || expression.charAt(position) == '.'))
+            {
+                position++;
+            }
+            // exponent, only if digits follow (1e-3, but not 1e or 2exp)
+            if (position < n && (expression.charAt(position) == 'e' || expression.charAt(position) == 'E'))
+            {
+                int p = position + 1;
+                if (p < n && (expression.charAt(p) == '+' || expression.charAt(p) == '-'))
+                {
+                    p++;
+                }
+                if (p < n && Character.isDigit(expression.charAt(p)))
+                {
+                    position = p;
+                    while (position < n && Character.isDigit(expression.charAt(position)))
+                    {
+                        position++;
+                    }
+                }
+            }
+            kind = Kind.NUMBER;
+        }
+        else if (Character.isLetter(c) || c == '_')
+        {
+            while (position < n && (Character.isLetterOrDigit(expression.charAt(position)) || expression.charAt(position) == '_'))
+            {
+                position++;
+            }
+            kind = Kind.IDENTIFIER;
+        }
+        else if (c == '.')
+        {
+            // .gt., .and. ...
+            int end = expression.indexOf('.', position + 1);
+            if (end < 0)
+            {
+                throw error("Bad operator");
+            }
+            position = end + 1;
+            kind = Kind.OPERATOR;
+        }
+        else
+        {
+            position++;
+            if (position < n && "<>=!&|".indexOf(c) >= 0 && "=&|".indexOf(expression.charAt(position)) >= 0)
+            {
+                position++;
+            }
+            kind = Kind.OPERATOR;
+        }
+        token = expression.substring(tokenStart, position);
+        if (kind == Kind.OPERATOR)
+        {
+            token = token.toLowerCase();
+        }
+    }
+}
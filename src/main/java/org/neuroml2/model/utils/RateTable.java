@@ -0,0 +1,145 @@
+package org.neuroml2.model.utils;
+
+/**
+ * A function of one variable (typically a gate rate as a function of v)
+ * sampled at regular intervals, for lookup with linear interpolation
+ * instead of evaluation.
+ *
+ * The error bound is measured when the table is filled, as the largest
+ * difference between the function and the interpolation half way between
+ * consecutive samples.
+ */
+public class RateTable
+{
+
+    private final String name;
+
+    private final double xMin;
+
+    private final double deltaX;
+
+    private final double[] values;
+
+    private final double maxError;
+
+    private RateTable(String name, double xMin, double deltaX, double[] values, double maxError)
+    {
+        this.name = name;
+        this.xMin = xMin;
+        this.deltaX = deltaX;
+        this.values = values;
+        this.maxError = maxError;
+    }
+
+    /**
+     * Samples f at xMin, xMin + deltaX, ... up to (at least) xMax
+     */
+    public static RateTable tabulate(String name, CompiledExpression f, double xMin, double xMax, double deltaX)
+    {
+        if (!(deltaX > 0) || !(xMax > xMin))
+        {
+            throw new IllegalArgumentException("Bad range for " + name + ": [" + xMin + ", " + xMax + "] by " + deltaX);
+        }
+        if (f.getIndependentVariables().size() != 1)
+        {
+            throw new IllegalArgumentException(name + " depends on " + f.getIndependentVariables());
+        }
+        int n = (int) Math.ceil((xMax - xMin) / deltaX - 1e-9) + 1;
+        double[] frame = f.newFrame();
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++)
+        {
+            frame[0] = xMin + i * deltaX;
+            values[i] = f.evaluateFrame(frame);
+        }
+
+        double maxError = 0;
+        for (int i = 0; i < n - 1; i++)
+        {
+            frame[0] = xMin + (i + 0.5) * deltaX;
+            double error = Math.abs(f.evaluateFrame(frame) - (values[i] + values[i + 1]) / 2);
+            // NaN if the function isn't defined everywhere
+            if (Double.isNaN(error))
+            {
+                maxError = Double.NaN;
+                break;
+            }
+            maxError = Math.max(maxError, error);
+        }
+        return new RateTable(name, xMin, deltaX, values, maxError);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public double getXMin()
+    {
+        return xMin;
+    }
+
+    public double getXMax()
+    {
+        return xMin + (values.length - 1) * deltaX;
+    }
+
+    public double getDeltaX()
+    {
+        return deltaX;
+    }
+
+    public int size()
+    {
+        return values.length;
+    }
+
+    public double getX(int i)
+    {
+        return xMin + i * deltaX;
+    }
+
+    /**
+     * @return the samples themselves (not a copy), not to be modified
+     */
+    public double[] getValues()
+    {
+        return values;
+    }
+
+    /**
+     * @return an estimate of the largest interpolation error: the largest
+     * error at the midpoints of the samples, NaN if the function isn't finite
+     * over the whole range
+     */
+    public double getMaxError()
+    {
+        return maxError;
+    }
+
+    /**
+     * @return the linear interpolation at x, clamped to the range of the
+     * table
+     */
+    public double interpolate(double x)
+    {
+        double position = (x - xMin) / deltaX;
+        if (position <= 0)
+        {
+            return values[0];
+        }
+        int i = (int) position;
+        if (i >= values.length - 1)
+        {
+            return values[values.length - 1];
+        }
+        double fraction = position - i;
+        return values[i] + fraction * (values[i + 1] - values[i]);
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + ": " + values.length + " points in [" + xMin + ", " + getXMax() + "], max error " + maxError;
+    }
+}
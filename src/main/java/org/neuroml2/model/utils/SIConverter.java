@@ -0,0 +1,127 @@
+package org.neuroml2.model.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.measure.Quantity;
+import javax.measure.Unit;
+import javax.measure.UnitConverter;
+
+import org.lemsml.model.extended.Lems;
+
+/**
+ * Converts NeuroML quantity strings (<code>"-65mV"</code>, <code>"10 pS"</code>,
+ * <code>"6.3 degC"</code>...) to plain doubles in SI units, using the units
+ * defined in a LEMS document. Converters are looked up once per unit symbol,
+ * and parsed quantities are shared by all instances (the same few values
+ * recur across parameters and documents); instances are thread safe.
+ */
+public class SIConverter
+{
+
+    private static final Pattern QUANTITY = Pattern
+        .compile("\\s*([-+]?(?:\\d+\\.?\\d*|\\.\\d+)(?:[eE][-+]?\\d+)?)\\s*([A-Za-z_][A-Za-z0-9_]*)?\\s*");
+
+    // parsed quantities by hash of their text, a newcomer replacing the
+    // quantity in its slot
+    private static final Parsed[] parsed = new Parsed[1 << 12];
+
+    private final Lems lems;
+
+    private final ConcurrentMap<String, UnitConverter> converters = new ConcurrentHashMap<String, UnitConverter>();
+
+    public SIConverter(Lems lems)
+    {
+        this.lems = lems;
+    }
+
+    /**
+     * @param quantity a number, optionally followed by a unit symbol
+     */
+    public double toSI(String quantity)
+    {
+        Parsed p = parse(quantity);
+        if (p.symbol == null)
+        {
+            return p.value;
+        }
+        return getConverter(p.symbol).convert(p.value);
+    }
+
+    private static Parsed parse(String quantity)
+    {
+        int h = quantity.hashCode();
+        int slot = (h ^ (h >>> 16)) & (parsed.length - 1);
+        Parsed p = parsed[slot];
+        if (p != null && p.text.equals(quantity))
+        {
+            return p;
+        }
+        Matcher m = QUANTITY.matcher(quantity);
+        if (!m.matches())
+        {
+            throw new IllegalArgumentException("Not a quantity: " + quantity);
+        }
+        p = new Parsed(quantity, Double.parseDouble(m.group(1)), m.group(2));
+        parsed[slot] = p;
+        return p;
+    }
+
+    /**
+     * @return the factor from the given unit to the SI one (the converter
+     * may also have an offset, e.g. degC)
+     */
+    public double getFactor(String symbol)
+    {
+        UnitConverter c = getConverter(symbol);
+        return c.convert(1.) - c.convert(0.);
+    }
+
+    /**
+     * @return the SI value of 0 in the given unit (e.g. 273.15 for degC)
+     */
+    public double getOffset(String symbol)
+    {
+        return getConverter(symbol).convert(0.);
+    }
+
+    public UnitConverter getConverter(String symbol)
+    {
+        UnitConverter c = converters.get(symbol);
+        if (c == null)
+        {
+            Unit<?> unit = lems.getUnitBySymbol(symbol);
+            if (unit == null)
+            {
+                throw new IllegalArgumentException("Unknown unit: " + symbol);
+            }
+            c = toSystemUnit(unit);
+            converters.putIfAbsent(symbol, c);
+        }
+        return c;
+    }
+
+    private static <Q extends Quantity<Q>> UnitConverter toSystemUnit(Unit<Q> unit)
+    {
+        return unit.getConverterTo(unit.getSystemUnit());
+    }
+
+    private static final class Parsed
+    {
+
+        final String text;
+
+        final double value;
+
+        final String symbol;
+
+        Parsed(String text, double value, String symbol)
+        {
+            this.text = text;
+            this.value = value;
+            this.symbol = symbol;
+        }
+    }
+}
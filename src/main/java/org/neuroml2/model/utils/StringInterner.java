@@ -0,0 +1,113 @@
+package org.neuroml2.model.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Canonicalizes equal strings (parameter values, ids, unit symbols...) to
+ * one shared instance, so that the thousands of <code>"10pS"</code>,
+ * <code>"ionChannelHH"</code> or <code>"k"</code> of large documents, and of
+ * all the documents read, take the heap once.
+ *
+ * Only the attribute strings of the documents read are interned. The
+ * quantities LEMS builds from them (getParameterValue, Scope.evaluate) are
+ * made by the library and aren't, and neither are components: analysed
+ * components are bound to the scope of their model, so identical ones in
+ * different documents stay distinct.
+ *
+ * Unlike {@link String#intern()} the table is bounded: strings are kept in a
+ * fixed number of slots by hash, a newcomer replacing the string in its
+ * slot, so frequent values stay while unique ones (e.g. coordinates) don't
+ * accumulate. Slots are read and written without locking (strings being
+ * immutable, a racing thread at worst misses a hit). Thread safe.
+ */
+public class StringInterner
+{
+
+    private static final StringInterner shared = new StringInterner(1 << 16, 64);
+
+    private final String[] table;
+
+    private final int maxLength;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong replacedBytes = new AtomicLong();
+
+    /**
+     * @param slots rounded up to a power of 2
+     * @param maxLength longer strings aren't interned, as they rarely repeat
+     */
+    public StringInterner(int slots, int maxLength)
+    {
+        if (slots <= 0 || slots > 1 << 30 || maxLength < 0)
+        {
+            throw new IllegalArgumentException("Invalid interner size: " + slots + ", " + maxLength);
+        }
+        int size = Integer.highestOneBit(slots);
+        this.table = new String[size < slots ? size << 1 : size];
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @return an interner for all the readers of the JVM to share (see
+     * NeuroML2ModelReader.withInterning)
+     */
+    public static StringInterner shared()
+    {
+        return shared;
+    }
+
+    /**
+     * @return the instance equal to s already interned, otherwise s
+     */
+    public String intern(String s)
+    {
+        if (s == null || s.length() > maxLength)
+        {
+            return s;
+        }
+        int h = s.hashCode();
+        int slot = (h ^ (h >>> 16)) & (table.length - 1);
+        String canonical = table[slot];
+        if (canonical == s)
+        {
+            return s;
+        }
+        if (canonical != null && canonical.equals(s))
+        {
+            hits.incrementAndGet();
+            replacedBytes.addAndGet(sizeOf(s));
+            return canonical;
+        }
+        table[slot] = s;
+        return s;
+    }
+
+    /**
+     * @return the number of strings replaced by an interned one
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the total shallow size of the strings replaced by an interned
+     * one. This isn't a measure of the heap saved: a replaced string is only
+     * reclaimed if nothing else references it, which the interner can't
+     * tell.
+     */
+    public long getReplacedBytes()
+    {
+        return replacedBytes.get();
+    }
+
+    /**
+     * @return the shallow size of a string and its characters on a 64 bit
+     * JVM with compressed references
+     */
+    static long sizeOf(String s)
+    {
+        return 24 + ((16 + 2L * s.length() + 7) & ~7L);
+    }
+}
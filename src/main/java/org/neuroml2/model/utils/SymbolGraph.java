@@ -0,0 +1,409 @@
+package org.neuroml2.model.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Definitions of symbols in terms of each other (<code>x = v - midpoint</code>,
+ * <code>r = rate * exp(x)</code>...), kept as a graph rather than expanded
+ * once and for all:
+ *
+ * <ul>
+ * <li>{@link #expand(String)} inlines all the definitions a symbol depends
+ * on, each of them expanded only once and remembered until one of its
+ * dependencies is redefined</li>
+ * <li>{@link #getBindings(String)} keeps the definitions used more than
+ * once as named intermediates, so its size stays linear in the number of
+ * definitions whereas a full expansion can grow exponentially</li>
+ * </ul>
+ *
+ * A symbol defined as itself (<code>v = v</code>) is a free variable.
+ * Identifiers followed by <code>(</code> are functions and identifiers
+ * following a number are units, neither are substituted.
+ */
+public class SymbolGraph
+{
+
+    private final Map<String, String> definitions = new LinkedHashMap<String, String>();
+
+    // symbols referenced by each definition, with repetitions
+    private final Map<String, List<String>> dependencies = new HashMap<String, List<String>>();
+
+    // definitions referencing each symbol (defined or not yet)
+    private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+    private final Map<String, String> expanded = new HashMap<String, String>();
+
+    public SymbolGraph define(String symbol, String definition)
+    {
+        remove(symbol);
+        definitions.put(symbol, definition);
+        List<String> deps = symbols(definition);
+        deps.removeAll(Collections.singleton(symbol));
+        dependencies.put(symbol, deps);
+        for (String d : deps)
+        {
+            Set<String> users = dependents.get(d);
+            if (users == null)
+            {
+                users = new HashSet<String>();
+                dependents.put(d, users);
+            }
+            users.add(symbol);
+        }
+        return this;
+    }
+
+    public SymbolGraph remove(String symbol)
+    {
+        invalidate(symbol);
+        definitions.remove(symbol);
+        List<String> deps = dependencies.remove(symbol);
+        if (deps != null)
+        {
+            for (String d : deps)
+            {
+                Set<String> users = dependents.get(d);
+                users.remove(symbol);
+                if (users.isEmpty())
+                {
+                    dependents.remove(d);
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Forgets the expansions of symbol and of everything depending on it
+     */
+    private void invalidate(String symbol)
+    {
+        expanded.remove(symbol);
+        Set<String> users = dependents.get(symbol);
+        if (users != null)
+        {
+            // an expanded symbol has all its dependencies expanded, so
+            // stop at the ones which aren't
+            for (String u : users)
+            {
+                if (expanded.containsKey(u))
+                {
+                    invalidate(u);
+                }
+            }
+        }
+    }
+
+    public boolean isDefined(String symbol)
+    {
+        return definitions.containsKey(symbol);
+    }
+
+    public String getDefinition(String symbol)
+    {
+        return definitions.get(symbol);
+    }
+
+    /**
+     * @return all the definitions, in the order they were first made
+     */
+    public Map<String, String> getDefinitions()
+    {
+        return Collections.unmodifiableMap(definitions);
+    }
+
+    /**
+     * @return the defined symbols the definition of symbol references
+     */
+    public Set<String> getDependencies(String symbol)
+    {
+        Set<String> deps = new LinkedHashSet<String>();
+        if (dependencies.containsKey(symbol))
+        {
+            for (String d : dependencies.get(symbol))
+            {
+                if (isDefined(d))
+                {
+                    deps.add(d);
+                }
+            }
+        }
+        return deps;
+    }
+
+    private boolean isInlinable(String symbol)
+    {
+        String def = definitions.get(symbol);
+        return def != null && !def.trim().equals(symbol);
+    }
+
+    /**
+     * @return the definition of symbol with all its dependencies inlined, or
+     * null if symbol isn't defined
+     * @throws IllegalArgumentException on circular definitions
+     */
+    public String expand(String symbol)
+    {
+        return expand(symbol, new HashSet<String>());
+    }
+
+    private String expand(String symbol, Set<String> visiting)
+    {
+        String e = expanded.get(symbol);
+        if (e != null || !definitions.containsKey(symbol))
+        {
+            return e;
+        }
+        if (!visiting.add(symbol))
+        {
+            throw new IllegalArgumentException("Circular definition of " + symbol);
+        }
+        Map<String, String> inlined = new HashMap<String, String>();
+        for (String d : dependencies.get(symbol))
+        {
+            if (isInlinable(d) && !inlined.containsKey(d))
+            {
+                inlined.put(d, expand(d, visiting));
+            }
+        }
+        e = substitute(definitions.get(symbol), inlined);
+        visiting.remove(symbol);
+        expanded.put(symbol, e);
+        return e;
+    }
+
+    /**
+     * @return the intermediates to bind, in dependency order, to evaluate
+     * symbol: the definitions referenced more than once, with the ones
+     * referenced once (or as short as a name) inlined. The last entry is symbol itself.
+     * @throws IllegalArgumentException on circular definitions
+     */
+    public Map<String, String> getBindings(String symbol)
+    {
+        Map<String, String> bindings = new LinkedHashMap<String, String>();
+        if (!isInlinable(symbol))
+        {
+            if (isDefined(symbol))
+            {
+                bindings.put(symbol, definitions.get(symbol));
+            }
+            return bindings;
+        }
+
+        List<String> order = new ArrayList<String>();
+        sort(symbol, new HashSet<String>(), new HashSet<String>(), order);
+        Map<String, Integer> references = new HashMap<String, Integer>();
+        for (String s : order)
+        {
+            for (String d : dependencies.get(s))
+            {
+                Integer n = references.get(d);
+                references.put(d, n == null ? 1 : n + 1);
+            }
+        }
+
+        // dependencies first, so the inlined ones are ready when needed
+        Map<String, String> inlined = new HashMap<String, String>();
+        for (String s : order)
+        {
+            Map<String, String> replacements = new HashMap<String, String>();
+            for (String d : dependencies.get(s))
+            {
+                if (inlined.containsKey(d))
+                {
+                    replacements.put(d, inlined.get(d));
+                }
+            }
+            String definition = substitute(definitions.get(s), replacements);
+            Integer n = references.get(s);
+            // aliases and constants are as short as their names
+            if (s.equals(symbol) || (n != null && n > 1 && !isAtomic(definition)))
+            {
+                bindings.put(s, definition);
+            }
+            else
+            {
+                inlined.put(s, definition);
+            }
+        }
+        return bindings;
+    }
+
+    private void sort(String symbol, Set<String> visiting, Set<String> done, List<String> order)
+    {
+        if (done.contains(symbol) || !isInlinable(symbol))
+        {
+            return;
+        }
+        if (!visiting.add(symbol))
+        {
+            throw new IllegalArgumentException("Circular definition of " + symbol);
+        }
+        for (String d : dependencies.get(symbol))
+        {
+            sort(d, visiting, done, order);
+        }
+        visiting.remove(symbol);
+        done.add(symbol);
+        order.add(symbol);
+    }
+
+    /**
+     * @return the identifiers of expression, functions and units aside
+     */
+    static List<String> symbols(String expression)
+    {
+        final List<String> found = new ArrayList<String>();
+        scan(expression, new IdentifierHandler()
+        {
+            @Override
+            public void identifier(String name, StringBuilder out)
+            {
+                found.add(name);
+            }
+        }, null);
+        return found;
+    }
+
+    /**
+     * @return expression with the symbols replaced by their (parenthesised)
+     * replacements
+     */
+    static String substitute(String expression, final Map<String, String> replacements)
+    {
+        if (replacements.isEmpty())
+        {
+            return expression;
+        }
+        StringBuilder out = new StringBuilder(expression.length() * 2);
+        scan(expression, new IdentifierHandler()
+        {
+            @Override
+            public void identifier(String name, StringBuilder out)
+            {
+                String r = replacements.get(name);
+                if (r == null)
+                {
+                    out.append(name);
+                }
+                else if (isAtomic(r))
+                {
+                    out.append(r);
+                }
+                else
+                {
+                    out.append('(').append(r).append(')');
+                }
+            }
+        }, out);
+        return out.toString();
+    }
+
+    private static boolean isAtomic(String expression)
+    {
+        if (expression.isEmpty())
+        {
+            return false;
+        }
+        for (int i = 0; i < expression.length(); i++)
+        {
+            char c = expression.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || c == '_' || c == '.'))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private interface IdentifierHandler
+    {
+        void identifier(String name, StringBuilder out);
+    }
+
+    /**
+     * Copies expression to out (if not null), passing the identifiers which
+     * aren't functions or units to handler instead
+     */
+    private static void scan(String expression, IdentifierHandler handler, StringBuilder out)
+    {
+        int n = expression.length();
+        int i = 0;
+        boolean afterNumber = false;
+        while (i < n)
+        {
+            char c = expression.charAt(i);
+            int start = i;
+            if (Character.isDigit(c) || (c == '.' && i + 1 < n && Character.isDigit(expression.charAt(i + 1))))
+            {
+                while (i < n && (Character.isDigit(expression.charAt(i)) || expression.charAt(i) == '.'))
+                {
+                    i++;
+                }
+                if (i < n && (expression.charAt(i) == 'e' || expression.charAt(i) == 'E'))
+                {
+                    int p = i + 1;
+                    if (p < n && (expression.charAt(p) == '+' || expression.charAt(p) == '-'))
+                    {
+                        p++;
+                    }
+                    if (p < n && Character.isDigit(expression.charAt(p)))
+                    {
+                        i = p;
+                        while (i < n && Character.isDigit(expression.charAt(i)))
+                        {
+                            i++;
+                        }
+                    }
+                }
+                afterNumber = true;
+            }
+            else if (Character.isLetter(c) || c == '_')
+            {
+                while (i < n && (Character.isLetterOrDigit(expression.charAt(i)) || expression.charAt(i) == '_'))
+                {
+                    i++;
+                }
+                int next = i;
+                while (next < n && Character.isWhitespace(expression.charAt(next)))
+                {
+                    next++;
+                }
+                String name = expression.substring(start, i);
+                if (afterNumber || (next < n && expression.charAt(next) == '('))
+                {
+                    if (out != null)
+                    {
+                        out.append(name);
+                    }
+                }
+                else
+                {
+                    handler.identifier(name, out);
+                }
+                afterNumber = false;
+                continue;
+            }
+            else
+            {
+                i++;
+                if (!Character.isWhitespace(c))
+                {
+                    afterNumber = false;
+                }
+            }
+            if (out != null)
+            {
+                out.append(expression, start, i);
+            }
+        }
+    }
+}
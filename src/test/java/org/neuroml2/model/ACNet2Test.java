@@ -3,9 +3,15 @@ package org.neuroml2.model;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import javax.measure.Quantity;
 import javax.xml.bind.JAXBContext;
@@ -23,6 +29,10 @@ import org.lemsml.model.exceptions.LEMSCompilerException;
 import org.lemsml.model.extended.Component;
 import org.lemsml.model.extended.Scope;
 import org.lemsml.model.extended.interfaces.HasComponents;
+import org.neuroml2.model.utils.CompiledExpression;
+import org.neuroml2.model.utils.DoubleEvaluator;
+import org.neuroml2.model.utils.ExpressionCompiler;
+import org.neuroml2.model.utils.RateTable;
 
 import tec.units.ri.quantity.Quantities;
 
@@ -51,6 +61,158 @@ public class ACNet2Test {
 		assertEquals(acnet.getCells().size(), hh2.getCells().size());
 	}
 
+	@Test
+	public void testStreamingRead() throws Throwable {
+		final int[] counts = new int[3];
+		NeuroML2ModelReader nmlReader = new NeuroML2ModelReader();
+		Neuroml2 streamed = nmlReader.read(getLocalFile("/acnet2flat.nml"),
+				new NetworkVisitor() {
+					@Override
+					public void visitInstance(NetworkElement instance) {
+						assertEquals("populationList", instance.getContainerElementName());
+						counts[0]++;
+					}
+
+					@Override
+					public void visitConnection(NetworkElement connection) {
+						assertTrue(connection.getAttribute("preCellId").startsWith("../"));
+						counts[1]++;
+					}
+
+					@Override
+					public void visitInput(NetworkElement input) {
+						assertEquals("BackgroundRandomIClamps", input.getContainerId());
+						counts[2]++;
+					}
+				});
+
+		assertEquals(60, counts[0]);
+		assertEquals(984, counts[1]);
+		assertEquals(14, counts[2]);
+		// structural parts are still in the model
+		assertEquals(acnet.getCells().size(), streamed.getCells().size());
+		assertEquals(8, streamed.getIonChannels().size());
+	}
+
+	@Test
+	public void testConnectivityStore() throws Throwable {
+		NeuroML2ModelReader nmlReader = new NeuroML2ModelReader();
+		ConnectivityStore connectivity = new ConnectivityStore(true);
+		nmlReader.read(getLocalFile("/acnet2flat.nml"), connectivity);
+
+		assertEquals(4, connectivity.getProjections().size());
+		assertEquals(984, connectivity.getConnectionCount());
+
+		ProjectionColumns bb = connectivity.getProjection("SmallNet_bask_bask");
+		assertEquals("baskets_12", bb.getPresynapticPopulation());
+		assertEquals("GABA_syn_inh", bb.getSynapse());
+		assertEquals(60, bb.size());
+		assertEquals(3, bb.getPreCellIndex(0));
+		assertEquals("../baskets_12/3/bask", bb.getPreCellId(0));
+		assertEquals("../baskets_12/0/bask", bb.get(0).getPostCellId());
+		assertEquals(0.41660583f, bb.getPreFractionAlong(0), 0);
+	}
+
+	@Test
+	public void testGapJunctions() throws Throwable {
+		// electrical connections name their synapse, continuous ones their
+		// pre and post components
+		String acnet2 = Files.toString(getLocalFile("/acnet2flat.nml"), Charsets.UTF_8);
+		String coupled = acnet2.replace("    <network id=", "    <gapJunction id=\"gj1\" conductance=\"10pS\"/>\n"
+				+ "    <gapJunction id=\"gj2\" conductance=\"20pS\"/>\n"
+				+ "    <silentSynapse id=\"silent1\"/>\n"
+				+ "    <gradedSynapse id=\"gs1\" conductance=\"5pS\" delta=\"5mV\" Vth=\"-55mV\" k=\"0.025per_ms\" erev=\"0mV\"/>\n"
+				+ "    <network id=")
+				.replace("    </network>", "        <electricalProjection id=\"bask_gj\" presynapticPopulation=\"baskets_12\" postsynapticPopulation=\"baskets_12\">\n"
+				+ "            <electricalConnectionInstance id=\"0\" preCell=\"../baskets_12/0/bask\" postCell=\"../baskets_12/1/bask\" preSegment=\"0\" preFractionAlong=\"0.5\" postSegment=\"0\" postFractionAlong=\"0.5\" synapse=\"gj1\"/>\n"
+				+ "            <electricalConnectionInstance id=\"1\" preCell=\"../baskets_12/2/bask\" postCell=\"../baskets_12/3/bask\" preSegment=\"0\" preFractionAlong=\"0.5\" postSegment=\"0\" postFractionAlong=\"0.5\" synapse=\"gj1\"/>\n"
+				+ "        </electricalProjection>\n"
+				+ "        <electricalProjection id=\"bask_gj_mixed\" presynapticPopulation=\"baskets_12\" postsynapticPopulation=\"baskets_12\">\n"
+				+ "            <electricalConnectionInstance id=\"0\" preCell=\"../baskets_12/4/bask\" postCell=\"../baskets_12/5/bask\" preSegment=\"0\" preFractionAlong=\"0.5\" postSegment=\"0\" postFractionAlong=\"0.5\" synapse=\"gj1\"/>\n"
+				+ "            <electricalConnectionInstance id=\"1\" preCell=\"../baskets_12/6/bask\" postCell=\"../baskets_12/7/bask\" preSegment=\"0\" preFractionAlong=\"0.5\" postSegment=\"0\" postFractionAlong=\"0.5\" synapse=\"gj2\"/>\n"
+				+ "        </electricalProjection>\n"
+				+ "        <continuousProjection id=\"bask_graded\" presynapticPopulation=\"baskets_12\" postsynapticPopulation=\"baskets_12\">\n"
+				+ "            <continuousConnectionInstance id=\"0\" preCell=\"../baskets_12/8/bask\" postCell=\"../baskets_12/9/bask\" preComponent=\"silent1\" postComponent=\"gs1\"/>\n"
+				+ "        </continuousProjection>\n"
+				+ "    </network>");
+		File coupledFile = File.createTempFile("acnet2gj", ".nml");
+		coupledFile.deleteOnExit();
+		Files.write(coupled, coupledFile, Charsets.UTF_8);
+
+		ConnectivityStore connectivity = new ConnectivityStore(false);
+		new NeuroML2ModelReader().read(coupledFile, connectivity);
+		assertEquals(7, connectivity.getProjections().size());
+
+		ProjectionColumns gj = connectivity.getProjection("bask_gj");
+		assertEquals("electricalProjection", gj.getElementName());
+		assertEquals(2, gj.size());
+		// the same synapse for all the connections
+		assertEquals("gj1", gj.getSynapse());
+		assertEquals("gj1", gj.getSynapse(1));
+		assertEquals("gj1", gj.get(0).getSynapse());
+		assertEquals(null, gj.getPreComponent(0));
+
+		ProjectionColumns mixed = connectivity.getProjection("bask_gj_mixed");
+		assertEquals(null, mixed.getSynapse());
+		assertEquals("gj1", mixed.getSynapse(0));
+		assertEquals("gj2", mixed.getSynapse(1));
+
+		ProjectionColumns graded = connectivity.getProjection("bask_graded");
+		assertEquals("silent1", graded.getPreComponent(0));
+		assertEquals("gs1", graded.get(0).getPostComponent());
+		assertEquals(null, graded.getSynapse());
+
+		// chemical connections get the synapse of their projection
+		assertEquals("GABA_syn_inh", connectivity.getProjection("SmallNet_bask_bask").getSynapse(0));
+
+		// and all of it survives a snapshot
+		File snapshotFile = File.createTempFile("acnet2gj", ".nml2snap");
+		snapshotFile.deleteOnExit();
+		NeuroML2Snapshot.write(coupledFile, snapshotFile);
+		try (NeuroML2Snapshot snapshot = NeuroML2Snapshot.open(snapshotFile)) {
+			assertEquals("gj1", snapshot.getProjection("bask_gj").getSynapse());
+			assertEquals("gj2", snapshot.getProjection("bask_gj_mixed").getSynapse(1));
+			assertEquals("gs1", snapshot.getProjection("bask_graded").getPostComponent(0));
+			assertEquals("GABA_syn_inh", snapshot.getProjection("SmallNet_bask_bask").getSynapse(59));
+		}
+	}
+
+	@Test
+	public void testSnapshot() throws Throwable {
+		File snapshotFile = File.createTempFile("acnet2", ".nml2snap");
+		snapshotFile.deleteOnExit();
+		NeuroML2Snapshot.write(getLocalFile("/acnet2flat.nml"), snapshotFile);
+
+		try (NeuroML2Snapshot snapshot = NeuroML2Snapshot.open(snapshotFile)) {
+			assertEquals(4, snapshot.getProjections().size());
+			ProjectionColumns bb = snapshot.getProjection("SmallNet_bask_bask");
+			assertEquals("GABA_syn_inh", bb.getSynapse());
+			assertEquals(60, bb.size());
+			assertEquals("../baskets_12/3/bask", bb.getPreCellId(0));
+			assertEquals(0.41660583f, bb.getPreFractionAlong(0), 0);
+
+			assertEquals(2, snapshot.getPopulations().size());
+			PopulationColumns pyramidals = snapshot.getPopulation("pyramidals_48");
+			assertEquals("pyr_4_sym", pyramidals.getComponent());
+			assertEquals(48, pyramidals.size());
+			assertEquals(1, pyramidals.getInstanceId(1));
+			assertEquals(384.13205f, pyramidals.getX(1), 0);
+			assertEquals(12, snapshot.getPopulation("baskets_12").size());
+
+			InputColumns inputs = snapshot.getInputList("BackgroundRandomIClamps");
+			assertEquals("pyramidals_48", inputs.getPopulation());
+			assertEquals(14, inputs.size());
+			assertEquals("../pyramidals_48/35/pyr_4_sym", inputs.getTarget(1));
+			assertEquals(35, inputs.getTargetCellIndex(1));
+			assertEquals("synapses", inputs.getDestination(1));
+			assertEquals(1, inputs.getWeight(1), 0);
+
+			Neuroml2 model = snapshot.getModel();
+			assertEquals(2, model.getCells().size());
+			assertTrue(model.getComponentById("pyr_4_sym") instanceof Cell);
+		}
+	}
+
 	@Test
 	public void testTypes() throws LEMSCompilerException {
 		assertEquals(2, acnet.getCells().size());
@@ -67,6 +229,83 @@ public class ACNet2Test {
 				.getParameterValue("value"));
 	}
 
+	@Test
+	public void testComponentIndex() throws Throwable {
+		ComponentIndex index = ComponentIndex.of(acnet);
+		assertTrue(index == ComponentIndex.of(acnet));
+		assertEquals(acnet.getAllOfType(BaseIonChannel.class), index.getAllOfType(BaseIonChannel.class));
+		assertEquals(acnet.getAllOfType(Cell.class), index.getAllOfType(Cell.class));
+		Component na = index.getComponentById("Na_pyr");
+		assertTrue(na == acnet.getComponentById("Na_pyr"));
+		// subclasses are found through their superclasses
+		assertTrue(index.getAllOfType(Component.class).contains(na));
+		assertTrue(index.getAllOfType(BaseIonChannel.class).contains(na));
+
+		index.remove(na);
+		assertEquals(null, index.getComponentById("Na_pyr"));
+		assertEquals(7, index.getAllOfType(BaseIonChannel.class).size());
+		assertEquals(acnet.getAllOfType(BaseIonChannel.class), index.getAllOfType(BaseIonChannel.class));
+
+		index.add(null, na);
+		assertTrue(na == index.getComponentById("Na_pyr"));
+		assertEquals(8, index.getAllOfType(BaseIonChannel.class).size());
+
+		// the gates of several channels have the same ids: removing the
+		// first one uncovers the next in document order
+		List<Component> gates = new ArrayList<Component>();
+		for (Component c : index.getAllOfType(Component.class)) {
+			if ("m".equals(c.getId())) {
+				gates.add(c);
+			}
+		}
+		assertEquals(3, gates.size());
+		assertTrue(gates.get(0) == index.getComponentById("m"));
+		for (BaseIonChannel ic : index.getAllOfType(BaseIonChannel.class)) {
+			if (ic.getComponents().contains(gates.get(0))) {
+				index.remove(ic);
+				break;
+			}
+		}
+		assertTrue(gates.get(1) == index.getComponentById("m"));
+	}
+
+	@Test
+	public void testIndexCollected() throws Throwable {
+		int before = ComponentIndex.indexCount();
+		Neuroml2 kdr = new NeuroML2ModelReader().read(getLocalFile("/kdr.channel.nml"));
+		assertTrue(ComponentIndex.of(kdr).getComponentById("kdr") != null);
+		WeakReference<Neuroml2> read = new WeakReference<Neuroml2>(kdr);
+		kdr = null;
+		for (int i = 0; i < 100 && (read.get() != null || ComponentIndex.indexCount() > before); i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		// the index doesn't keep its model alive, and goes with it
+		assertEquals(null, read.get());
+		assertTrue(ComponentIndex.indexCount() <= before);
+	}
+
+	@Test
+	public void testLazyRead() throws Throwable {
+		LazyNeuroml2 doc = new NeuroML2ModelReader().readLazily(getLocalFile("/acnet2flat.nml"));
+		assertEquals(17, doc.getIds().size());
+		assertEquals(0, doc.getMaterializedCount());
+
+		// the cell, its channels and its concentration model only
+		Cell cell = (Cell) doc.getComponentById("pyr_4_sym");
+		assertEquals(5, cell.getBiophysicalProperties().getMembraneProperties()
+				.getChannelDensities().size());
+		assertEquals(7, doc.getMaterializedCount());
+		assertEquals(null, ComponentIndex.of(doc.getModel()).getComponentById("network_ACnet2"));
+
+		assertEquals(8, doc.getIonChannels().size());
+		assertEquals(acnet.getCells().size(), doc.materializeAll().getCells().size());
+		assertEquals(17, doc.getMaterializedCount());
+		// read once, and still part of the model
+		assertTrue(cell == doc.getComponentById("pyr_4_sym"));
+		assertTrue(cell == ComponentIndex.of(doc.getModel()).getComponentById("pyr_4_sym"));
+	}
+
 	@Test
 	public void testEvaluation() throws LEMSCompilerException {
 
@@ -125,6 +364,57 @@ public class ACNet2Test {
 
 	}
 
+	@Test
+	public void testCompiledRates() throws Throwable {
+		Cell cell = (Cell) acnet.getComponentById("pyr_4_sym");
+		ChannelDensity naChans = (ChannelDensity) cell
+				.getBiophysicalProperties().getMembraneProperties()
+				.getSubComponentsWithName("Na_pyr_soma_group").get(0);
+		GateHHrates m = (GateHHrates) ((IonChannel) naChans.getIonChannel()).getGates().get(0);
+
+		Map<String, CompiledExpression> rates = ExpressionCompiler.compileGate(m, acnet);
+		assertEquals(2, rates.size());
+		for (String rate : rates.keySet()) {
+			Scope scope = ((Component) m.getSubComponentsWithName(rate).get(0)).getScope();
+			for (double v = -90; v <= 40; v += 10) {
+				assertEquals(scope.evaluate("r", getContext("v", v, "mV")).getValue().doubleValue(),
+						rates.get(rate).evaluate(v / 1000), 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void testDoubleEvaluation() throws Throwable {
+		GateHHrates m = (GateHHrates) acnet.getComponentById("Na_pyr").getSubComponentsWithName("m").get(0);
+		Scope rev = m.getReverseRate().getScope();
+
+		DoubleEvaluator r = DoubleEvaluator.bind(rev, "r", acnet, "v").withInputUnits("mV");
+		for (double v = -80; v <= 40; v += 5) {
+			assertEquals(rev.evaluate("r", getContext("v", v, "mV")).getValue().doubleValue(),
+					r.evaluate(v), 1e-9);
+		}
+		double si = r.evaluate(-65);
+		assertEquals(si / 1000, r.withOutputUnit("per_ms").evaluate(-65), 1e-12);
+	}
+
+	@Test
+	public void testRateTables() throws Throwable {
+		RateTables tables = new RateTables(-0.1, 0.05, 1e-4).tabulate(acnet);
+		RateTable alpha = tables.getTable("Na_pyr", "m", "forwardRate");
+		assertEquals(1501, alpha.size());
+
+		GateHHrates m = (GateHHrates) acnet.getComponentById("Na_pyr").getSubComponentsWithName("m").get(0);
+		CompiledExpression compiled = ExpressionCompiler.compileGate(m, acnet).get("forwardRate");
+		assertEquals(compiled.evaluate(-0.065), alpha.interpolate(-0.065), 1e-9);
+		assertEquals(Arrays.asList("v", "caConc"),
+				tables.getUntabulated().get("Kahp_pyr:z:forwardRate"));
+
+		StringWriter csv = new StringWriter();
+		tables.export(csv);
+		assertTrue(csv.toString().startsWith("v,"));
+		assertEquals(1502, csv.toString().split("\n").length);
+	}
+
 	public ImmutableMap<String, Quantity<?>> getContext(String var, Double i,
 			String unit) {
 		ImmutableMap<String, Quantity<?>> ctxt = new ImmutableMap.Builder<String, Quantity<?>>()
@@ -138,6 +428,28 @@ public class ACNet2Test {
 		return Double.valueOf(valUnit.split(" ")[0]);
 	}
 
+	@Test
+	public void testWriter() throws Throwable {
+		int types = acnet.getComponentTypes().size();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new NeuroML2ModelWriter().write(acnet, out);
+		// nothing erased
+		assertEquals(types, acnet.getComponentTypes().size());
+
+		String xml = out.toString("UTF-8");
+		assertTrue(!xml.contains("\"baseCell\""));
+		Neuroml2 written = new NeuroML2ModelReader().read(xml);
+		assertEquals(2, written.getCells().size());
+		assertEquals(8, written.getAllOfType(BaseIonChannel.class).size());
+
+		// the cell with its channels and concentration model
+		out.reset();
+		new NeuroML2ModelWriter().write(acnet, Arrays.asList(acnet.getComponentById("pyr_4_sym")), out);
+		Neuroml2 cell = new NeuroML2ModelReader().read(out.toString("UTF-8"));
+		assertEquals(1, cell.getCells().size());
+		assertEquals(5, cell.getAllOfType(BaseIonChannel.class).size());
+	}
+
 	@Test
 	public void testMarshalling() throws JAXBException, PropertyException,
 			IOException {
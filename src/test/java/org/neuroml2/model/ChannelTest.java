@@ -1,28 +1,65 @@
 package org.neuroml2.model;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.logging.Logger;
 import javax.measure.Quantity;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.lemsml.model.ComponentType;
+import org.lemsml.model.extended.Component;
+import org.lemsml.model.extended.Lems;
 import org.lemsml.model.extended.Scope;
+import org.neuroml2.model.utils.FunctionNodeHelper;
+import org.neuroml2.model.utils.LRUCache;
+import org.neuroml2.model.utils.SIConverter;
+import org.neuroml2.model.utils.StringInterner;
 import tec.units.ri.quantity.Quantities;
 import static org.junit.Assert.assertEquals;
 
 public class ChannelTest {
 
+	private static final Logger logger = Logger.getLogger(ChannelTest.class.getName());
+
 	private ArrayList<Neuroml2> channelDocs = new ArrayList();
 
 	@Rule
 	public ExpectedException thrown = ExpectedException.none();
 
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
 	@Before
 	public void setUp() throws Throwable {
         NeuroML2ModelReader nmlReader = new NeuroML2ModelReader();
@@ -50,7 +87,340 @@ public class ChannelTest {
         System.out.println(NeuroML2ModelReader.extractInfo(getLocalFile("/rods.nml")));
         
     }
-    
+
+	@Test
+	public void testRenderingCache() throws Throwable {
+		String info = NeuroML2ModelReader.extractInfo(getLocalFile("/Gran_KA_98.channel.nml"));
+		long hits = FunctionNodeHelper.getRenderingCache().getHitCount();
+		// same expressions, rendered from the cache
+		assertEquals(info, NeuroML2ModelReader.extractInfo(getLocalFile("/Gran_KA_98.channel.nml")));
+		assertTrue(FunctionNodeHelper.getRenderingCache().getHitCount() > hits);
+	}
+
+	@Test
+	public void testKinetics() throws Throwable {
+		ChannelKinetics kinetics = new ChannelKinetics();
+		List<ChannelKinetics.GateKinetics> gates = kinetics.extract(getLocalFile("/NML2_SingleCompHHCell.nml"));
+		assertEquals(3, gates.size());
+		for (ChannelKinetics.GateKinetics g : gates) {
+			assertTrue(g.getForwardRate() != null && g.getReverseRate() != null);
+			assertEquals(null, g.getTimeCourse());
+			if (g.getGate().equals("m")) {
+				assertEquals("naChan", g.getChannel());
+				assertEquals("3", g.getInstances().toString());
+			}
+		}
+
+		StringWriter jsonl = new StringWriter();
+		kinetics.export(Arrays.asList(getLocalFile("/NML2_SingleCompHHCell.nml"),
+				getLocalFile("/Gran_KA_98.channel.nml")), jsonl);
+		String[] lines = jsonl.toString().split("\n");
+		assertEquals(5, lines.length);
+		assertTrue(lines[4].startsWith("{\"source\":") && lines[4].contains("\"timeCourse\":"));
+
+		// read in parallel, written in the given order
+		List<File> files = new ArrayList<File>();
+		for (String file : new String[] { "/Ih.channel.nml", "/kdr.channel.nml", "/Gran_KA_98.channel.nml",
+				"/Gran_NaF_98.channel.nml", "/NaTa.channel.nml", "/k2.channel.nml" }) {
+			files.add(getLocalFile(file));
+		}
+		StringWriter serial = new StringWriter();
+		for (File f : files) {
+			ChannelKinetics.export(kinetics.extract(f), serial);
+		}
+		jsonl = new StringWriter();
+		kinetics.export(files, jsonl);
+		assertEquals(serial.toString(), jsonl.toString());
+	}
+
+	@Test
+	public void testParameterSweep() throws Throwable {
+		Neuroml2 naf = new NeuroML2ModelReader().read_(getLocalFile("/Gran_NaF_98.channel.nml"));
+		Component m = naf.getComponentById("Gran_NaF_98").getSubComponentsWithName("m").get(0);
+		double experimental = 17.350264793 + 273.15;
+
+		ParameterSweep.Result alpha = ParameterSweep.forGate(m, "forwardRate", naf)
+				.withValues("temperature", experimental, experimental + 10)
+				.withValues("midpoint", -0.029, -0.02)
+				.withRange("v", -0.1, 0.05, 0.001)
+				.run();
+		assertEquals("[2, 2, 151]", Arrays.toString(alpha.getShape()));
+		for (int i = 0; i < 151; i++) {
+			double v = alpha.getValues("v")[i];
+			double base = 1500 * Math.exp((v + 0.02) / 0.012345679);
+			assertEquals(base, alpha.get(0, 1, i), base * 1e-9);
+			// q10Factor = 3
+			assertEquals(3 * base, alpha.get(1, 1, i), base * 1e-9);
+		}
+		// the model itself is unchanged
+		assertEquals("-0.028999999999999998V",
+				m.getSubComponentsWithName("forwardRate").get(0).getParameterValue("midpoint"));
+
+		// at a fixed temperature
+		ParameterSweep.Result warm = ParameterSweep.forGate(m, "forwardRate", naf)
+				.withTemperature(experimental + 10)
+				.withRange("v", -0.1, 0.05, 0.001)
+				.run();
+		for (int i = 0; i < 151; i++) {
+			double v = warm.getValues("v")[i];
+			double base = 1500 * Math.exp((v + 0.029) / 0.012345679);
+			assertEquals(3 * base, warm.get(i), base * 1e-9);
+		}
+
+		// q10ExpTemp needs a temperature
+		thrown.expect(IllegalArgumentException.class);
+		thrown.expectMessage("withTemperature");
+		ParameterSweep.forGate(m, "forwardRate", naf).withRange("v", -0.1, 0.05, 0.001).run();
+	}
+
+	@Test
+	public void testIntegrator() throws Throwable {
+		Neuroml2 hh = channelDocs.get(0);
+		Cell cell = hh.getCells().get(0);
+		// a sphere of 1000 um2
+		assertEquals(1000e-12, HHIntegrator.area(cell), 1e-15);
+
+		HHIntegrator.Result r = HHIntegrator.forCell(cell, hh)
+				.withPulse(hh.getComponentById("pulseGen1"), hh)
+				.withTrace(0)
+				.run(0.3, new double[] { 0, 1 });
+		assertEquals(30000, r.getSteps());
+		// at rest without input
+		assertEquals(0, r.getSpikeCounts()[0]);
+		assertEquals(-0.065, r.getV()[0], 0.5e-3);
+		// spiking during the 0.08 nA pulse only
+		assertTrue(r.getSpikeCounts()[1] > 0);
+		double[] trace = r.getTrace(0);
+		assertEquals(-0.065, trace[0], 0);
+		assertEquals(trace.length, r.getSteps() + 1);
+	}
+
+	@Test
+	public void testIntegratorThroughput() throws Throwable {
+		Neuroml2 hh = channelDocs.get(0);
+		HHIntegrator integrator = HHIntegrator.forCell(hh.getCells().get(0), hh)
+				.withPulse(hh.getComponentById("pulseGen1"), hh);
+		// warm up, then 1000 cells for 10000 steps
+		integrator.run(0.01, 1000);
+		HHIntegrator.Result r = integrator.run(0.1, 1000);
+		assertEquals(10000, r.getSteps());
+		assertTrue(r.getThroughput() > 0);
+		logger.info(String.format("HHIntegrator: %.3g cell steps/s", r.getThroughput()));
+	}
+
+	@Test
+	public void testSelection() throws Throwable {
+		Neuroml2 channels = new NeuroML2ModelReader().withSelection(BaseIonChannel.class)
+				.read(getLocalFile("/NML2_SingleCompHHCell.nml"));
+		assertEquals(3, channels.getAllOfType(BaseIonChannel.class).size());
+		assertEquals(0, channels.getCells().size());
+
+		// with the channels it refers to, but not the network
+		Neuroml2 cells = new NeuroML2ModelReader().withSelection("cell")
+				.read(getLocalFile("/NML2_SingleCompHHCell.nml"));
+		assertEquals(1, cells.getCells().size());
+		assertEquals(3, cells.getAllOfType(BaseIonChannel.class).size());
+		assertEquals(null, ComponentIndex.of(cells).getComponentById("pulseGen1"));
+	}
+
+	@Test
+	public void testStreamSelection() throws Throwable {
+		NeuroML2ModelReader nmlReader = new NeuroML2ModelReader().withSelection("cell");
+		InputStream in = new FileInputStream(getLocalFile("/NML2_SingleCompHHCell.nml"));
+		try {
+			Neuroml2 cells = nmlReader.read(in);
+			assertEquals(1, cells.getCells().size());
+			assertEquals(3, cells.getAllOfType(BaseIonChannel.class).size());
+		} finally {
+			in.close();
+		}
+
+		// only ASCII compatible encodings can be scanned
+		String kdr = Files.toString(getLocalFile("/kdr.channel.nml"), Charsets.ISO_8859_1);
+		thrown.expect(IllegalArgumentException.class);
+		nmlReader.read(new ByteArrayInputStream(kdr.replace("ISO-8859-1", "UTF-16").getBytes(Charsets.UTF_16)));
+	}
+
+	@Test
+	public void testConcurrentReads() throws Throwable {
+		final NeuroML2ModelReader nmlReader = new NeuroML2ModelReader();
+		final String[] files = new String[] { "/Ih.channel.nml", "/kdr.channel.nml",
+				"/k2.channel.nml", "/Gran_H_98.channel.nml" };
+
+		// what each file reads to on its own
+		ChannelKinetics kinetics = new ChannelKinetics(nmlReader);
+		List<String> serial = new ArrayList<String>();
+		for (String file : files) {
+			serial.add(kinetics(kinetics, nmlReader.read_(getLocalFile(file))));
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Neuroml2>> reads = new ArrayList<Future<Neuroml2>>();
+			for (int i = 0; i < 16; i++) {
+				final File f = getLocalFile(files[i % files.length]);
+				reads.add(pool.submit(new Callable<Neuroml2>() {
+					@Override
+					public Neuroml2 call() throws Exception {
+						try {
+							return nmlReader.read_(f);
+						} catch (Throwable t) {
+							throw new Exception(t);
+						}
+					}
+				}));
+			}
+			Set<ComponentType> types = Collections.newSetFromMap(new IdentityHashMap<ComponentType, Boolean>());
+			types.addAll(NeuroML2ModelReader.getCoreTypes());
+			for (int i = 0; i < reads.size(); i++) {
+				Neuroml2 model = reads.get(i).get();
+				// one channel per file, analysed as when read alone
+				assertEquals(1, model.getAllOfType(BaseIonChannel.class).size());
+				assertEquals(serial.get(i % files.length), kinetics(kinetics, model));
+				// with copies of the core types, never the shared ones
+				for (ComponentType ct : model.getComponentTypes()) {
+					assertTrue(ct.getName(), !types.contains(ct));
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testCoreDefinitionsAnalysedOnce() throws Throwable {
+		NeuroML2ModelReader nmlReader = new NeuroML2ModelReader();
+		Neuroml2 first = nmlReader.read(getLocalFile("/kdr.channel.nml"));
+		long analyses = NeuroML2ModelReader.getCoreAnalysisCount();
+		Neuroml2 second = nmlReader.read(getLocalFile("/kdr.channel.nml"));
+		nmlReader.read(getLocalFile("/kdr.channel.nml"));
+		// the core types of the closure were analysed for the first read only
+		assertEquals(analyses, NeuroML2ModelReader.getCoreAnalysisCount());
+
+		Set<ComponentType> types = Collections.newSetFromMap(new IdentityHashMap<ComponentType, Boolean>());
+		types.addAll(first.getComponentTypes());
+		int core = 0;
+		for (ComponentType ct : second.getComponentTypes()) {
+			if (ComponentIndex.of(second).isCoreDefinition(ct)) {
+				assertTrue(ct.getName(), types.contains(ct));
+				core++;
+			}
+		}
+		assertTrue(core > 0);
+	}
+
+	private static String kinetics(ChannelKinetics kinetics, Neuroml2 model) throws Throwable {
+		StringBuilder json = new StringBuilder();
+		for (ChannelKinetics.GateKinetics g : kinetics.extract(model)) {
+			json.append(g.toJson());
+		}
+		return json.toString();
+	}
+
+	@Test
+	public void testIncludes() throws Throwable {
+		// Gran_NaF_98 is included by both files, but only loaded once
+		Neuroml2 granule = new NeuroML2Loader(new NeuroML2ModelReader())
+				.load(getLocalFile("/GranuleChannels.nml"));
+		assertEquals(5, granule.getAllOfType(BaseIonChannel.class).size());
+		assertEquals("10pS", ((BaseIonChannel) granule.getComponentById("Gran_NaF_98")).getConductance());
+	}
+
+	@Test
+	public void testSharedDefinitions() throws Throwable {
+		// the same channel, in another file
+		File copy = tmp.newFile("kdr.copy.nml");
+		Files.copy(getLocalFile("/kdr.channel.nml"), copy);
+		NeuroML2Loader loader = new NeuroML2Loader(new NeuroML2ModelReader());
+		Neuroml2 kdr = loader.load(getLocalFile("/kdr.channel.nml"), copy);
+		assertEquals(1, kdr.getAllOfType(BaseIonChannel.class).size());
+		// the channel and its ComponentType
+		assertEquals(2, loader.getSharedDefinitionCount());
+	}
+
+	@Test
+	public void testInterning() throws Throwable {
+		StringInterner interner = new StringInterner(1 << 10, 64);
+		NeuroML2ModelReader nmlReader = new NeuroML2ModelReader().withInterning(interner);
+		Neuroml2 kdr = nmlReader.read(getLocalFile("/kdr.channel.nml"));
+		Neuroml2 again = nmlReader.read(getLocalFile("/kdr.channel.nml"));
+		assertSame(((BaseIonChannel) kdr.getComponentById("kdr")).getConductance(),
+				((BaseIonChannel) again.getComponentById("kdr")).getConductance());
+		assertTrue(interner.getHitCount() > 0);
+		assertTrue(interner.getReplacedBytes() > 0);
+
+		assertEquals(1e-11, new SIConverter(kdr).toSI("10pS"), 1e-24);
+		assertEquals(1e-11, new SIConverter(again).toSI("10pS"), 1e-24);
+	}
+
+	@Test
+	public void testCoreTypesSnapshot() throws Throwable {
+		Lems defs = NeuroML2ModelReader.getDomainDefs();
+		CoreTypesSnapshot compiled = CoreTypesSnapshot.of(defs);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CoreTypesSnapshot.writeTo(out, compiled, "test");
+		byte[] snapshot = out.toByteArray();
+		assertEquals(null, CoreTypesSnapshot.readFrom(new ByteArrayInputStream(snapshot), "other"));
+
+		CoreTypesSnapshot read = CoreTypesSnapshot.readFrom(new ByteArrayInputStream(snapshot), "test");
+		assertEquals(typeNames(defs), typeNames(read.getDefs()));
+		assertEquals(defs.getUnits().size(), read.getDefs().getUnits().size());
+		assertEquals(defs.getDimensions().size(), read.getDefs().getDimensions().size());
+		assertEquals(defs.getConstants().size(), read.getDefs().getConstants().size());
+		// what the reader derives from the core types comes with them
+		assertTrue(Arrays.equals(compiled.getDefinitionsXml(), read.getDefinitionsXml()));
+		assertTrue(Arrays.equals(compiled.getDefinitionNames(), read.getDefinitionNames()));
+		List<String> types = Arrays.asList("ionChannelHH", "cell");
+		assertEquals(compiled.getTypeIndex().closure(types), read.getTypeIndex().closure(types));
+		assertEquals("baseIonChannel", read.getTypeIndex().getSupertype("ionChannelHH"));
+		// written again, the same
+		out = new ByteArrayOutputStream();
+		CoreTypesSnapshot.writeTo(out, read, "test");
+		assertTrue(Arrays.equals(snapshot, out.toByteArray()));
+
+		// through the cache directory
+		String cacheDir = System.getProperty("neuroml2model.cacheDir");
+		System.setProperty("neuroml2model.cacheDir", new File(tmp.getRoot(), "cache").getPath());
+		try {
+			CoreTypesSnapshot.write(compiled, "test");
+			assertTrue(CoreTypesSnapshot.getCacheFile("test").isFile());
+			assertEquals(typeNames(defs), typeNames(CoreTypesSnapshot.read("test").getDefs()));
+		} finally {
+			if (cacheDir == null) {
+				System.clearProperty("neuroml2model.cacheDir");
+			} else {
+				System.setProperty("neuroml2model.cacheDir", cacheDir);
+			}
+		}
+	}
+
+	private static List<String> typeNames(Lems defs) {
+		List<String> names = new ArrayList<String>();
+		for (ComponentType ct : defs.getComponentTypes()) {
+			names.add(ct.getName());
+		}
+		return names;
+	}
+
+	@Test
+	public void testCache() throws Throwable {
+		LRUCache<String, Neuroml2> cache = new LRUCache<String, Neuroml2>(1 << 20);
+		NeuroML2ModelReader nmlReader = new NeuroML2ModelReader().withCache(cache);
+
+		Neuroml2 kdr = nmlReader.read(getLocalFile("/kdr.channel.nml"));
+		assertSame(kdr, nmlReader.read(getLocalFile("/kdr.channel.nml")));
+		assertSame(kdr, nmlReader.read(Files.toString(getLocalFile("/kdr.channel.nml"), Charsets.UTF_8)));
+		nmlReader.read(getLocalFile("/Ih.channel.nml"));
+
+		assertEquals(2, cache.size());
+		assertEquals(2, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+
+		// shared, so read only
+		thrown.expect(UnsupportedOperationException.class);
+		ComponentIndex.of(kdr).remove(kdr.getComponentById("kdr"));
+	}
+
 /*
 	@Test
 	public void testChannels() throws Throwable {
@@ -105,6 +475,48 @@ public class ChannelTest {
 		return ctxt;
 	}
 
+	@Test
+	public void testJarResources() throws Throwable {
+		// the LEMS definitions packaged in a jar, as in the assembly
+		File jar = tmp.newFile("lems.jar");
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		try {
+			for (String f : NeuroML2ModelReader.nmlLemsDefs) {
+				out.putNextEntry(new JarEntry("lems/" + f));
+				Files.copy(getLocalFile("/lems/" + f), out);
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+
+		int extracted = tempDefinitionDirs();
+		URLClassLoader loader = new URLClassLoader(new URL[] { jar.toURI().toURL() }, null);
+		try {
+			Lems defs = NeuroML2ModelReader.compileDomainDefs(loader);
+			assertEquals(NeuroML2ModelReader.getDomainDefs().getComponentTypes().size(),
+					defs.getComponentTypes().size());
+		} finally {
+			loader.close();
+		}
+		// the extracted copies are gone once compiled
+		assertEquals(extracted, tempDefinitionDirs());
+
+		// and reading touches neither the disk nor the resources
+		new NeuroML2ModelReader().read(getLocalFile("/kdr.channel.nml"));
+		assertEquals(extracted, tempDefinitionDirs());
+	}
+
+	private int tempDefinitionDirs() {
+		String[] names = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith("lemsNml2Definitions");
+			}
+		});
+		return names == null ? 0 : names.length;
+	}
+
 	protected File getLocalFile(String fname) {
 		return new File(getClass().getResource(fname).getFile());
 	}
@@ -0,0 +1,173 @@
+package org.neuroml2.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.neuroml2.model.utils.CompiledExpression;
+import org.neuroml2.model.utils.ExpressionCompiler;
+import org.neuroml2.model.utils.ExpressionNode;
+import org.neuroml2.model.utils.ExpressionRenderer;
+import org.neuroml2.model.utils.ExpressionRenderer.Target;
+import org.neuroml2.model.utils.ExpressionSimplifier;
+import org.neuroml2.model.utils.FunctionNodeHelper;
+import org.neuroml2.model.utils.LemsExpressionParser;
+import org.neuroml2.model.utils.RateTable;
+
+public class ExpressionCompilerTest {
+
+	@Test
+	public void testParsing() {
+		assertEquals("(a + (b * (c ^ 2)))", LemsExpressionParser.parse("a + b * c^2").toString());
+		assertEquals("-((x ^ 2))", LemsExpressionParser.parse("-x^2").toString());
+		assertEquals("((x .gt. 0) .and. (x .lt. 1))",
+				LemsExpressionParser.parse("x .gt. 0 .and. x .lt. 1").toString());
+		assertEquals("((v .geq. 0) ? 1 : exp((v / 0.5)))",
+				LemsExpressionParser.parse("v >= 0 ? 1 : exp(v/.5)").toString());
+		assertEquals("-65 mV", LemsExpressionParser.parse("-65mV").toString());
+		assertEquals("0.001", LemsExpressionParser.parse("1e-3").toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSyntaxError() {
+		LemsExpressionParser.parse("exp(x");
+	}
+
+	@Test
+	public void testCompiledExpLinearRate() {
+		// as HHExpLinearRate: a singularity at v == midpoint
+		Map<String, ExpressionNode> context = new LinkedHashMap<String, ExpressionNode>();
+		context.put("rate", LemsExpressionParser.parse("1000"));
+		context.put("midpoint", LemsExpressionParser.parse("-0.04"));
+		context.put("scale", LemsExpressionParser.parse("0.01"));
+		context.put("x", LemsExpressionParser.parse("(v - midpoint) / scale"));
+		context.put("r", LemsExpressionParser.parse("x .neq. 0 ? rate * x / (1 - exp(0 - x)) : rate"));
+
+		CompiledExpression r = ExpressionCompiler.compile(context, "r", null, "v");
+		assertEquals(1, r.getIndependentVariables().size());
+		for (double v = -0.1; v < 0.05; v += 0.0013) {
+			double x = (v + 0.04) / 0.01;
+			assertEquals(1000 * x / (1 - Math.exp(-x)), r.evaluate(v), 1e-9);
+		}
+		assertEquals(1000, r.evaluate(-0.04), 0);
+
+		double[] frame = r.newFrame();
+		frame[0] = 0;
+		assertEquals(r.evaluate(0.), r.evaluateFrame(frame), 0);
+	}
+
+	@Test
+	public void testFreeVariables() {
+		Map<String, ExpressionNode> context = new LinkedHashMap<String, ExpressionNode>();
+		context.put("y", LemsExpressionParser.parse("v * caConc"));
+		CompiledExpression y = ExpressionCompiler.compile(context, "y", null, "v");
+		assertEquals("[v, caConc]", y.getIndependentVariables().toString());
+		assertEquals(6, y.evaluate(2, 3), 0);
+	}
+
+	@Test
+	public void testRateTable() {
+		Map<String, ExpressionNode> context = new LinkedHashMap<String, ExpressionNode>();
+		context.put("x", LemsExpressionParser.parse("1 / (1 + exp((v + 0.04) / -0.005))"));
+		CompiledExpression x = ExpressionCompiler.compile(context, "x", null, "v");
+
+		RateTable table = RateTable.tabulate("x", x, -0.1, 0.05, 1e-4);
+		assertEquals(1501, table.size());
+		assertEquals(0.05, table.getXMax(), 1e-12);
+		assertEquals(x.evaluate(-0.04), table.interpolate(-0.04), 1e-12);
+		assertTrue(table.getMaxError() > 0);
+		for (double v = -0.1; v <= 0.05; v += 0.000037) {
+			assertTrue(Math.abs(x.evaluate(v) - table.interpolate(v)) <= table.getMaxError() * 1.01);
+		}
+
+		// undefined at the start of the range only
+		context.put("y", LemsExpressionParser.parse("v .lt. -0.09 ? 0 / 0 : v * v"));
+		CompiledExpression y = ExpressionCompiler.compile(context, "y", null, "v");
+		assertTrue(Double.isNaN(RateTable.tabulate("y", y, -0.1, 0.05, 1e-4).getMaxError()));
+	}
+
+	@Test
+	public void testSymbolExpansion() {
+		FunctionNodeHelper f = new FunctionNodeHelper();
+		f.setIndependentVariable("v");
+		f.register("scale", "0.01");
+		f.register("x", "(v - midpoint) / scale");
+		f.register("r", "x != 0 ? rate * x / (1 - exp(0 - x)) : rate");
+		f.register("rate", "1000");
+		f.register("midpoint", "-0.04");
+		assertEquals("(v - (-0.04)) / 0.01", f.getExpression("x"));
+		assertEquals("x = (v - (-0.04)) / 0.01; f(v)=x != 0 ? 1000 * x / (1 - exp(0 - x)) : 1000",
+				f.getLetExpression("r"));
+
+		// redefinitions reach everything depending on them
+		f.register("scale", "0.02");
+		assertEquals("(v - (-0.04)) / 0.02", f.getExpression("x"));
+		assertTrue(f.getExpression("r").contains("0.02"));
+		f.deRegister("midpoint");
+		assertEquals("(v - midpoint) / 0.02", f.getExpression("x"));
+	}
+
+	@Test
+	public void testSymbolSharing() {
+		// each level uses the previous one twice: 2^n copies once expanded
+		FunctionNodeHelper f = new FunctionNodeHelper();
+		f.setIndependentVariable("v");
+		f.register("y0", "v");
+		for (int i = 1; i <= 20; i++) {
+			f.register("y" + i, "y" + (i - 1) + " * y" + (i - 1));
+		}
+		assertEquals(20, f.getBindings("y20").size());
+		assertTrue(f.getLetExpression("y20").length() < 500);
+		assertTrue(f.getExpression("y20").length() > 1 << 20);
+	}
+
+	@Test
+	public void testRendering() {
+		ExpressionNode r = LemsExpressionParser.parse("x .neq. 0 ? rate * x / (1 - exp(0 - x)) : rate^2");
+		Map<Target, String> rendered = new ExpressionRenderer(null).render(r);
+		assertEquals("x != 0 ? rate * x / (1 - exp(0 - x)) : rate ^ 2", rendered.get(Target.MATHJS));
+		assertEquals("x != 0.0 ? rate * x / (1.0 - exp(0.0 - x)) : pow(rate, 2.0)", rendered.get(Target.C));
+		assertEquals("x != 0.0 ? rate * x / (1.0 - Math.exp(0.0 - x)) : Math.pow(rate, 2.0)",
+				rendered.get(Target.JAVA));
+		assertEquals("\\begin{cases}\\frac{\\mathrm{rate} \\cdot x}{1 - \\exp\\left(0 - x\\right)} & \\text{if } x \\neq 0"
+				+ " \\\\ {\\mathrm{rate}}^{2} & \\text{otherwise}\\end{cases}", rendered.get(Target.LATEX));
+
+		// parentheses only where needed
+		ExpressionRenderer mathjs = new ExpressionRenderer(null, Target.MATHJS);
+		assertEquals("a - b - (c - d)", mathjs.render(LemsExpressionParser.parse("(a - b) - (c - d)"), Target.MATHJS));
+		assertEquals("-x ^ 2", mathjs.render(LemsExpressionParser.parse("-(x^2)"), Target.MATHJS));
+		assertEquals("(-x) ^ 2", mathjs.render(LemsExpressionParser.parse("(-x)^2"), Target.MATHJS));
+		assertEquals("log10(x) / log(y)", mathjs.render(LemsExpressionParser.parse("log(x) / ln(y)"), Target.MATHJS));
+	}
+
+	@Test
+	public void testSimplification() {
+		Map<String, ExpressionNode> context = new LinkedHashMap<String, ExpressionNode>();
+		context.put("rate", LemsExpressionParser.parse("2 * 500"));
+		context.put("midpoint", LemsExpressionParser.parse("-0.04"));
+		context.put("scale", LemsExpressionParser.parse("0.01 * 1"));
+		context.put("x", LemsExpressionParser.parse("(v - midpoint) / scale"));
+		context.put("r", LemsExpressionParser.parse("rate .gt. 0 ? rate * exp(x) * exp(x) / exp(0 - v) : 0"));
+		Map<String, ExpressionNode> simplified = ExpressionSimplifier.simplify(context, null);
+		assertEquals("1000", simplified.get("rate").toString());
+		assertEquals("((v - -0.04) / 0.01)", simplified.get("x").toString());
+		assertEquals("(1000 * exp(((x + x) + v)))", simplified.get("r").toString());
+		// the original is left as is
+		assertEquals("(2 * 500)", context.get("rate").toString());
+
+		// and compiles to the same function
+		CompiledExpression r = ExpressionCompiler.compile(context, "r", null, "v");
+		for (double v = -0.1; v < 0.05; v += 0.0013) {
+			double x = (v + 0.04) / 0.01;
+			double expected = 1000 * Math.exp(x) * Math.exp(x) / Math.exp(-v);
+			assertEquals(expected, r.evaluate(v), expected * 1e-12);
+		}
+
+		// sweeping a folded parameter still works
+		CompiledExpression swept = ExpressionCompiler.compile(context, "r", null, "v", "rate");
+		assertEquals(0, swept.evaluate(0, -1), 0);
+	}
+}
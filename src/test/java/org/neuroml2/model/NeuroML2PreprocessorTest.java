@@ -0,0 +1,62 @@
+package org.neuroml2.model;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.junit.Test;
+
+public class NeuroML2PreprocessorTest {
+
+	private static final String DOC = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+			+ "<neuroml xmlns=\"http://www.neuroml.org/schema/neuroml2\""
+			+ " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" id=\"test\">"
+			+ "<ionChannel id=\"k\" type=\"ionChannelHH\">"
+			+ "<gate id=\"n\" type=\"gateHHrates\" instances=\"4\">"
+			+ "<forwardRate type=\"HHExpLinearRate\" rate=\"1per_ms\" midpoint=\"-55mV\" scale=\"10mV\"/>"
+			+ "</gate></ionChannel>"
+			+ "<ComponentType name=\"myRate\" extends=\"baseVoltageDepRate\">"
+			+ "<Dynamics><DerivedVariable name=\"r\" dimension=\"per_time\" value=\"1\"/></Dynamics>"
+			+ "</ComponentType>"
+			+ "</neuroml>";
+
+	@Test
+	public void testRenaming() throws XMLStreamException {
+		List<String> starts = new ArrayList<String>();
+		List<String> ends = new ArrayList<String>();
+
+		XMLEventReader reader = new NeuroML2Preprocessor(XMLInputFactory
+				.newInstance().createXMLEventReader(new StringReader(DOC)));
+		while (reader.hasNext()) {
+			XMLEvent e = reader.nextEvent();
+			if (e.isStartElement()) {
+				StartElement s = e.asStartElement();
+				starts.add(s.getName().toString());
+				if (starts.size() == 1) {
+					// root attributes are dropped, as before
+					assertEquals(false, s.getAttributes().hasNext());
+				}
+			} else if (e.isEndElement()) {
+				ends.add(0, e.asEndElement().getName().toString());
+			}
+		}
+
+		String lems = "{" + NeuroML2Preprocessor.LEMS_NS + "}";
+		assertEquals("[neuroml2, ionChannel, gateHHrates, forwardRate, "
+				+ lems + "ComponentType, " + lems + "Dynamics, " + lems
+				+ "DerivedVariable]", starts.toString());
+		// end tags follow the renamed start tags
+		assertEquals(starts.size(), ends.size());
+		assertEquals(starts.get(0), ends.get(0));
+		assertEquals(starts.get(2), ends.get(5));
+	}
+
+}